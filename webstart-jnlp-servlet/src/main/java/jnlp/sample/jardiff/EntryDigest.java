@@ -0,0 +1,109 @@
+package jnlp.sample.jardiff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Identifies the content of a jar entry by its size and SHA-1 digest. Two
+ * entries with equal digests are treated as having the same content.
+ */
+class EntryDigest
+{
+    private static final String ALGORITHM = "SHA-1";
+
+    private final long _size;
+
+    private final byte[] _digest;
+
+    private final int _hashCode;
+
+    EntryDigest( long size, byte[] digest )
+    {
+        _size = size;
+        _digest = digest;
+        _hashCode = Arrays.hashCode( digest );
+    }
+
+    /**
+     * @return a new message digest of the algorithm used for entries
+     */
+    static MessageDigest newMessageDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( ALGORITHM );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            // Every Java platform supports SHA-1
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Reads the content of an entry once and computes its digest.
+     *
+     * @param jar   jar containing the entry
+     * @param entry entry to read
+     * @param md    message digest to use, reset before use
+     * @param buf   read buffer
+     * @return the digest of the entry
+     * @throws IOException if the entry cannot be read
+     */
+    static EntryDigest compute( JarFile jar, JarEntry entry, MessageDigest md, byte[] buf )
+            throws IOException
+    {
+        md.reset();
+        long size = 0;
+        InputStream in = jar.getInputStream( entry );
+        try
+        {
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                md.update( buf, 0, read );
+                size += read;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return new EntryDigest( size, md.digest() );
+    }
+
+    public boolean equals( Object o )
+    {
+        if ( this == o )
+        {
+            return true;
+        }
+        if ( !( o instanceof EntryDigest ) )
+        {
+            return false;
+        }
+        EntryDigest other = (EntryDigest) o;
+        return _size == other._size && Arrays.equals( _digest, other._digest );
+    }
+
+    public int hashCode()
+    {
+        return _hashCode;
+    }
+
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( byte b : _digest )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) );
+            sb.append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sb.append( " size " ).append( _size ).toString();
+    }
+}
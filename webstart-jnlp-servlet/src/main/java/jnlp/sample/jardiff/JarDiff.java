@@ -36,27 +36,28 @@
 
 package jnlp.sample.jardiff;
 
+import jnlp.sample.util.BufferPool;
+
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.concurrent.ForkJoinPool;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 
 
 /**
@@ -71,12 +72,6 @@ import java.util.jar.JarOutputStream;
 public class JarDiff
         implements JarDiffConstants
 {
-    private static final int DEFAULT_READ_SIZE = 2048;
-
-    private static byte[] newBytes = new byte[DEFAULT_READ_SIZE];
-
-    private static byte[] oldBytes = new byte[DEFAULT_READ_SIZE];
-
     private static ResourceBundle _resources = null;
 
     // The JARDiff.java is the stand-along jardiff.jar tool. Thus, we do not
@@ -84,6 +79,9 @@ public class JarDiff
     // _debug flag.
     private static boolean _debug;
 
+    // Read buffers of the diffs and patches running at the same time
+    static final BufferPool BUFFERS = new BufferPool( 64 * 1024, 16 );
+
     public static ResourceBundle getResources()
     {
         if ( _resources == null )
@@ -95,7 +93,8 @@ public class JarDiff
 
     /**
      * Creates a patch from the two passed in files, writing the result
-     * to <code>os</code>.
+     * to <code>os</code>. Each invocation uses its own buffers, so patches
+     * can be created concurrently.
      *
      * @param oldPath TODO
      * @param newPath TODO
@@ -106,8 +105,69 @@ public class JarDiff
     public static void createPatch( String oldPath, String newPath, OutputStream os, boolean minimal )
             throws IOException
     {
-        JarFile2 oldJar = new JarFile2( oldPath );
-        JarFile2 newJar = new JarFile2( newPath );
+        createPatch( oldPath, newPath, os, minimal, null );
+    }
+
+    /**
+     * Creates a patch from the two passed in files, writing the result
+     * to <code>os</code>. Given a pool, the entries of both jars are read
+     * and matched concurrently on it; the patch is identical to the one
+     * created sequentially.
+     *
+     * @param oldPath  path of the old jar
+     * @param newPath  path of the new jar
+     * @param os       stream the patch is written to, closed once written
+     * @param minimal  true to move several entries from the same old entry, false to add
+     *                 the copies as new entries, which 1.0.1/1.0 clients can apply
+     * @param pool     pool to read and match the entries on in parallel, or <code>null</code>
+     * @throws IOException if a jar cannot be read or the patch cannot be written
+     */
+    public static void createPatch( String oldPath, String newPath, OutputStream os, boolean minimal,
+                                    ForkJoinPool pool )
+            throws IOException
+    {
+        Patch patch = preparePatch( oldPath, newPath, minimal, pool );
+        try
+        {
+            patch.write( os );
+            os.close();
+        }
+        finally
+        {
+            patch.close();
+        }
+    }
+
+    /**
+     * Compares the two passed in files and prepares the patch between them,
+     * without writing it yet. When the entries can be copied without being
+     * deflated again, the size of the patch is known before it is written,
+     * so a caller can decide whether the patch is worth sending.
+     * The returned patch must be closed.
+     *
+     * @param oldPath  path of the old jar
+     * @param newPath  path of the new jar
+     * @param minimal  true to move several entries from the same old entry, false to add
+     *                 the copies as new entries, which 1.0.1/1.0 clients can apply
+     * @param pool     pool to read and match the entries on in parallel, or <code>null</code>
+     * @return the patch, ready to be written
+     * @throws IOException if a jar cannot be read
+     */
+    public static Patch preparePatch( String oldPath, String newPath, boolean minimal, ForkJoinPool pool )
+            throws IOException
+    {
+        JarFile2 oldJar = new JarFile2( oldPath, pool );
+        JarFile2 newJar;
+        try
+        {
+            newJar = new JarFile2( newPath, pool );
+        }
+        catch ( IOException e )
+        {
+            oldJar.getJarFile().close();
+            throw e;
+        }
+        Patch patch = null;
 
         try
         {
@@ -125,16 +185,20 @@ public class JarDiff
             // and new.jar )
             // and for files that cannot be implicitly moved, we will either
             // find out whether it is moved or new (modified)
+            // Best matches of contents are looked up first, possibly in parallel,
+            // then the moves are decided in the order of the new jar
+            String[] bestMatches = oldJar.getBestMatches( newJar, pool );
             entries = newJar.getJarEntries();
             if ( entries != null )
             {
+                int index = 0;
                 while ( entries.hasNext() )
                 {
                     JarEntry newEntry = (JarEntry) entries.next();
                     String newname = newEntry.getName();
 
                     // Return best match of contents, will return a name match if possible
-                    String oldname = oldJar.getBestMatch( newJar, newEntry );
+                    String oldname = bestMatches[index++];
                     if ( oldname == null )
                     {
                         // New or modified entry
@@ -261,34 +325,10 @@ public class JarDiff
                 }
             }
 
-            JarOutputStream jos = new JarOutputStream( os );
-
-            // Write out all the MOVEs and REMOVEs
-            createIndex( jos, deleted, moved );
-
-            // Put in New and Modified entries
-            entries = newEntries.iterator();
-            if ( entries != null )
-            {
-
-                while ( entries.hasNext() )
-                {
-                    String newName = (String) entries.next();
-                    if ( _debug )
-                    {
-                        System.out.println( "New File: " + newName );
-                    }
-                    writeEntry( jos, newJar.getEntryByName( newName ), newJar );
-                }
-            }
-
-            jos.finish();
-            jos.close();
-
-        }
-        catch ( IOException ioE )
-        {
-            throw ioE;
+            // Copy the compressed data of the entries if the new jar can be read as a plain zip file
+            patch = new Patch( newJar, ZipArchive.open( new File( newPath ) ), createIndex( deleted, moved ),
+                               new File( newPath ).lastModified(), new ArrayList( newEntries ) );
+            return patch;
         }
         finally
         {
@@ -300,28 +340,31 @@ public class JarDiff
             {
                 //ignore
             }
-            try
+            if ( patch == null )
             {
-                newJar.getJarFile().close();
-            }
-            catch ( IOException e1 )
-            {
-                //ignore
+                try
+                {
+                    newJar.getJarFile().close();
+                }
+                catch ( IOException e1 )
+                {
+                    //ignore
+                }
             }
         } // finally
     }
 
     /**
-     * Writes the index file out to <code>jos</code>.
+     * Creates the content of the index file.
      * <code>oldEntries</code> gives the names of the files that were removed,
      * <code>movedMap</code> maps from the new name to the old name.
      *
-     * @param jos        TODO
      * @param oldEntries TODO
      * @param movedMap   TODO
+     * @return the UTF-8 encoded index
      * @throws IOException TODO
      */
-    private static void createIndex( JarOutputStream jos, List oldEntries, Map movedMap )
+    private static byte[] createIndex( List oldEntries, Map movedMap )
             throws IOException
     {
         StringWriter writer = new StringWriter();
@@ -355,12 +398,10 @@ public class JarDiff
             writer.write( "\r\n" );
         }
 
-        JarEntry je = new JarEntry( INDEX_NAME );
         byte[] bytes = writer.toString().getBytes( "UTF-8" );
 
         writer.close();
-        jos.putNextEntry( je );
-        jos.write( bytes, 0, bytes.length );
+        return bytes;
     }
 
     private static void writeEscapedString( Writer writer, String string )
@@ -395,46 +436,120 @@ public class JarDiff
         }
     }
 
-    private static void writeEntry( JarOutputStream jos, JarEntry entry, JarFile2 file )
-            throws IOException
+    /**
+     * A patch between two jars, ready to be written. Keeps the new jar open
+     * until it is closed.
+     */
+    public static class Patch
+            implements Closeable
     {
-        writeEntry( jos, entry, file.getJarFile().getInputStream( entry ) );
-    }
+        private final JarFile2 _newJar;
 
-    private static void writeEntry( JarOutputStream jos, JarEntry entry, InputStream data )
-            throws IOException
-    {
-        jos.putNextEntry( entry );
+        private final ZipArchive _newArchive;
 
-        try
-        {
-            // Read the entry
-            int size = data.read( newBytes );
+        private final byte[] _index;
+
+        private final byte[] _deflatedIndex;
+
+        /* Time of the index entry, that of the new jar so that the same jars always give the same patch */
+        private final long _indexTime;
+
+        private final List _newEntries;
 
-            while ( size != -1 )
+        private final long _size;
+
+        private Patch( JarFile2 newJar, ZipArchive newArchive, byte[] index, long indexTime, List newEntries )
+        {
+            _newJar = newJar;
+            _newArchive = newArchive;
+            _index = index;
+            _indexTime = indexTime;
+            _newEntries = newEntries;
+            if ( newArchive == null )
             {
-                jos.write( newBytes, 0, size );
-                size = data.read( newBytes );
+                // Entries are deflated again while writing
+                _deflatedIndex = null;
+                _size = -1;
+                return;
             }
+            _deflatedIndex = JarEntryWriter.deflate( index );
+            long size = JarEntryWriter.getRawEntrySize( INDEX_NAME, 0, _deflatedIndex.length );
+            for ( Object newEntry : newEntries )
+            {
+                String name = (String) newEntry;
+                ZipArchive.Entry source = newArchive.getEntry( name );
+                if ( source == null )
+                {
+                    size = -1;
+                    break;
+                }
+                size += JarEntryWriter.getRawEntrySize( name, source._extra.length, source._compressedSize );
+            }
+            _size = size < 0 ? -1 : size + ZipArchive.END_SIZE;
         }
-        catch ( IOException ioE )
+
+        /**
+         * @return the size in bytes of the patch, or -1 if it is only known once written
+         */
+        public long getSize()
         {
-            throw ioE;
+            return _size;
         }
-        finally
+
+        /**
+         * Writes the patch to <code>os</code>, without closing it.
+         *
+         * @param os stream the patch is written to
+         * @throws IOException if an entry of the new jar cannot be read or the patch cannot be written
+         */
+        public void write( OutputStream os )
+                throws IOException
         {
+            byte[] newBytes = BUFFERS.acquire();
             try
             {
-                data.close();
+                JarEntryWriter jos = new JarEntryWriter( os, _newArchive != null );
+
+                // Write out all the MOVEs and REMOVEs
+                jos.putEntry( INDEX_NAME, _index, _deflatedIndex, _indexTime );
+
+                // Put in New and Modified entries
+                for ( Object newEntry : _newEntries )
+                {
+                    String newName = (String) newEntry;
+                    if ( _debug )
+                    {
+                        System.out.println( "New File: " + newName );
+                    }
+                    jos.copyEntry( _newJar.getJarFile(), _newArchive, _newJar.getEntryByName( newName ), newName,
+                                   newBytes );
+                }
+
+                jos.finish();
+            }
+            finally
+            {
+                BUFFERS.release( newBytes );
+            }
+        }
+
+        public void close()
+        {
+            if ( _newArchive != null )
+            {
+                _newArchive.close();
+            }
+            try
+            {
+                _newJar.getJarFile().close();
             }
             catch ( IOException e )
             {
-                //Ignore
+                //ignore
             }
         }
     }
 
-
     /**
      * JarFile2 wraps a JarFile providing some convenience methods.
      */
@@ -446,13 +561,23 @@ public class JarDiff
 
         private HashMap _nameToEntryMap;
 
-        private HashMap _crcToEntryMap;
+        private HashMap _nameToDigestMap;
+
+        private HashMap _digestToEntryMap;
 
-        public JarFile2( String path )
+        public JarFile2( String path, ForkJoinPool pool )
                 throws IOException
         {
             _jar = new JarFile( new File( path ) );
-            index();
+            try
+            {
+                index( pool );
+            }
+            catch ( IOException e )
+            {
+                _jar.close();
+                throw e;
+            }
         }
 
         public JarFile getJarFile()
@@ -470,87 +595,12 @@ public class JarDiff
             return (JarEntry) _nameToEntryMap.get( name );
         }
 
-        /**
-         * @param oldIS TODO
-         * @param newIS TODO
-         * @return true if the two InputStreams differ.
-         */
-        private static boolean differs( InputStream oldIS, InputStream newIS )
-                throws IOException
+        public EntryDigest getDigestByName( String name )
         {
-            int newSize = 0;
-            int oldSize;
-            int total = 0;
-            boolean retVal = false;
-
-            try
-            {
-                while ( newSize != -1 )
-                {
-                    newSize = newIS.read( newBytes );
-                    oldSize = oldIS.read( oldBytes );
-
-                    if ( newSize != oldSize )
-                    {
-                        if ( _debug )
-                        {
-                            System.out.println( "\tread sizes differ: " + newSize + " " + oldSize + " total " + total );
-                        }
-                        retVal = true;
-                        break;
-                    }
-                    if ( newSize > 0 )
-                    {
-                        while ( --newSize >= 0 )
-                        {
-                            total++;
-                            if ( newBytes[newSize] != oldBytes[newSize] )
-                            {
-                                if ( _debug )
-                                {
-                                    System.out.println( "\tbytes differ at " + total );
-                                }
-                                retVal = true;
-                                break;
-                            }
-                            if ( retVal )
-                            {
-                                //Jump out
-                                break;
-                            }
-                            newSize = 0;
-                        }
-                    }
-                }
-            }
-            catch ( IOException ioE )
-            {
-                throw ioE;
-            }
-            finally
-            {
-                try
-                {
-                    oldIS.close();
-                }
-                catch ( IOException e )
-                {
-                    //Ignore
-                }
-                try
-                {
-                    newIS.close();
-                }
-                catch ( IOException e )
-                {
-                    //Ignore
-                }
-            }
-            return retVal;
+            return (EntryDigest) _nameToDigestMap.get( name );
         }
 
         public String getBestMatch( JarFile2 file, JarEntry entry )
-                throws IOException
         {
             // check for same name and same content, return name if found
             if ( contains( file, entry ) )
@@ -562,75 +612,58 @@ public class JarDiff
             return ( hasSameContent( file, entry ) );
         }
 
-        public boolean contains( JarFile2 f, JarEntry e )
-                throws IOException
-        {
-
-            JarEntry thisEntry = getEntryByName( e.getName() );
-
-            // Look up name in 'this' Jar2File - if not exist return false
-            if ( thisEntry == null )
-            {
-                return false;
-            }
-
-            // Check CRC - if no match - return false
-            if ( thisEntry.getCrc() != e.getCrc() )
-            {
-                return false;
-            }
-
-            // Check contents - if no match - return false
-            InputStream oldIS = getJarFile().getInputStream( thisEntry );
-            InputStream newIS = f.getJarFile().getInputStream( e );
-            boolean retValue = differs( oldIS, newIS );
-
-            return !retValue;
-        }
-
-        public String hasSameContent( JarFile2 file, JarEntry entry )
+        /**
+         * @param file the new jar
+         * @param pool pool to look up the matches on in parallel, or <code>null</code>
+         * @return the best match in this jar of each entry of <code>file</code>, in the order of its entries
+         */
+        public String[] getBestMatches( final JarFile2 file, ForkJoinPool pool )
                 throws IOException
         {
-
-            String thisName = null;
-
-            Long crcL = entry.getCrc();
-
-            // check if this jar contains files with the passed in entry's crc
-            if ( _crcToEntryMap.containsKey( crcL ) )
+            final JarEntry[] entries = (JarEntry[]) file._entries.toArray( new JarEntry[0] );
+            final String[] matches = new String[entries.length];
+            new RangeTask( 0, entries.length )
             {
-                // get the Linked List with files with the crc
-                LinkedList ll = (LinkedList) _crcToEntryMap.get( crcL );
-                // go through the list and check for content match
-                ListIterator li = ll.listIterator( 0 );
-                while ( li.hasNext() )
+                protected void compute( int from, int to )
                 {
-                    JarEntry thisEntry = (JarEntry) li.next();
-
-                    // check for content match
-                    InputStream oldIS = getJarFile().getInputStream( thisEntry );
-                    InputStream newIS = file.getJarFile().getInputStream( entry );
-
-                    if ( !differs( oldIS, newIS ) )
+                    for ( int i = from; i < to; i++ )
                     {
-                        thisName = thisEntry.getName();
-                        return thisName;
+                        matches[i] = getBestMatch( file, entries[i] );
                     }
                 }
-            }
+            }.run( pool );
+            return matches;
+        }
 
-            return thisName;
+        public boolean contains( JarFile2 f, JarEntry e )
+        {
+            // Look up name in 'this' Jar2File - if not exist return false
+            EntryDigest thisDigest = getDigestByName( e.getName() );
 
+            // Same name, check contents
+            return thisDigest != null && thisDigest.equals( f.getDigestByName( e.getName() ) );
         }
 
+        public String hasSameContent( JarFile2 file, JarEntry entry )
+        {
+            // first entry of this jar with the same content, if any
+            JarEntry thisEntry = (JarEntry) _digestToEntryMap.get( file.getDigestByName( entry.getName() ) );
+            return thisEntry == null ? null : thisEntry.getName();
+        }
 
-        private void index()
+        /**
+         * Reads every entry once, recording the digest of its content so
+         * that matching entries can be looked up instead of compared byte by
+         * byte. Given a pool, the entries are read concurrently on it.
+         */
+        private void index( ForkJoinPool pool )
                 throws IOException
         {
             Enumeration entries = _jar.entries();
 
             _nameToEntryMap = new HashMap();
-            _crcToEntryMap = new HashMap();
+            _nameToDigestMap = new HashMap();
+            _digestToEntryMap = new HashMap();
 
             _entries = new ArrayList();
             if ( _debug )
@@ -641,48 +674,52 @@ public class JarDiff
             {
                 while ( entries.hasMoreElements() )
                 {
-                    JarEntry entry = (JarEntry) entries.nextElement();
-
-                    long crc = entry.getCrc();
-
-                    Long crcL = new Long( crc );
+                    _entries.add( entries.nextElement() );
+                }
+            }
 
-                    if ( _debug )
+            final JarEntry[] jarEntries = (JarEntry[]) _entries.toArray( new JarEntry[0] );
+            final EntryDigest[] digests = new EntryDigest[jarEntries.length];
+            new RangeTask( 0, jarEntries.length )
+            {
+                protected void compute( int from, int to )
+                        throws IOException
+                {
+                    // Each range is read by a single thread with its own digest and buffer
+                    MessageDigest md = EntryDigest.newMessageDigest();
+                    byte[] buf = BUFFERS.acquire();
+                    try
                     {
-                        System.out.println( "\t" + entry.getName() + " CRC " + crc );
+                        for ( int i = from; i < to; i++ )
+                        {
+                            digests[i] = EntryDigest.compute( _jar, jarEntries[i], md, buf );
+                        }
                     }
-
-                    _nameToEntryMap.put( entry.getName(), entry );
-                    _entries.add( entry );
-
-                    // generate the CRC to entries map
-                    if ( _crcToEntryMap.containsKey( crcL ) )
+                    finally
                     {
-                        // key exist, add the entry to the correcponding
-                        // linked list
-
-                        // get the linked list
-                        LinkedList ll = (LinkedList) _crcToEntryMap.get( crcL );
-
-                        // put in the new entry
-                        ll.add( entry );
-
-                        // put it back in the hash map
-                        _crcToEntryMap.put( crcL, ll );
+                        BUFFERS.release( buf );
                     }
-                    else
-                    {
-                        // create a new entry in the hashmap for the new key
+                }
+            }.run( pool );
 
-                        // first create the linked list and put in the new
-                        // entry
-                        LinkedList ll = new LinkedList();
-                        ll.add( entry );
+            // Build the maps in the order of the jar, so that the result does not depend on the mode
+            for ( int i = 0; i < jarEntries.length; i++ )
+            {
+                JarEntry entry = jarEntries[i];
+                EntryDigest digest = digests[i];
 
-                        // create the new entry in the hashmap
-                        _crcToEntryMap.put( crcL, ll );
-                    }
+                if ( _debug )
+                {
+                    System.out.println( "\t" + entry.getName() + " " + digest );
+                }
 
+                _nameToEntryMap.put( entry.getName(), entry );
+                _nameToDigestMap.put( entry.getName(), digest );
+
+                // keep the first entry with a given content
+                if ( !_digestToEntryMap.containsKey( digest ) )
+                {
+                    _digestToEntryMap.put( digest, entry );
                 }
             }
         }
@@ -693,7 +730,7 @@ public class JarDiff
     private static void showHelp()
     {
         System.out.println(
-                "JarDiff: [-nonminimal (for backward compatibility with 1.0.1/1.0] [-creatediff | -applydiff] [-output file] old.jar new.jar" );
+                "JarDiff: [-nonminimal (for backward compatibility with 1.0.1/1.0] [-parallel] [-creatediff | -applydiff] [-output file] old.jar new.jar" );
     }
 
     // -creatediff -applydiff -debug -output file
@@ -702,6 +739,7 @@ public class JarDiff
     {
         boolean diff = true;
         boolean minimal = true;
+        boolean parallel = false;
         String outputFile = "out.jardiff";
 
         for ( int counter = 0; counter < args.length; counter++ )
@@ -711,6 +749,10 @@ public class JarDiff
             {
                 minimal = false;
             }
+            else if ( args[counter].equals( "-parallel" ) || args[counter].equals( "-p" ) )
+            {
+                parallel = true;
+            }
             else if ( args[counter].equals( "-creatediff" ) || args[counter].equals( "-c" ) )
             {
                 diff = true;
@@ -747,7 +789,18 @@ public class JarDiff
                     {
                         OutputStream os = new FileOutputStream( outputFile );
 
-                        JarDiff.createPatch( args[counter], args[counter + 1], os, minimal );
+                        ForkJoinPool pool = parallel ? new ForkJoinPool() : null;
+                        try
+                        {
+                            JarDiff.createPatch( args[counter], args[counter + 1], os, minimal, pool );
+                        }
+                        finally
+                        {
+                            if ( pool != null )
+                            {
+                                pool.shutdown();
+                            }
+                        }
                         os.close();
                     }
                     catch ( IOException ioe )
@@ -53,8 +53,6 @@ import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.zip.ZipEntry;
 
 /**
  * JarDiff is able to create a jar file containing the delta between two
@@ -68,12 +66,6 @@ import java.util.zip.ZipEntry;
 public class JarDiffPatcher
         implements JarDiffConstants, Patcher
 {
-    private static final int DEFAULT_READ_SIZE = 2048;
-
-    private static byte[] newBytes = new byte[DEFAULT_READ_SIZE];
-
-    private static byte[] oldBytes = new byte[DEFAULT_READ_SIZE];
-
     private static ResourceBundle _resources = JarDiff.getResources();
 
     public static ResourceBundle getResources()
@@ -83,12 +75,52 @@ public class JarDiffPatcher
 
     public void applyPatch( Patcher.PatchDelegate delegate, String oldJarPath, String jarDiffPath, OutputStream result )
             throws IOException
+    {
+        byte[] buf = JarDiff.BUFFERS.acquire();
+        try
+        {
+            applyPatch( delegate, oldJarPath, jarDiffPath, result, buf );
+        }
+        finally
+        {
+            JarDiff.BUFFERS.release( buf );
+        }
+    }
+
+    private void applyPatch( Patcher.PatchDelegate delegate, String oldJarPath, String jarDiffPath, OutputStream result,
+                             byte[] buf )
+            throws IOException
     {
         File oldFile = new File( oldJarPath );
         File diffFile = new File( jarDiffPath );
-        JarOutputStream jos = new JarOutputStream( result );
         JarFile oldJar = new JarFile( oldFile );
         JarFile jarDiff = new JarFile( diffFile );
+
+        // Copy the compressed data of the entries if both jars can be read as plain zip files
+        ZipArchive oldArchive = ZipArchive.open( oldFile );
+        ZipArchive diffArchive = oldArchive == null ? null : ZipArchive.open( diffFile );
+        try
+        {
+            applyPatch( delegate, oldJar, oldArchive, jarDiff, diffArchive,
+                        new JarEntryWriter( result, diffArchive != null ), buf );
+        }
+        finally
+        {
+            if ( oldArchive != null )
+            {
+                oldArchive.close();
+            }
+            if ( diffArchive != null )
+            {
+                diffArchive.close();
+            }
+        }
+    }
+
+    private void applyPatch( Patcher.PatchDelegate delegate, JarFile oldJar, ZipArchive oldArchive, JarFile jarDiff,
+                             ZipArchive diffArchive, JarEntryWriter jos, byte[] buf )
+            throws IOException
+    {
         Set<String> ignoreSet = new HashSet<>();
         Map<String, String> renameMap = new HashMap<>();
 
@@ -136,7 +168,7 @@ public class JarDiffPatcher
                     updateDelegate( delegate, currentEntry, size );
                     currentEntry++;
 
-                    writeEntry( jos, entry, jarDiff );
+                    jos.copyEntry( jarDiff, diffArchive, entry, entry.getName(), buf );
 
                     // Remove entry from oldjarNames since no implicit
                     //move is needed
@@ -174,20 +206,10 @@ public class JarDiffPatcher
                 handleException( "jardiff.error.badmove", moveCmd );
             }
 
-            // Create dest JarEntry
-            JarEntry newEntry = new JarEntry( newName );
-            newEntry.setTime( oldEntry.getTime() );
-            newEntry.setSize( oldEntry.getSize() );
-            newEntry.setCompressedSize( oldEntry.getCompressedSize() );
-            newEntry.setCrc( oldEntry.getCrc() );
-            newEntry.setMethod( oldEntry.getMethod() );
-            newEntry.setExtra( oldEntry.getExtra() );
-            newEntry.setComment( oldEntry.getComment() );
-
             updateDelegate( delegate, currentEntry, size );
             currentEntry++;
 
-            writeEntry( jos, newEntry, oldJar.getInputStream( oldEntry ) );
+            jos.copyEntry( oldJar, oldArchive, oldEntry, newName, buf );
 
             // Remove entry from oldjarNames since no implicit
             //move is needed
@@ -210,7 +232,7 @@ public class JarDiffPatcher
             updateDelegate( delegate, currentEntry, size );
             currentEntry++;
 
-            writeEntry( jos, entry, oldJar );
+            jos.copyEntry( oldJar, oldArchive, entry, name, buf );
         }
 
         updateDelegate( delegate, currentEntry, size );
@@ -348,29 +370,4 @@ public class JarDiffPatcher
         }
         return sub;
     }
-
-    private void writeEntry( JarOutputStream jos, JarEntry entry, JarFile file )
-            throws IOException
-    {
-        writeEntry( jos, entry, file.getInputStream( entry ) );
-    }
-
-    private void writeEntry( JarOutputStream jos, JarEntry entry, InputStream data )
-            throws IOException
-    {
-        //Create a new ZipEntry to clear the compressed size. 5079423
-        jos.putNextEntry( new ZipEntry( entry.getName() ) );
-
-        // Read the entry
-        int size = data.read( newBytes );
-
-        while ( size != -1 )
-        {
-            jos.write( newBytes, 0, size );
-            size = data.read( newBytes );
-        }
-        data.close();
-    }
 }
-
-
@@ -0,0 +1,386 @@
+package jnlp.sample.jardiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes the entries of a jar created by {@link JarDiff} or {@link JarDiffPatcher}.
+ * <p>
+ * In raw mode, entries copied from another jar are transferred with their
+ * compressed data, CRC and sizes as they are, without being inflated and
+ * deflated again; only new content such as the JarDiff index is deflated.
+ * Otherwise entries are written through a {@link JarOutputStream}.
+ */
+class JarEntryWriter
+{
+    private static final int VERSION_STORED = 10;
+
+    private static final int VERSION_DEFLATED = 20;
+
+    private final OutputStream _out;
+
+    private final JarOutputStream _jos;
+
+    /* Central directory records of the entries written in raw mode */
+    private final List<CentralRecord> _central = new ArrayList<>();
+
+    private long _offset;
+
+    private boolean _finished;
+
+    private static class CentralRecord
+    {
+        private final byte[] _name;
+
+        private final int _flags;
+
+        private final int _method;
+
+        private final int _dosTime;
+
+        private final long _crc;
+
+        private final long _compressedSize;
+
+        private final long _size;
+
+        private final byte[] _extra;
+
+        private final long _localHeaderOffset;
+
+        CentralRecord( byte[] name, int flags, int method, int dosTime, long crc, long compressedSize, long size,
+                       byte[] extra, long localHeaderOffset )
+        {
+            _name = name;
+            _flags = flags;
+            _method = method;
+            _dosTime = dosTime;
+            _crc = crc;
+            _compressedSize = compressedSize;
+            _size = size;
+            _extra = extra;
+            _localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    /**
+     * @param out stream the jar is written to
+     * @param raw true to copy the compressed data of entries, in which case every entry copied must
+     *            come with the {@link ZipArchive} it is read from
+     * @throws IOException if the stream cannot be written
+     */
+    JarEntryWriter( OutputStream out, boolean raw )
+            throws IOException
+    {
+        _out = out;
+        _jos = raw ? null : new JarOutputStream( out );
+    }
+
+    /**
+     * Writes an entry with new content.
+     *
+     * @param name name of the entry
+     * @param data content of the entry
+     * @param time modification time of the entry, in milliseconds since the epoch
+     * @throws IOException if the entry cannot be written
+     */
+    void putEntry( String name, byte[] data, long time )
+            throws IOException
+    {
+        putEntry( name, data, _jos == null ? deflate( data ) : null, time );
+    }
+
+    /**
+     * Writes an entry with new content, already deflated in raw mode.
+     *
+     * @param name     name of the entry
+     * @param data     content of the entry
+     * @param deflated content deflated by {@link #deflate(byte[])}, only used in raw mode
+     * @param time     modification time of the entry, in milliseconds since the epoch
+     * @throws IOException if the entry cannot be written
+     */
+    void putEntry( String name, byte[] data, byte[] deflated, long time )
+            throws IOException
+    {
+        if ( _jos != null )
+        {
+            JarEntry entry = new JarEntry( name );
+            entry.setTime( time );
+            _jos.putNextEntry( entry );
+            _jos.write( data, 0, data.length );
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update( data, 0, data.length );
+        writeLocalHeader( new CentralRecord( name.getBytes( StandardCharsets.UTF_8 ), ZipArchive.FLAG_UTF8,
+                                             ZipEntry.DEFLATED, toDosTime( time ),
+                                             crc.getValue(), deflated.length, data.length, new byte[0],
+                                             _offset ) );
+        write( deflated );
+    }
+
+    /**
+     * @param data content of an entry
+     * @return the content deflated as stored in a jar
+     */
+    static byte[] deflate( byte[] data )
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream( data.length / 2 + 64 );
+        byte[] buf = new byte[4096];
+        Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+        try
+        {
+            deflater.setInput( data, 0, data.length );
+            deflater.finish();
+            while ( !deflater.finished() )
+            {
+                compressed.write( buf, 0, deflater.deflate( buf ) );
+            }
+        }
+        finally
+        {
+            deflater.end();
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Computes the number of bytes an entry takes in a jar written in raw
+     * mode, including its central directory record.
+     *
+     * @param name           name of the entry
+     * @param extraLength    length of the extra field
+     * @param compressedSize size of the compressed data
+     * @return the size of the entry in the jar
+     */
+    static long getRawEntrySize( String name, int extraLength, long compressedSize )
+    {
+        int nameLength = name.getBytes( StandardCharsets.UTF_8 ).length;
+        return ZipArchive.LOCAL_HEADER_SIZE + ZipArchive.CENTRAL_HEADER_SIZE + 2L * ( nameLength + extraLength ) +
+                compressedSize;
+    }
+
+    /**
+     * Copies an entry of another jar.
+     *
+     * @param jar     jar containing the entry
+     * @param archive raw access to the same jar, required in raw mode
+     * @param entry   entry to copy
+     * @param name    name of the copy
+     * @param buf     copy buffer
+     * @throws IOException if the entry cannot be copied
+     */
+    void copyEntry( JarFile jar, ZipArchive archive, JarEntry entry, String name, byte[] buf )
+            throws IOException
+    {
+        if ( _jos == null )
+        {
+            ZipArchive.Entry source = archive.getEntry( entry.getName() );
+            if ( source != null )
+            {
+                writeLocalHeader( new CentralRecord( name.getBytes( StandardCharsets.UTF_8 ),
+                                                     ( source._flags & ~ZipArchive.FLAG_DATA_DESCRIPTOR ) |
+                                                             ZipArchive.FLAG_UTF8, source._method,
+                                                     source._dosTime, source._crc, source._compressedSize,
+                                                     source._size, source._extra, _offset ) );
+                archive.copyRawData( source, _out, buf );
+                _offset += source._compressedSize;
+                return;
+            }
+            // Not found under this name by the raw reader, e.g. a directory looked up without its slash
+            putEntry( name, readFully( jar.getInputStream( entry ), buf ), entry.getTime() );
+            return;
+        }
+
+        //Create a new ZipEntry to clear the compressed size. 5079423
+        ZipEntry copy = new ZipEntry( name );
+        copy.setTime( entry.getTime() );
+        _jos.putNextEntry( copy );
+        InputStream data = jar.getInputStream( entry );
+        try
+        {
+            int size = data.read( buf );
+            while ( size != -1 )
+            {
+                _jos.write( buf, 0, size );
+                size = data.read( buf );
+            }
+        }
+        finally
+        {
+            data.close();
+        }
+    }
+
+    /**
+     * Finishes writing the jar without closing the stream.
+     *
+     * @throws IOException if the jar cannot be written
+     */
+    void finish()
+            throws IOException
+    {
+        if ( _finished )
+        {
+            return;
+        }
+        _finished = true;
+        if ( _jos != null )
+        {
+            _jos.finish();
+            return;
+        }
+        if ( _central.size() >= 0xFFFF )
+        {
+            throw new ZipException( "jar has too many entries to be written without zip64 extensions" );
+        }
+        long centralOffset = _offset;
+        for ( CentralRecord r : _central )
+        {
+            ByteBuffer bb = newBuffer( ZipArchive.CENTRAL_HEADER_SIZE );
+            bb.putInt( ZipArchive.CENTRAL_HEADER_SIGNATURE );
+            bb.putShort( (short) VERSION_DEFLATED );
+            bb.putShort( (short) getVersionNeeded( r ) );
+            bb.putShort( (short) r._flags );
+            bb.putShort( (short) r._method );
+            bb.putInt( r._dosTime );
+            bb.putInt( (int) r._crc );
+            bb.putInt( (int) r._compressedSize );
+            bb.putInt( (int) r._size );
+            bb.putShort( (short) r._name.length );
+            bb.putShort( (short) r._extra.length );
+            bb.putShort( (short) 0 ); // comment length
+            bb.putShort( (short) 0 ); // disk number
+            bb.putShort( (short) 0 ); // internal attributes
+            bb.putInt( 0 ); // external attributes
+            bb.putInt( (int) r._localHeaderOffset );
+            write( bb );
+            write( r._name );
+            write( r._extra );
+        }
+        long centralSize = _offset - centralOffset;
+        if ( _offset >= 0xFFFFFFFFL )
+        {
+            throw new ZipException( "jar too large to be written without zip64 extensions" );
+        }
+
+        ByteBuffer bb = newBuffer( ZipArchive.END_SIZE );
+        bb.putInt( ZipArchive.END_SIGNATURE );
+        bb.putShort( (short) 0 ); // disk number
+        bb.putShort( (short) 0 ); // disk of the central directory
+        bb.putShort( (short) _central.size() );
+        bb.putShort( (short) _central.size() );
+        bb.putInt( (int) centralSize );
+        bb.putInt( (int) centralOffset );
+        bb.putShort( (short) 0 ); // comment length
+        write( bb );
+        _out.flush();
+    }
+
+    /**
+     * Finishes writing the jar and closes the stream.
+     *
+     * @throws IOException if the jar cannot be written
+     */
+    void close()
+            throws IOException
+    {
+        finish();
+        _out.close();
+    }
+
+    private void writeLocalHeader( CentralRecord r )
+            throws IOException
+    {
+        if ( _offset >= 0xFFFFFFFFL )
+        {
+            throw new ZipException( "jar too large to be written without zip64 extensions" );
+        }
+        ByteBuffer bb = newBuffer( ZipArchive.LOCAL_HEADER_SIZE );
+        bb.putInt( ZipArchive.LOCAL_HEADER_SIGNATURE );
+        bb.putShort( (short) getVersionNeeded( r ) );
+        bb.putShort( (short) r._flags );
+        bb.putShort( (short) r._method );
+        bb.putInt( r._dosTime );
+        bb.putInt( (int) r._crc );
+        bb.putInt( (int) r._compressedSize );
+        bb.putInt( (int) r._size );
+        bb.putShort( (short) r._name.length );
+        bb.putShort( (short) r._extra.length );
+        write( bb );
+        write( r._name );
+        write( r._extra );
+        _central.add( r );
+    }
+
+    private static int getVersionNeeded( CentralRecord r )
+    {
+        return r._method == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED;
+    }
+
+    private static ByteBuffer newBuffer( int size )
+    {
+        return ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+    private void write( ByteBuffer bb )
+            throws IOException
+    {
+        write( bb.array() );
+    }
+
+    private void write( byte[] bytes )
+            throws IOException
+    {
+        _out.write( bytes );
+        _offset += bytes.length;
+    }
+
+    private static byte[] readFully( InputStream in, byte[] buf )
+            throws IOException
+    {
+        try
+        {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            int size;
+            while ( ( size = in.read( buf ) ) != -1 )
+            {
+                bos.write( buf, 0, size );
+            }
+            return bos.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /* Same conversion as ZipEntry.setTime() */
+    private static int toDosTime( long time )
+    {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis( time );
+        int year = c.get( Calendar.YEAR );
+        if ( year < 1980 )
+        {
+            return ( 1 << 21 ) | ( 1 << 16 );
+        }
+        return ( year - 1980 ) << 25 | ( c.get( Calendar.MONTH ) + 1 ) << 21 | c.get( Calendar.DAY_OF_MONTH ) << 16 |
+                c.get( Calendar.HOUR_OF_DAY ) << 11 | c.get( Calendar.MINUTE ) << 5 | c.get( Calendar.SECOND ) >> 1;
+    }
+}
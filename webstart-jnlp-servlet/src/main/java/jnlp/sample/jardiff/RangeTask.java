@@ -0,0 +1,95 @@
+package jnlp.sample.jardiff;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Work on the indexes <code>[from, to)</code> of some arrays, done either in
+ * the calling thread or split into ranges computed on a fork-join pool of the
+ * caller. Ranges are disjoint, so each array element is written by one thread
+ * only.
+ */
+abstract class RangeTask
+{
+    // Number of indexes below which a range is not split any further
+    static final int LEAF_SIZE = 64;
+
+    private final int _from;
+
+    private final int _to;
+
+    RangeTask( int from, int to )
+    {
+        _from = from;
+        _to = to;
+    }
+
+    /**
+     * Computes the indexes <code>[from, to)</code>.
+     *
+     * @param from first index
+     * @param to   index after the last one
+     * @throws IOException if the work fails
+     */
+    protected abstract void compute( int from, int to )
+            throws IOException;
+
+    /**
+     * Computes the whole range and returns when it is done.
+     *
+     * @param pool pool to split the range and compute it on, or <code>null</code> to compute it
+     *             in the calling thread
+     * @throws IOException the first failure of a range
+     */
+    void run( ForkJoinPool pool )
+            throws IOException
+    {
+        if ( pool == null || _to - _from <= LEAF_SIZE )
+        {
+            compute( _from, _to );
+            return;
+        }
+        try
+        {
+            pool.invoke( new Action( _from, _to ) );
+        }
+        catch ( UncheckedIOException e )
+        {
+            throw e.getCause();
+        }
+    }
+
+    private class Action
+            extends RecursiveAction
+    {
+        private final int _actionFrom;
+
+        private final int _actionTo;
+
+        Action( int from, int to )
+        {
+            _actionFrom = from;
+            _actionTo = to;
+        }
+
+        protected void compute()
+        {
+            if ( _actionTo - _actionFrom <= LEAF_SIZE )
+            {
+                try
+                {
+                    RangeTask.this.compute( _actionFrom, _actionTo );
+                }
+                catch ( IOException e )
+                {
+                    throw new UncheckedIOException( e );
+                }
+                return;
+            }
+            int middle = ( _actionFrom + _actionTo ) >>> 1;
+            invokeAll( new Action( _actionFrom, middle ), new Action( middle, _actionTo ) );
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package jnlp.sample.jardiff;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Read access to the compressed data of the entries of a zip file, so that
+ * entries can be copied to another zip file without being inflated and
+ * deflated again.
+ * <p>
+ * Only plain zip files are supported: zip64 archives, archives spanning
+ * several disks and encrypted entries are rejected by {@link #open(File)},
+ * and must be read with {@link java.util.zip.ZipFile} instead.
+ */
+class ZipArchive
+        implements Closeable
+{
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    static final int END_SIGNATURE = 0x06054b50;
+
+    static final int LOCAL_HEADER_SIZE = 30;
+
+    static final int CENTRAL_HEADER_SIZE = 46;
+
+    static final int END_SIZE = 22;
+
+    // Flag of entries with encrypted data
+    static final int FLAG_ENCRYPTED = 0x1;
+
+    // Flag of entries followed by a data descriptor
+    static final int FLAG_DATA_DESCRIPTOR = 0x8;
+
+    // Flag of entries with UTF-8 encoded names
+    static final int FLAG_UTF8 = 0x800;
+
+    // Value of the fields stored in the zip64 extra field
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    /**
+     * An entry as described by the central directory.
+     */
+    static class Entry
+    {
+        final String _name;
+
+        final int _flags;
+
+        final int _method;
+
+        final int _dosTime;
+
+        final long _crc;
+
+        final long _compressedSize;
+
+        final long _size;
+
+        final byte[] _extra;
+
+        final long _localHeaderOffset;
+
+        Entry( String name, int flags, int method, int dosTime, long crc, long compressedSize, long size,
+               byte[] extra, long localHeaderOffset )
+        {
+            _name = name;
+            _flags = flags;
+            _method = method;
+            _dosTime = dosTime;
+            _crc = crc;
+            _compressedSize = compressedSize;
+            _size = size;
+            _extra = extra;
+            _localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private final RandomAccessFile _file;
+
+    private final FileChannel _channel;
+
+    private final Map<String, Entry> _entries = new HashMap<>();
+
+    private ZipArchive( File file )
+            throws IOException
+    {
+        _file = new RandomAccessFile( file, "r" );
+        _channel = _file.getChannel();
+    }
+
+    /**
+     * Opens a zip file and reads its central directory.
+     *
+     * @param file zip file to open
+     * @return the archive, or <code>null</code> if the file cannot be read as a plain zip file
+     */
+    static ZipArchive open( File file )
+    {
+        ZipArchive archive = null;
+        try
+        {
+            archive = new ZipArchive( file );
+            if ( archive.readCentralDirectory() )
+            {
+                return archive;
+            }
+        }
+        catch ( IOException e )
+        {
+            // Unreadable or malformed, let ZipFile report it
+        }
+        if ( archive != null )
+        {
+            archive.close();
+        }
+        return null;
+    }
+
+    /**
+     * @param name name of the entry
+     * @return the entry, or <code>null</code> if there is no entry with this name
+     */
+    Entry getEntry( String name )
+    {
+        return _entries.get( name );
+    }
+
+    /**
+     * Copies the compressed data of an entry, as stored in the zip file.
+     *
+     * @param entry entry of this archive
+     * @param out   stream the data is written to
+     * @param buf   copy buffer
+     * @throws IOException if the data cannot be read or written
+     */
+    void copyRawData( Entry entry, OutputStream out, byte[] buf )
+            throws IOException
+    {
+        ByteBuffer header = read( entry._localHeaderOffset, LOCAL_HEADER_SIZE );
+        if ( header.getInt( 0 ) != LOCAL_HEADER_SIGNATURE )
+        {
+            throw new ZipException( "invalid local header of " + entry._name );
+        }
+        long position = entry._localHeaderOffset + LOCAL_HEADER_SIZE + getUnsignedShort( header, 26 ) +
+                getUnsignedShort( header, 28 );
+        long remaining = entry._compressedSize;
+        ByteBuffer bb = ByteBuffer.wrap( buf );
+        while ( remaining > 0 )
+        {
+            bb.clear();
+            bb.limit( (int) Math.min( buf.length, remaining ) );
+            int read = _channel.read( bb, position );
+            if ( read < 0 )
+            {
+                throw new EOFException( "truncated data of " + entry._name );
+            }
+            out.write( buf, 0, read );
+            position += read;
+            remaining -= read;
+        }
+    }
+
+    public void close()
+    {
+        try
+        {
+            _file.close();
+        }
+        catch ( IOException e )
+        {
+            // Ignore
+        }
+    }
+
+    private boolean readCentralDirectory()
+            throws IOException
+    {
+        long length = _channel.size();
+        if ( length < END_SIZE )
+        {
+            return false;
+        }
+
+        // The end record is followed by a comment of at most 64k
+        int tailSize = (int) Math.min( length, END_SIZE + 0xFFFF );
+        ByteBuffer tail = read( length - tailSize, tailSize );
+        int end = -1;
+        for ( int i = tailSize - END_SIZE; i >= 0; i-- )
+        {
+            if ( tail.getInt( i ) == END_SIGNATURE )
+            {
+                end = i;
+                break;
+            }
+        }
+        if ( end < 0 || getUnsignedShort( tail, end + 4 ) != 0 || getUnsignedShort( tail, end + 6 ) != 0 )
+        {
+            return false;
+        }
+        int count = getUnsignedShort( tail, end + 10 );
+        long size = getUnsignedInt( tail, end + 12 );
+        long offset = getUnsignedInt( tail, end + 16 );
+        if ( count == 0xFFFF || size == ZIP64_MAGIC || offset == ZIP64_MAGIC || offset + size > length )
+        {
+            return false;
+        }
+
+        ByteBuffer cd = read( offset, (int) size );
+        int pos = 0;
+        for ( int i = 0; i < count; i++ )
+        {
+            if ( pos + CENTRAL_HEADER_SIZE > size || cd.getInt( pos ) != CENTRAL_HEADER_SIGNATURE )
+            {
+                return false;
+            }
+            int flags = getUnsignedShort( cd, pos + 8 );
+            int method = getUnsignedShort( cd, pos + 10 );
+            int dosTime = cd.getInt( pos + 12 );
+            long crc = getUnsignedInt( cd, pos + 16 );
+            long compressedSize = getUnsignedInt( cd, pos + 20 );
+            long entrySize = getUnsignedInt( cd, pos + 24 );
+            int nameLength = getUnsignedShort( cd, pos + 28 );
+            int extraLength = getUnsignedShort( cd, pos + 30 );
+            int commentLength = getUnsignedShort( cd, pos + 32 );
+            long localHeaderOffset = getUnsignedInt( cd, pos + 42 );
+            if ( ( flags & FLAG_ENCRYPTED ) != 0 || compressedSize == ZIP64_MAGIC || entrySize == ZIP64_MAGIC ||
+                    localHeaderOffset == ZIP64_MAGIC )
+            {
+                return false;
+            }
+
+            byte[] name = new byte[nameLength];
+            byte[] extra = new byte[extraLength];
+            cd.position( pos + CENTRAL_HEADER_SIZE );
+            cd.get( name );
+            cd.get( extra );
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+            // Same decoding as ZipFile
+            String entryName = new String( name, StandardCharsets.UTF_8 );
+            if ( !_entries.containsKey( entryName ) )
+            {
+                _entries.put( entryName,
+                              new Entry( entryName, flags, method, dosTime, crc, compressedSize, entrySize, extra,
+                                         localHeaderOffset ) );
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer read( long position, int size )
+            throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+        while ( bb.hasRemaining() )
+        {
+            if ( _channel.read( bb, position + bb.position() ) < 0 )
+            {
+                throw new EOFException();
+            }
+        }
+        bb.clear();
+        return bb;
+    }
+
+    private static int getUnsignedShort( ByteBuffer bb, int index )
+    {
+        return bb.getShort( index ) & 0xFFFF;
+    }
+
+    private static long getUnsignedInt( ByteBuffer bb, int index )
+    {
+        return bb.getInt( index ) & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,173 @@
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.BufferPool;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Sends the content of a response with the non-blocking output of Servlet 3.1.
+ * <p>
+ * The request is put in asynchronous mode and the container calls back whenever the
+ * client can take more data, so a slow client does not keep a worker thread for the
+ * whole transfer. Each callback writes buffers read from the channel of the content
+ * until the output is not ready anymore.
+ * <p>
+ * This class is only loaded when asynchronous downloads are enabled, so the servlet
+ * still runs in containers without Servlet 3.1.
+ */
+class AsyncDownload
+        implements WriteListener, AsyncListener
+{
+    private static final BufferPool BUFFERS = new BufferPool( 32 * 1024, 64 );
+
+    private final AsyncContext _context;
+
+    private final ServletOutputStream _out;
+
+    private final ReadableByteChannel _channel;
+
+    private long _remaining;
+
+    private byte[] _bytes;
+
+    private ByteBuffer _buffer;
+
+    private boolean _released; // guarded by this
+
+    private AsyncDownload( AsyncContext context, ServletOutputStream out, ReadableByteChannel channel, long count )
+    {
+        _context = context;
+        _out = out;
+        _channel = channel;
+        _remaining = count;
+    }
+
+    /**
+     * Starts sending content, the headers of the response being set. The method returns
+     * at once, the content is sent by the threads of the container.
+     *
+     * @param request  request being answered, which must support asynchronous mode
+     * @param response response to write to
+     * @param channel  content, positioned at the first byte to send; closed once sent
+     * @param count    number of bytes to send
+     * @param timeout  time in milliseconds the whole transfer may take, or 0 for no limit
+     * @throws IOException if the output of the response cannot be obtained
+     */
+    static void start( HttpServletRequest request, HttpServletResponse response, ReadableByteChannel channel,
+                       long count, long timeout )
+            throws IOException
+    {
+        AsyncContext context = request.startAsync();
+        context.setTimeout( timeout );
+        ServletOutputStream out;
+        try
+        {
+            out = response.getOutputStream();
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            channel.close();
+            context.complete();
+            throw e;
+        }
+        AsyncDownload download = new AsyncDownload( context, out, channel, count );
+        context.addListener( download );
+        out.setWriteListener( download );
+    }
+
+    public void onWritePossible()
+            throws IOException
+    {
+        if ( _bytes == null )
+        {
+            _bytes = BUFFERS.acquire();
+            _buffer = ByteBuffer.wrap( _bytes );
+        }
+        while ( _out.isReady() )
+        {
+            if ( _remaining == 0 )
+            {
+                finish( true );
+                return;
+            }
+            _buffer.clear();
+            _buffer.limit( (int) Math.min( _bytes.length, _remaining ) );
+            int read = _channel.read( _buffer );
+            if ( read == -1 )
+            {
+                throw new EOFException( "content shorter than announced" );
+            }
+            _out.write( _bytes, 0, read );
+            _remaining -= read;
+        }
+    }
+
+    public void onError( Throwable t )
+    {
+        // The client went away or the content could not be read, nothing more can be sent
+        finish( false );
+    }
+
+    public void onTimeout( AsyncEvent event )
+    {
+        finish( false );
+    }
+
+    public void onError( AsyncEvent event )
+    {
+        finish( false );
+    }
+
+    public void onComplete( AsyncEvent event )
+    {
+        release( false );
+    }
+
+    public void onStartAsync( AsyncEvent event )
+    { /* do nothing */ }
+
+    private void finish( boolean recycle )
+    {
+        if ( release( recycle ) )
+        {
+            _context.complete();
+        }
+    }
+
+    /**
+     * @param recycle true to give the buffer back to the pool, only when it is not in use
+     *                by a write callback anymore
+     * @return true if the resources were released by this call, false if they were already
+     */
+    private synchronized boolean release( boolean recycle )
+    {
+        if ( _released )
+        {
+            return false;
+        }
+        _released = true;
+        if ( recycle && _bytes != null )
+        {
+            BUFFERS.release( _bytes );
+        }
+        try
+        {
+            _channel.close();
+        }
+        catch ( IOException e )
+        {
+            // Ignore
+        }
+        return true;
+    }
+}
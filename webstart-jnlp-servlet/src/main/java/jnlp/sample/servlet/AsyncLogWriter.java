@@ -0,0 +1,295 @@
+package jnlp.sample.servlet;
+
+import javax.servlet.ServletContext;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the events of a {@link Logger} to its log file on a thread of its own.
+ * <p>
+ * Logging threads only add their event to a bounded lock-free queue. The writer thread
+ * keeps the log file open, writes all the queued events and flushes once per batch. When
+ * the queue is full, events are either dropped, and the number of dropped events logged
+ * later, or the logging thread waits until there is room. When the log file grows beyond
+ * its maximum size, it is renamed to <code>file.1</code>, former rotated files are
+ * shifted up to <code>file.N</code>, and a new file is started.
+ */
+class AsyncLogWriter
+{
+    // Longest time the writer thread sleeps, bounding the delay of a missed wake-up
+    private static final long MAX_IDLE_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+
+    // Time a logging thread waits for room in a full queue before it checks again
+    private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos( 100 );
+
+    private static final int BUF_SIZE = 32 * 1024;
+
+    /* A logged event, formatted by the writer thread */
+    private static class Event
+    {
+        private final int _level;
+
+        private final String _message;
+
+        private final Throwable _throwable;
+
+        Event( int level, String message, Throwable throwable )
+        {
+            _level = level;
+            _message = message;
+            _throwable = throwable;
+        }
+    }
+
+    private final ServletContext _servletContext;
+
+    private final String _servletName;
+
+    private final File _file;
+
+    private final int _capacity;
+
+    private final boolean _dropWhenFull;
+
+    private final long _maxBytes;
+
+    private final int _maxFiles;
+
+    private final ConcurrentLinkedQueue<Event> _queue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger _size = new AtomicInteger();
+
+    private final AtomicLong _dropped = new AtomicLong();
+
+    private final Thread _thread;
+
+    private volatile boolean _idle = false;
+
+    private volatile boolean _closed = false;
+
+    /* Accessed by the writer thread only */
+    private PrintWriter _out;
+
+    private long _written;
+
+    /**
+     * @param servletContext context logged to if the file cannot be written
+     * @param servletName    name of the servlet, prefix of each line
+     * @param file           log file
+     * @param capacity       maximum number of queued events
+     * @param dropWhenFull   true to drop events when the queue is full, false to wait
+     * @param maxBytes       size of the log file in characters beyond which it is rotated, or 0 to never
+     *                       rotate it
+     * @param maxFiles       number of rotated files kept
+     */
+    AsyncLogWriter( ServletContext servletContext, String servletName, File file, int capacity, boolean dropWhenFull,
+                    long maxBytes, int maxFiles )
+    {
+        _servletContext = servletContext;
+        _servletName = servletName;
+        _file = file;
+        _capacity = Math.max( 1, capacity );
+        _dropWhenFull = dropWhenFull;
+        _maxBytes = maxBytes;
+        _maxFiles = Math.max( 1, maxFiles );
+        _thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                drain();
+            }
+        }, "jnlp-log-writer" );
+        _thread.setDaemon( true );
+        _thread.start();
+    }
+
+    /**
+     * Queues an event.
+     *
+     * @return false if the writer is closed, the caller has to log the event itself
+     */
+    boolean add( int level, String message, Throwable throwable )
+    {
+        if ( _closed )
+        {
+            return false;
+        }
+        while ( _size.incrementAndGet() > _capacity )
+        {
+            _size.decrementAndGet();
+            if ( _dropWhenFull )
+            {
+                _dropped.incrementAndGet();
+                return true;
+            }
+            // Back-pressure: wait until the writer thread made room
+            LockSupport.unpark( _thread );
+            LockSupport.parkNanos( this, FULL_WAIT_NANOS );
+            if ( _closed )
+            {
+                return false;
+            }
+        }
+        _queue.offer( new Event( level, message, throwable ) );
+        if ( _idle )
+        {
+            LockSupport.unpark( _thread );
+        }
+        return true;
+    }
+
+    /**
+     * Writes the queued events and closes the log file.
+     */
+    void close()
+    {
+        _closed = true;
+        LockSupport.unpark( _thread );
+        try
+        {
+            _thread.join( TimeUnit.SECONDS.toMillis( 10 ) );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain()
+    {
+        while ( true )
+        {
+            boolean closed = _closed;
+            Event event;
+            while ( ( event = _queue.poll() ) != null )
+            {
+                _size.decrementAndGet();
+                write( event );
+            }
+            long dropped = _dropped.getAndSet( 0 );
+            if ( dropped > 0 )
+            {
+                write( new Event( Logger.WARNING, dropped + " log events dropped, the log queue was full", null ) );
+            }
+            if ( _out != null )
+            {
+                _out.flush();
+            }
+            if ( closed )
+            {
+                break;
+            }
+            _idle = true;
+            if ( _queue.isEmpty() && !_closed )
+            {
+                LockSupport.parkNanos( this, MAX_IDLE_NANOS );
+            }
+            _idle = false;
+        }
+        if ( _out != null )
+        {
+            _out.close();
+            _out = null;
+        }
+    }
+
+    private void write( Event event )
+    {
+        try
+        {
+            if ( _out == null )
+            {
+                open();
+            }
+            _out.println( _servletName + "(" + event._level + "): " + event._message );
+            if ( event._throwable != null )
+            {
+                event._throwable.printStackTrace( _out );
+            }
+            if ( _out.checkError() )
+            {
+                throw new IOException( "Cannot write " + _file );
+            }
+            if ( _maxBytes > 0 && _written >= _maxBytes )
+            {
+                rotate();
+            }
+        }
+        catch ( IOException ioe )
+        {
+            // Log using servlet context, as when the file cannot be written synchronously
+            if ( _out != null )
+            {
+                _out.close();
+                _out = null;
+            }
+            if ( event._throwable == null )
+            {
+                _servletContext.log( event._message );
+            }
+            else
+            {
+                _servletContext.log( event._message, event._throwable );
+            }
+        }
+    }
+
+    private void open()
+            throws IOException
+    {
+        _written = _file.length();
+        // Counted ahead of the buffers, so that the file is rotated as soon as it is full
+        Writer out = new FilterWriter(
+                new BufferedWriter( new OutputStreamWriter( new FileOutputStream( _file, true ) ), BUF_SIZE ) )
+        {
+            public void write( int c )
+                    throws IOException
+            {
+                out.write( c );
+                _written++;
+            }
+
+            public void write( char[] cbuf, int off, int len )
+                    throws IOException
+            {
+                out.write( cbuf, off, len );
+                _written += len;
+            }
+
+            public void write( String str, int off, int len )
+                    throws IOException
+            {
+                out.write( str, off, len );
+                _written += len;
+            }
+        };
+        _out = new PrintWriter( out );
+    }
+
+    private void rotate()
+    {
+        _out.close();
+        _out = null;
+        new File( _file.getPath() + "." + _maxFiles ).delete();
+        for ( int i = _maxFiles - 1; i >= 1; i-- )
+        {
+            File rotated = new File( _file.getPath() + "." + i );
+            if ( rotated.exists() )
+            {
+                rotated.renameTo( new File( _file.getPath() + "." + ( i + 1 ) ) );
+            }
+        }
+        _file.renameTo( new File( _file.getPath() + ".1" ) );
+    }
+}
@@ -0,0 +1,299 @@
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.BoundedCache;
+import jnlp.sample.util.SharedFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compressed copies of the resources which have no <code>.gz</code> variant in the
+ * web application.
+ * <p>
+ * A resource is compressed once, on a background thread, the first time it is requested
+ * by a client which accepts gzip. Requests which arrive before the copy is ready get the
+ * resource uncompressed. The copies are kept in a directory of their own, by path and
+ * timestamp of the resource, and the least recently used ones are deleted when the cache
+ * exceeds its bounds, once they are not being sent anymore. Resources which do not get
+ * smaller, e.g. jars of already compressed entries, are remembered as such and sent
+ * uncompressed.
+ */
+class CompressionCache
+{
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    // Smallest resource worth compressing
+    public static final long DEFAULT_MIN_LENGTH = 1024;
+
+    // Maximum number of resources waiting to be compressed
+    private static final int QUEUE_SIZE = 256;
+
+    // A compressed copy is kept if it saves at least a tenth of the resource
+    private static final double MAX_RATIO = 0.9;
+
+    private static final int BUF_SIZE = 32 * 1024;
+
+    private static final String PREFIX = "jnlp";
+
+    private static final String SUFFIX = ".gz";
+
+    /* Compressed copy of a resource, without file if compression does not pay off */
+    private static class Entry
+    {
+        private final SharedFile _file;
+
+        Entry( SharedFile file )
+        {
+            _file = file;
+        }
+    }
+
+    private final Logger _log;
+
+    private final File _dir;
+
+    private final long _minLength;
+
+    private final BoundedCache<String, Entry> _entries;
+
+    private final ThreadPoolExecutor _executor;
+
+    /* Resources being compressed, by path and timestamp */
+    private final Set<String> _scheduled = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+    /**
+     * @param log        logger
+     * @param dir        directory of the compressed copies, used by the cache only
+     * @param maxEntries maximum number of compressed copies, or 0 for no limit
+     * @param maxBytes   maximum total size of the compressed copies, or 0 for no limit
+     * @param minLength  length below which resources are not compressed
+     * @throws IOException if the directory cannot be created
+     */
+    CompressionCache( Logger log, File dir, int maxEntries, long maxBytes, long minLength )
+            throws IOException
+    {
+        _log = log;
+        _dir = dir;
+        _minLength = minLength;
+        if ( !dir.isDirectory() && !dir.mkdirs() )
+        {
+            throw new IOException( "Cannot create directory " + dir );
+        }
+        // Copies of a previous run are not indexed anymore
+        deleteFiles();
+
+        _entries = new BoundedCache<>( maxEntries, maxBytes, new BoundedCache.Weigher<Entry>()
+        {
+            public long weigh( Entry entry )
+            {
+                return entry._file == null ? 0 : entry._file.getFile().length();
+            }
+        }, new BoundedCache.RemovalListener<String, Entry>()
+        {
+            public void removed( String key, Entry entry )
+            {
+                if ( entry._file != null )
+                {
+                    entry._file.release();
+                }
+            }
+        } );
+        _executor = new ThreadPoolExecutor( 1, 1, 60, TimeUnit.SECONDS,
+                                            new ArrayBlockingQueue<Runnable>( QUEUE_SIZE ), new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "jnlp-compression" );
+                t.setDaemon( true );
+                t.setPriority( Thread.MIN_PRIORITY );
+                return t;
+            }
+        }, new RejectedExecutionHandler()
+        {
+            public void rejectedExecution( Runnable r, ThreadPoolExecutor executor )
+            {
+                // Too much work queued up, a later request will schedule it again
+                _scheduled.remove( ( (CompressTask) r )._key );
+            }
+        } );
+        _executor.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * Returns the compressed copy of a resource, and starts compressing it if there is none yet.
+     *
+     * @param res resource to send, without compressed variant
+     * @return the compressed copy, acquired for the caller, or <code>null</code> if the resource
+     * has to be sent uncompressed
+     */
+    SharedFile getCompressed( JnlpResource res )
+    {
+        if ( res.getPath().endsWith( SUFFIX ) || res.getLastModified() == 0 ||
+                ( res.getContentLength() >= 0 && res.getContentLength() < _minLength ) )
+        {
+            return null;
+        }
+        String key = res.getPath() + '@' + res.getLastModified();
+        Entry entry = _entries.getIfPresent( key );
+        if ( entry != null )
+        {
+            if ( entry._file == null )
+            {
+                return null;
+            }
+            if ( entry._file.acquire() )
+            {
+                if ( entry._file.getFile().isFile() )
+                {
+                    return entry._file;
+                }
+                entry._file.release();
+            }
+            // Evicted meanwhile, or deleted by someone else
+            _entries.invalidate( key, entry );
+            return null;
+        }
+        if ( _scheduled.add( key ) )
+        {
+            _executor.execute( new CompressTask( key, res ) );
+        }
+        return null;
+    }
+
+    /**
+     * Stops compressing and deletes the compressed copies.
+     */
+    void close()
+    {
+        _executor.shutdownNow();
+        try
+        {
+            _executor.awaitTermination( 10, TimeUnit.SECONDS );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        deleteFiles();
+    }
+
+    private void deleteFiles()
+    {
+        File[] files = _dir.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                if ( file.getName().startsWith( PREFIX ) && file.getName().endsWith( SUFFIX ) )
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /* Compresses one resource */
+    private class CompressTask
+            implements Runnable
+    {
+        private final String _key;
+
+        private final JnlpResource _res;
+
+        CompressTask( String key, JnlpResource res )
+        {
+            _key = key;
+            _res = res;
+        }
+
+        public void run()
+        {
+            File file = null;
+            try
+            {
+                file = File.createTempFile( PREFIX, SUFFIX, _dir );
+                long length = compress( file );
+                File source = _res.getFile();
+                if ( source != null && source.lastModified() != _res.getLastModified() )
+                {
+                    // Modified while it was compressed, the next request compresses the new content
+                    file.delete();
+                    return;
+                }
+                if ( file.length() > length * MAX_RATIO )
+                {
+                    file.delete();
+                    file = null;
+                }
+                _entries.put( _key, new Entry( file == null ? null : new SharedFile( file ) ) );
+                if ( _log.isDebugLevel() )
+                {
+                    _log.addDebug( "Compressed " + _res.getPath() + ": " + length + " -> " +
+                                           ( file == null ? length : file.length() ) + " bytes" );
+                }
+            }
+            catch ( IOException e )
+            {
+                if ( _log.isDebugLevel() )
+                {
+                    _log.addDebug( "Cannot compress " + _res.getPath(), e );
+                }
+                if ( file != null )
+                {
+                    file.delete();
+                }
+            }
+            finally
+            {
+                _scheduled.remove( _key );
+            }
+        }
+
+        /**
+         * @return length of the uncompressed resource
+         */
+        private long compress( File file )
+                throws IOException
+        {
+            long length = 0;
+            InputStream in = _res.getResource().openStream();
+            try
+            {
+                OutputStream out = new GZIPOutputStream( new FileOutputStream( file ), BUF_SIZE );
+                try
+                {
+                    byte[] buffer = new byte[BUF_SIZE];
+                    int read;
+                    while ( ( read = in.read( buffer ) ) != -1 )
+                    {
+                        out.write( buffer, 0, read );
+                        length += read;
+                    }
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            return length;
+        }
+    }
+}
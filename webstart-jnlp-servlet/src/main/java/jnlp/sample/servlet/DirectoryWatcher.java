@@ -0,0 +1,183 @@
+package jnlp.sample.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches the directories of the {@link ResourceCatalog} with a {@link WatchService}.
+ * <p>
+ * Each watched directory has a stamp, which changes whenever files of the directory
+ * are added, removed or modified. The catalog keeps the stamp a directory had when it
+ * read it, and can tell if its entries are still current without accessing the file
+ * system. Changes are collected for <code>latency</code> milliseconds after the first
+ * one, so that copying many files at once changes the stamp once.
+ */
+class DirectoryWatcher
+{
+    private final Logger _log;
+
+    private final long _latency;
+
+    private final WatchService _watchService;
+
+    private final Thread _thread;
+
+    /* Current stamp of each watched directory */
+    private final ConcurrentHashMap<String, Long> _stamps = new ConcurrentHashMap<>();
+
+    /* Directory of each registration */
+    private final ConcurrentHashMap<WatchKey, String> _dirs = new ConcurrentHashMap<>();
+
+    private final AtomicLong _sequence = new AtomicLong();
+
+    /**
+     * @param log     logger
+     * @param latency time in milliseconds changes are collected before the stamps are changed
+     * @throws IOException if the file system cannot be watched
+     */
+    DirectoryWatcher( Logger log, long latency )
+            throws IOException
+    {
+        _log = log;
+        _latency = latency;
+        _watchService = FileSystems.getDefault().newWatchService();
+        _thread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                watch();
+            }
+        }, "jnlp-directory-watcher" );
+        _thread.setDaemon( true );
+        _thread.start();
+    }
+
+    /**
+     * Starts watching a directory, if it is not watched yet.
+     *
+     * @param dir     directory as requested, e.g. <code>/lib/</code>
+     * @param realDir directory on disk
+     * @return the current stamp of the directory, or -1 if it cannot be watched
+     */
+    long register( String dir, File realDir )
+    {
+        Long stamp = _stamps.get( dir );
+        if ( stamp != null )
+        {
+            return stamp;
+        }
+        synchronized ( this )
+        {
+            stamp = _stamps.get( dir );
+            if ( stamp != null )
+            {
+                return stamp;
+            }
+            try
+            {
+                WatchKey key = realDir.toPath().register( _watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                                          StandardWatchEventKinds.ENTRY_DELETE,
+                                                          StandardWatchEventKinds.ENTRY_MODIFY );
+                String registered = _dirs.putIfAbsent( key, dir );
+                if ( registered != null && !registered.equals( dir ) )
+                {
+                    // Same directory on disk as another one, only one of them can get the changes
+                    return -1;
+                }
+                stamp = _sequence.incrementAndGet();
+                _stamps.put( dir, stamp );
+                return stamp;
+            }
+            catch ( IOException | ClosedWatchServiceException e )
+            {
+                _log.addDebug( "Cannot watch directory ", realDir, ": ", e );
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @param dir directory as requested
+     * @return the current stamp of the directory, or -1 if it is not watched
+     */
+    long getStamp( String dir )
+    {
+        Long stamp = _stamps.get( dir );
+        return stamp == null ? -1 : stamp;
+    }
+
+    /**
+     * Stops watching. The stamps of all directories are discarded.
+     */
+    void close()
+    {
+        try
+        {
+            _watchService.close();
+        }
+        catch ( IOException e )
+        {
+            // Ignore
+        }
+        _thread.interrupt();
+        _stamps.clear();
+    }
+
+    private void watch()
+    {
+        try
+        {
+            while ( true )
+            {
+                // Collect the directories changed until the latency is over
+                WatchKey key = _watchService.take();
+                long deadline = System.currentTimeMillis() + _latency;
+                Set<WatchKey> changed = new HashSet<>();
+                while ( key != null )
+                {
+                    // Any event, including an overflow, makes the whole directory stale
+                    key.pollEvents();
+                    changed.add( key );
+                    long wait = deadline - System.currentTimeMillis();
+                    key = wait > 0 ? _watchService.poll( wait, TimeUnit.MILLISECONDS ) : _watchService.poll();
+                }
+                for ( WatchKey k : changed )
+                {
+                    String dir = _dirs.get( k );
+                    if ( dir == null )
+                    {
+                        continue;
+                    }
+                    if ( k.reset() )
+                    {
+                        _stamps.put( dir, _sequence.incrementAndGet() );
+                    }
+                    else
+                    {
+                        // The directory is gone, the catalog checks it on disk again
+                        _dirs.remove( k );
+                        _stamps.remove( dir );
+                    }
+                    if ( _log.isDebugLevel() )
+                    {
+                        _log.addDebug( "Directory changed: " + dir );
+                    }
+                }
+            }
+        }
+        catch ( InterruptedException | ClosedWatchServiceException e )
+        {
+            // Closed
+        }
+    }
+}
@@ -41,6 +41,7 @@ import javax.servlet.http.HttpServletRequest;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.StringTokenizer;
 
 /**
  * The DownloadRequest incapsulates all the data in a request
@@ -281,6 +282,65 @@ public class DownloadRequest
         return _encoding;
     }
 
+    /**
+     * @param coding content coding, e.g. <code>gzip</code>
+     * @return true if the client accepts the content coding
+     * @see #isEncodingAccepted(String, String)
+     */
+    public boolean isEncodingAccepted( String coding )
+    {
+        return isEncodingAccepted( _encoding, coding );
+    }
+
+    /**
+     * Tells whether an Accept-Encoding header lists a content coding with a quality
+     * above zero. Only codings listed by name are accepted, not by a wildcard.
+     *
+     * @param acceptEncoding value of the Accept-Encoding header, or <code>null</code>
+     * @param coding         content coding, e.g. <code>gzip</code>
+     * @return true if the content coding is accepted
+     */
+    public static boolean isEncodingAccepted( String acceptEncoding, String coding )
+    {
+        if ( acceptEncoding == null )
+        {
+            return false;
+        }
+        StringTokenizer codings = new StringTokenizer( acceptEncoding, "," );
+        while ( codings.hasMoreTokens() )
+        {
+            String[] params = codings.nextToken().split( ";" );
+            if ( params[0].trim().equalsIgnoreCase( coding ) )
+            {
+                return getQuality( params ) > 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the quality of a coding and its parameters, 1 if it has none, 0 if it is invalid
+     */
+    private static double getQuality( String[] params )
+    {
+        for ( int i = 1; i < params.length; i++ )
+        {
+            String param = params[i].trim();
+            if ( param.startsWith( "q=" ) || param.startsWith( "Q=" ) )
+            {
+                try
+                {
+                    return Double.parseDouble( param.substring( 2 ).trim() );
+                }
+                catch ( NumberFormatException e )
+                {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
     public String[] getOS()
     {
         return _os;
@@ -36,17 +36,34 @@
 
 package jnlp.sample.servlet;
 
+import jnlp.sample.util.BufferPool;
+import jnlp.sample.util.SharedFile;
+
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.MissingResourceException;
 
 /**
@@ -61,6 +78,22 @@ abstract public class DownloadResponse
 
     private static final String JNLP_ERROR_MIMETYPE = "application/x-java-jnlp-error";
 
+    private static final String HEADER_ETAG = "ETag";
+
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    private static final String HEADER_RANGE = "Range";
+
+    private static final String HEADER_IF_RANGE = "If-Range";
+
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+
+    private static final String BYTES_UNIT = "bytes";
+
     public static final int STS_00_OK = 0;
 
     public static final int ERR_10_NO_RESOURCE = 10;
@@ -85,6 +118,39 @@ abstract public class DownloadResponse
 
     public static final String PACK200_GZIP_ENCODING = "pack200-gzip";
 
+    // Buffers used to send the content of resources that are not files
+    private static final BufferPool BUFFERS = new BufferPool( 32 * 1024, 32 );
+
+    // Cache-Control header sent with the content, by mime type and for the other mime types
+    private static volatile Map<String, String> _cacheControl = Collections.emptyMap();
+
+    private static volatile String _defaultCacheControl = null;
+
+    // Contents at least this long are sent asynchronously, 0 if asynchronous downloads are disabled
+    private static volatile long _asyncMinLength = 0;
+
+    private static volatile long _asyncTimeout = 0;
+
+    /**
+     * Content that is generated while it is sent, instead of being read from a file.
+     */
+    interface ContentWriter
+    {
+        /**
+         * Writes the content, which must be exactly as long as announced.
+         *
+         * @param out stream of the response
+         * @throws IOException if the content cannot be generated or sent
+         */
+        void write( OutputStream out )
+                throws IOException;
+
+        /**
+         * Releases the content once the response is sent, whether it was written or not.
+         */
+        void release();
+    }
+
     public DownloadResponse()
     { /* do nothing */ }
 
@@ -102,6 +168,62 @@ abstract public class DownloadResponse
     abstract void sendRespond( HttpServletResponse response )
             throws IOException;
 
+    /**
+     * Post information to an HttpResponse, taking the conditional headers of the
+     * request into account
+     *
+     * @param request  request being answered
+     * @param response response to write to
+     * @throws IOException if the response cannot be written
+     */
+    void sendRespond( HttpServletRequest request, HttpServletResponse response )
+            throws IOException
+    {
+        sendRespond( response );
+    }
+
+    /**
+     * Sets the Cache-Control header sent with the content of resources.
+     *
+     * @param defaultValue value for the mime types which have none of their own, or null to send none
+     * @param byMimeType   value by mime type, without parameters
+     */
+    static void setCacheControl( String defaultValue, Map<String, String> byMimeType )
+    {
+        _cacheControl = new HashMap<>( byMimeType );
+        _defaultCacheControl = defaultValue;
+    }
+
+    /**
+     * Enables asynchronous downloads, which need a Servlet 3.1 container and the servlet to
+     * be declared with <code>async-supported</code>.
+     *
+     * @param minLength length of the contents sent asynchronously, or 0 to disable them
+     * @param timeout   time in milliseconds an asynchronous download may take, or 0 for no limit
+     */
+    static void setAsync( long minLength, long timeout )
+    {
+        _asyncMinLength = minLength;
+        _asyncTimeout = timeout;
+    }
+
+    /**
+     * @return the Cache-Control header of a mime type, or <code>null</code> if none is configured
+     */
+    private static String getCacheControl( String mimeType )
+    {
+        if ( mimeType != null )
+        {
+            int semicolon = mimeType.indexOf( ';' );
+            String value = _cacheControl.get( semicolon == -1 ? mimeType : mimeType.substring( 0, semicolon ).trim() );
+            if ( value != null )
+            {
+                return value;
+            }
+        }
+        return _defaultCacheControl;
+    }
+
     /**
      * Factory methods for error responses
      *
@@ -144,14 +266,210 @@ abstract public class DownloadResponse
 
     static DownloadResponse getFileDownloadResponse( URL resource, String mimeType, long timestamp, String versionId )
     {
+        // Resources of an expanded WAR are sent straight from the file
+        File file = toFile( resource );
+        if ( file != null )
+        {
+            return new DiskFileDownloadResponse( file, -1, mimeType, versionId, timestamp );
+        }
         return new ResourceFileDownloadResponse( resource, mimeType, versionId, timestamp );
     }
 
     static DownloadResponse getFileDownloadResponse( File file, String mimeType, long timestamp, String versionId )
+    {
+        return new DiskFileDownloadResponse( file, -1, mimeType, versionId, timestamp );
+    }
+
+    static DownloadResponse getFileDownloadResponse( File file, long length, String mimeType, long timestamp,
+                                                     String versionId )
+    {
+        return new DiskFileDownloadResponse( file, length, mimeType, versionId, timestamp );
+    }
+
+    /**
+     * @param file file acquired by the caller, released by the response once it is sent
+     */
+    static DownloadResponse getFileDownloadResponse( SharedFile file, String mimeType, long timestamp,
+                                                     String versionId )
     {
         return new DiskFileDownloadResponse( file, mimeType, versionId, timestamp );
     }
 
+    /**
+     * @return the file of a <code>file:</code> URL, or <code>null</code> if the URL is not a regular file
+     */
+    private static File toFile( URL url )
+    {
+        if ( !"file".equals( url.getProtocol() ) )
+        {
+            return null;
+        }
+        try
+        {
+            File file = new File( url.toURI() );
+            return file.isFile() ? file : null;
+        }
+        catch ( URISyntaxException | IllegalArgumentException e )
+        {
+            return null;
+        }
+    }
+
+    static DownloadResponse getStreamingDownloadResponse( ContentWriter content, int contentLength, String mimeType,
+                                                          long timestamp, String versionId )
+    {
+        return new StreamingDownloadResponse( content, contentLength, mimeType, versionId, timestamp );
+    }
+
+    // Marker of a range that does not overlap the content
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    /**
+     * Determines the part of the content requested by the Range header. Only
+     * requests for a single range are honoured, other requests get the whole content.
+     *
+     * @param request request to answer
+     * @param length  length of the content
+     * @param etag    entity tag of the content
+     * @param lastModified time the content was last modified
+     * @return the first and last position of the range, {@link #UNSATISFIABLE} if it
+     * is outside of the content, or <code>null</code> to send the whole content
+     */
+    private static long[] getRange( HttpServletRequest request, long length, String etag, long lastModified )
+    {
+        String range = request.getHeader( HEADER_RANGE );
+        if ( range == null || !isCurrent( request, etag, lastModified ) )
+        {
+            return null;
+        }
+        range = range.trim();
+        if ( !range.startsWith( BYTES_UNIT + "=" ) || range.indexOf( ',' ) != -1 )
+        {
+            return null;
+        }
+        String spec = range.substring( BYTES_UNIT.length() + 1 ).trim();
+        int dash = spec.indexOf( '-' );
+        if ( dash == -1 )
+        {
+            return null;
+        }
+        try
+        {
+            String firstSpec = spec.substring( 0, dash ).trim();
+            String lastSpec = spec.substring( dash + 1 ).trim();
+            long first;
+            long last;
+            if ( firstSpec.length() == 0 )
+            {
+                // Suffix range: the last bytes of the content
+                long suffix = Long.parseLong( lastSpec );
+                if ( suffix <= 0 )
+                {
+                    return UNSATISFIABLE;
+                }
+                first = Math.max( 0, length - suffix );
+                last = length - 1;
+            }
+            else
+            {
+                first = Long.parseLong( firstSpec );
+                last = lastSpec.length() == 0 ? Long.MAX_VALUE : Long.parseLong( lastSpec );
+                if ( first < 0 || last < first )
+                {
+                    // Syntactically invalid, ignored
+                    return null;
+                }
+            }
+            return first >= length ? UNSATISFIABLE : new long[]{ first, Math.min( last, length - 1 ) };
+        }
+        catch ( NumberFormatException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the If-Range header of the request, if any, matches the content
+     */
+    private static boolean isCurrent( HttpServletRequest request, String etag, long lastModified )
+    {
+        String ifRange = request.getHeader( HEADER_IF_RANGE );
+        if ( ifRange == null )
+        {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if ( ifRange.startsWith( "\"" ) || ifRange.startsWith( "W/" ) )
+        {
+            // Only strong entity tags match
+            return ifRange.equals( etag );
+        }
+        try
+        {
+            // HTTP dates have a precision of one second
+            long date = request.getDateHeader( HEADER_IF_RANGE );
+            return lastModified != 0 && date / 1000 == lastModified / 1000;
+        }
+        catch ( IllegalArgumentException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return true if an If-None-Match header of the request lists the entity tag of the
+     * content, which means the client has it already
+     */
+    private static boolean isNoneMatchFailed( HttpServletRequest request, String etag )
+    {
+        Enumeration headers = request.getHeaders( HEADER_IF_NONE_MATCH );
+        while ( headers != null && headers.hasMoreElements() )
+        {
+            String header = (String) headers.nextElement();
+            int start = 0;
+            while ( start < header.length() )
+            {
+                int comma = header.indexOf( ',', start );
+                int end = comma == -1 ? header.length() : comma;
+                String tag = header.substring( start, end ).trim();
+                // Weak comparison, as required for If-None-Match
+                if ( tag.startsWith( "W/" ) )
+                {
+                    tag = tag.substring( 2 );
+                }
+                if ( tag.equals( "*" ) || tag.equals( etag ) )
+                {
+                    return true;
+                }
+                start = end + 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a strong entity tag computed from the content itself
+     */
+    private static String getContentETag( byte[] content )
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( content );
+            StringBuilder sb = new StringBuilder( "\"" );
+            // Half of the digest is plenty to tell versions of a file apart
+            for ( int i = 0; i < digest.length / 2; i++ )
+            {
+                sb.append( Character.forDigit( ( digest[i] >> 4 ) & 0xF, 16 ) );
+                sb.append( Character.forDigit( digest[i] & 0xF, 16 ) );
+            }
+            return sb.append( '"' ).toString();
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            return null;
+        }
+    }
+
     //
     // Private classes implementing the various types
     //
@@ -317,10 +635,57 @@ abstract public class DownloadResponse
          */
         public void sendRespond( HttpServletResponse response )
                 throws IOException
+        {
+            sendRespond( null, response );
+        }
+
+        /**
+         * Post information to an HttpResponse. Nothing is sent if the request already has
+         * the content according to If-None-Match. A single byte range of the content is
+         * sent if the request asks for it, and the content is unchanged according to If-Range.
+         */
+        void sendRespond( HttpServletRequest request, HttpServletResponse response )
+                throws IOException
+        {
+            boolean async = false;
+            try
+            {
+                async = send( request, response );
+            }
+            finally
+            {
+                // An asynchronous download releases the content once it is sent
+                if ( !async )
+                {
+                    release();
+                }
+            }
+        }
+
+        /**
+         * @return true if the content is sent asynchronously
+         */
+        private boolean send( HttpServletRequest request, HttpServletResponse response )
+                throws IOException
         {
             // Set header information
+            int length = getContentLength();
+            String etag = length >= 0 ? getETag( length ) : null;
+            if ( etag != null )
+            {
+                response.setHeader( HEADER_ETAG, etag );
+            }
+            String cacheControl = getCacheControl( getMimeType() );
+            if ( cacheControl != null )
+            {
+                response.setHeader( HEADER_CACHE_CONTROL, cacheControl );
+            }
+            if ( etag != null && request != null && isNoneMatchFailed( request, etag ) )
+            {
+                response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                return false;
+            }
             response.setContentType( getMimeType() );
-            response.setContentLength( getContentLength() );
             if ( getVersionId() != null )
             {
                 response.setHeader( HEADER_JNLP_VERSION, getVersionId() );
@@ -346,12 +711,194 @@ abstract public class DownloadResponse
                 }
             }
 
+            long first = 0;
+            long last = length - 1;
+            if ( supportsRanges() && length >= 0 )
+            {
+                response.setHeader( HEADER_ACCEPT_RANGES, BYTES_UNIT );
+
+                long[] range = request == null ? null : getRange( request, length, etag, getLastModified() );
+                if ( range == UNSATISFIABLE )
+                {
+                    response.setHeader( HEADER_CONTENT_RANGE, BYTES_UNIT + " */" + length );
+                    response.sendError( HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE );
+                    return false;
+                }
+                if ( range != null )
+                {
+                    first = range[0];
+                    last = range[1];
+                    response.setStatus( HttpServletResponse.SC_PARTIAL_CONTENT );
+                    response.setHeader( HEADER_CONTENT_RANGE, BYTES_UNIT + " " + first + "-" + last + "/" + length );
+                }
+            }
+            response.setContentLength( length < 0 ? -1 : (int) ( last - first + 1 ) );
+
+            // Send large contents without holding a thread of the container, if enabled.
+            // Only contents that can be read, rather than generated while sent, qualify.
+            long count = last - first + 1;
+            if ( request != null && _asyncMinLength > 0 && count >= _asyncMinLength && supportsRanges() &&
+                    request.isAsyncSupported() )
+            {
+                AsyncDownload.start( request, response, new ReleasingChannel( openChannel( first ) ), count,
+                                     _asyncTimeout );
+                return true;
+            }
+
             // Send contents
+            if ( first == 0 && last == length - 1 )
+            {
+                writeContent( response.getOutputStream() );
+            }
+            else
+            {
+                writeContent( response.getOutputStream(), first, last - first + 1 );
+            }
+            return false;
+        }
+
+        /**
+         * Releases what the content holds once it is sent, or will not be sent.
+         */
+        void release()
+        { /* do nothing */ }
+
+        /* Channel of the content, which releases the content when it is closed */
+        private class ReleasingChannel
+                implements ReadableByteChannel
+        {
+            private final ReadableByteChannel _channel;
+
+            ReleasingChannel( ReadableByteChannel channel )
+            {
+                _channel = channel;
+            }
+
+            public int read( ByteBuffer dst )
+                    throws IOException
+            {
+                return _channel.read( dst );
+            }
+
+            public boolean isOpen()
+            {
+                return _channel.isOpen();
+            }
+
+            public void close()
+                    throws IOException
+            {
+                try
+                {
+                    _channel.close();
+                }
+                finally
+                {
+                    release();
+                }
+            }
+        }
+
+        /**
+         * @return true if any part of the content can be sent
+         */
+        boolean supportsRanges()
+        {
+            return true;
+        }
+
+        /**
+         * A strong validator of the content, which changes with the version, the
+         * timestamp, the length or the encoding of the content.
+         */
+        String getETag( long length )
+        {
+            StringBuilder sb = new StringBuilder( "\"" );
+            if ( getVersionId() != null )
+            {
+                // Quotes and backslashes are not allowed in an entity tag
+                sb.append( getVersionId().replace( '"', '_' ).replace( '\\', '_' ) ).append( '-' );
+            }
+            sb.append( Long.toHexString( getLastModified() ) ).append( '-' ).append( Long.toHexString( length ) );
+            if ( _fileName != null && _fileName.endsWith( ".gz" ) )
+            {
+                sb.append( _fileName.endsWith( ".pack.gz" ) ? "-pack" : "-gz" );
+            }
+            return sb.append( '"' ).toString();
+        }
+
+        /**
+         * @return a channel of the content, positioned at the given offset
+         */
+        ReadableByteChannel openChannel( long offset )
+                throws IOException
+        {
             InputStream in = getContent();
-            OutputStream out = response.getOutputStream();
             try
             {
-                byte[] bytes = new byte[32 * 1024];
+                skip( in, offset );
+            }
+            catch ( IOException e )
+            {
+                in.close();
+                throw e;
+            }
+            return Channels.newChannel( in );
+        }
+
+        private void skip( InputStream in, long offset )
+                throws IOException
+        {
+            while ( offset > 0 )
+            {
+                long skipped = in.skip( offset );
+                if ( skipped <= 0 )
+                {
+                    throw new EOFException( "content shorter than announced" );
+                }
+                offset -= skipped;
+            }
+        }
+
+        /**
+         * Sends part of the content of the response
+         */
+        void writeContent( OutputStream out, long offset, long count )
+                throws IOException
+        {
+            InputStream in = getContent();
+            byte[] bytes = BUFFERS.acquire();
+            try
+            {
+                skip( in, offset );
+                while ( count > 0 )
+                {
+                    int read = in.read( bytes, 0, (int) Math.min( bytes.length, count ) );
+                    if ( read == -1 )
+                    {
+                        throw new EOFException( "content shorter than announced" );
+                    }
+                    out.write( bytes, 0, read );
+                    count -= read;
+                }
+            }
+            finally
+            {
+                BUFFERS.release( bytes );
+                in.close();
+            }
+        }
+
+        /**
+         * Sends the content of the response
+         */
+        void writeContent( OutputStream out )
+                throws IOException
+        {
+            InputStream in = getContent();
+            byte[] bytes = BUFFERS.acquire();
+            try
+            {
                 int read;
                 while ( ( read = in.read( bytes ) ) != -1 )
                 {
@@ -360,6 +907,7 @@ abstract public class DownloadResponse
             }
             finally
             {
+                BUFFERS.release( bytes );
                 if ( in != null )
                 {
                     in.close();
@@ -386,10 +934,23 @@ abstract public class DownloadResponse
     {
         private byte[] _content;
 
+        // Computed once, as the response is kept with the generated JNLP file
+        private String _etag;
+
         ByteArrayFileDownloadResponse( byte[] content, String mimeType, String versionId, long lastModified )
         {
             super( mimeType, versionId, lastModified );
             _content = content;
+            _etag = getContentETag( content );
+        }
+
+        /**
+         * The content is generated, e.g. a JNLP file with the time of the generation as
+         * its timestamp, so only the content itself tells whether it changed.
+         */
+        String getETag( long length )
+        {
+            return _etag != null ? _etag : super.getETag( length );
         }
 
         int getContentLength()
@@ -413,22 +974,35 @@ abstract public class DownloadResponse
     {
         URL _url;
 
+        // Connection used for both the length and the content
+        private URLConnection _connection;
+
         ResourceFileDownloadResponse( URL url, String mimeType, String versionId, long lastModified )
         {
             super( mimeType, versionId, lastModified, url.toString() );
             _url = url;
         }
 
+        private URLConnection getConnection()
+                throws IOException
+        {
+            if ( _connection == null )
+            {
+                _connection = _url.openConnection();
+            }
+            return _connection;
+        }
+
         int getContentLength()
                 throws IOException
         {
-            return _url.openConnection().getContentLength();
+            return getConnection().getContentLength();
         }
 
         InputStream getContent()
                 throws IOException
         {
-            return _url.openConnection().getInputStream();
+            return getConnection().getInputStream();
         }
 
         public String toString()
@@ -442,22 +1016,102 @@ abstract public class DownloadResponse
     {
         private File _file;
 
-        DiskFileDownloadResponse( File file, String mimeType, String versionId, long lastModified )
+        // Length sent in the header, so that exactly as many bytes are sent, or -1 until known
+        private long _length;
+
+        // File to release once sent, or null if the file is not shared
+        private SharedFile _shared;
+
+        DiskFileDownloadResponse( File file, long length, String mimeType, String versionId, long lastModified )
         {
             super( mimeType, versionId, lastModified, file.getName() );
             _file = file;
+            _length = length;
+        }
+
+        DiskFileDownloadResponse( SharedFile file, String mimeType, String versionId, long lastModified )
+        {
+            this( file.getFile(), -1, mimeType, versionId, lastModified );
+            _shared = file;
+        }
+
+        synchronized void release()
+        {
+            if ( _shared != null )
+            {
+                _shared.release();
+                _shared = null;
+            }
         }
 
         int getContentLength()
                 throws IOException
         {
-            return (int) _file.length();
+            if ( _length < 0 )
+            {
+                _length = _file.length();
+            }
+            return (int) _length;
         }
 
         InputStream getContent()
                 throws IOException
         {
-            return new BufferedInputStream( new FileInputStream( _file ) );
+            return new FileInputStream( _file );
+        }
+
+        ReadableByteChannel openChannel( long offset )
+                throws IOException
+        {
+            FileInputStream in = new FileInputStream( _file );
+            FileChannel channel = in.getChannel();
+            try
+            {
+                channel.position( offset );
+            }
+            catch ( IOException e )
+            {
+                in.close();
+                throw e;
+            }
+            return channel;
+        }
+
+        void writeContent( OutputStream out )
+                throws IOException
+        {
+            writeContent( out, 0, getContentLength() );
+        }
+
+        /**
+         * Lets the file channel transfer the file, without copying it through a buffer
+         * of ours when the container exposes a channel.
+         */
+        void writeContent( OutputStream out, long offset, long count )
+                throws IOException
+        {
+            WritableByteChannel target =
+                    out instanceof WritableByteChannel ? (WritableByteChannel) out : Channels.newChannel( out );
+            FileInputStream in = new FileInputStream( _file );
+            try
+            {
+                FileChannel channel = in.getChannel();
+                long position = offset;
+                long end = offset + count;
+                while ( position < end )
+                {
+                    long sent = channel.transferTo( position, end - position, target );
+                    if ( sent <= 0 && position >= channel.size() )
+                    {
+                        throw new EOFException( "file truncated while sent: " + _file );
+                    }
+                    position += sent;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
         }
 
         public String toString()
@@ -465,7 +1119,53 @@ abstract public class DownloadResponse
             return super.toString() + "[ " + getArgString() + "]";
         }
     }
-}
 
+    static private class StreamingDownloadResponse
+            extends FileDownloadResponse
+    {
+        private ContentWriter _content;
+
+        private int _contentLength;
 
+        StreamingDownloadResponse( ContentWriter content, int contentLength, String mimeType, String versionId,
+                                   long lastModified )
+        {
+            super( mimeType, versionId, lastModified );
+            _content = content;
+            _contentLength = contentLength;
+        }
+
+        int getContentLength()
+        {
+            return _contentLength;
+        }
 
+        InputStream getContent()
+                throws IOException
+        {
+            throw new IOException( "content is only available while it is sent" );
+        }
+
+        boolean supportsRanges()
+        {
+            // The content is generated while it is sent
+            return false;
+        }
+
+        void writeContent( OutputStream out )
+                throws IOException
+        {
+            _content.write( out );
+        }
+
+        void release()
+        {
+            _content.release();
+        }
+
+        public String toString()
+        {
+            return super.toString() + "[ " + getArgString() + "]";
+        }
+    }
+}
@@ -37,6 +37,8 @@
 package jnlp.sample.servlet;
 
 import jnlp.sample.jardiff.JarDiff;
+import jnlp.sample.util.BoundedCache;
+import jnlp.sample.util.SharedFile;
 import jnlp.sample.util.VersionString;
 
 import javax.servlet.ServletContext;
@@ -47,14 +49,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 /*
 * A class that generates and caches information about JarDiff files
 *
 */
 public class JarDiffHandler
+        implements ResourceCatalog.Listener
 {
     // Default size of download buffer
     private static final int BUF_SIZE = 32 * 1024;
@@ -62,10 +70,22 @@ public class JarDiffHandler
     // Default JARDiff mime type
     private static final String JARDIFF_MIMETYPE = "application/x-java-archive-diff";
 
+    // Default bounds of the JARDiff cache
+    public static final int DEFAULT_CACHE_MAX_ENTRIES = 1024;
+
+    public static final long DEFAULT_CACHE_MAX_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * All generated JARDiffs. Entries for different keys are generated in parallel,
+     * concurrent requests for the same key wait for a single generation.
+     */
+    private BoundedCache<JarDiffKey, JarDiffEntry> _jarDiffEntries = null;
+
     /**
-     * List of all generated JARDiffs
+     * JARDiffs being streamed. Other requests for them generate a file instead, once.
      */
-    private HashMap _jarDiffEntries = null;
+    private final Set<JarDiffKey> _streamingKeys =
+            Collections.newSetFromMap( new ConcurrentHashMap<JarDiffKey, Boolean>() );
 
     /**
      * Reference to ServletContext and logger object
@@ -76,6 +96,27 @@ public class JarDiffHandler
 
     private String _jarDiffMimeType = null;
 
+    /**
+     * Persistent store of generated JARDiffs, or null if JARDiffs are only kept in memory
+     */
+    private JarDiffStore _store = null;
+
+    /**
+     * Pool reading and matching the entries of the jars in parallel when generating a JARDiff,
+     * or null to generate JARDiffs in the calling thread
+     */
+    private volatile ForkJoinPool _pool = null;
+
+    /**
+     * True to stream JARDiffs that are not cached yet directly to the response
+     */
+    private volatile boolean _streaming = false;
+
+    /**
+     * True to also keep a streamed JARDiff in the cache
+     */
+    private volatile boolean _streamingTee = false;
+
     /* Contains information about a particular JARDiff entry */
     private static class JarDiffKey
             implements Comparable
@@ -145,7 +186,7 @@ public class JarDiffHandler
 
             if ( _minimal != other.isMinimal() )
             {
-                return -1;
+                return _minimal ? 1 : -1;
             }
 
             return _toVersionId.compareTo( other.getToVersionId() );
@@ -158,23 +199,32 @@ public class JarDiffHandler
 
         public int hashCode()
         {
-            return _name.hashCode() + _fromVersionId.hashCode() + _toVersionId.hashCode();
+            return _name.hashCode() + _fromVersionId.hashCode() + _toVersionId.hashCode() + ( _minimal ? 1 : 0 );
         }
     }
 
     static private class JarDiffEntry
     {
-        private File _jardiffFile;    // Location of JARDiff file
+        private SharedFile _jardiffFile;    // Location of JARDiff file
 
-        public JarDiffEntry( File jarDiffFile )
+        private boolean _persistent;  // True if the file is owned by the JarDiffStore
+
+        public JarDiffEntry( SharedFile jarDiffFile, boolean persistent )
         {
             _jardiffFile = jarDiffFile;
+            _persistent = persistent;
         }
 
-        public File getJarDiffFile()
+        public SharedFile getJarDiffFile()
         {
             return _jardiffFile;
         }
+
+        /* Size of the JARDiff file, used to bound the cache */
+        long getSize()
+        {
+            return _jardiffFile == null ? 0 : _jardiffFile.getFile().length();
+        }
     }
 
     /**
@@ -185,9 +235,62 @@ public class JarDiffHandler
      */
     public JarDiffHandler( ServletContext servletContext, Logger log )
     {
-        _jarDiffEntries = new HashMap();
+        this( servletContext, log, DEFAULT_CACHE_MAX_ENTRIES, DEFAULT_CACHE_MAX_BYTES );
+    }
+
+    /**
+     * Initialize JarDiff handler with a bounded cache. When a bound is exceeded, the least
+     * recently used JARDiffs are evicted and their files deleted, once they are not being
+     * sent anymore.
+     *
+     * @param servletContext  context the jars are read from
+     * @param log             logger
+     * @param cacheMaxEntries maximum number of cached JARDiffs, or 0 for no limit
+     * @param cacheMaxBytes   maximum total size of the cached JARDiff files, or 0 for no limit
+     */
+    public JarDiffHandler( ServletContext servletContext, Logger log, int cacheMaxEntries, long cacheMaxBytes )
+    {
+        this( servletContext, log, cacheMaxEntries, cacheMaxBytes, null, 0 );
+    }
+
+    /**
+     * Initialize JarDiff handler with a bounded cache, backed by a persistent store. JARDiffs
+     * in the store survive a restart of the servlet.
+     *
+     * @param servletContext  context the jars are read from
+     * @param log             logger
+     * @param cacheMaxEntries maximum number of cached JARDiffs, or 0 for no limit
+     * @param cacheMaxBytes   maximum total size of the cached JARDiff files, or 0 for no limit
+     * @param storeDir        directory of the persistent store, or null to keep JARDiffs in memory only
+     * @param storeMaxBytes   maximum total size of the persistent store, or 0 for no limit
+     */
+    public JarDiffHandler( ServletContext servletContext, Logger log, int cacheMaxEntries, long cacheMaxBytes,
+                           File storeDir, long storeMaxBytes )
+    {
+        _jarDiffEntries = new BoundedCache<>( cacheMaxEntries, cacheMaxBytes, new BoundedCache.Weigher<JarDiffEntry>()
+        {
+            public long weigh( JarDiffEntry entry )
+            {
+                return entry.getSize();
+            }
+        }, new BoundedCache.RemovalListener<JarDiffKey, JarDiffEntry>()
+        {
+            public void removed( JarDiffKey key, JarDiffEntry entry )
+            {
+                SharedFile f = entry.getJarDiffFile();
+                if ( f != null && !entry._persistent )
+                {
+                    _log.addDebug( "Evicting JarDiff ", f );
+                    f.release();
+                }
+            }
+        } );
         _servletContext = servletContext;
         _log = log;
+        if ( storeDir != null )
+        {
+            _store = new JarDiffStore( servletContext, log, storeDir, storeMaxBytes );
+        }
 
         _jarDiffMimeType = _servletContext.getMimeType( "xyz.jardiff" );
         if ( _jarDiffMimeType == null )
@@ -196,6 +299,17 @@ public class JarDiffHandler
         }
     }
 
+    /**
+     * Removes the stored JarDiffs whose source jars in the directory were removed or replaced.
+     */
+    public void entriesChanged( String dir, List<JnlpResource> entries )
+    {
+        if ( _store != null )
+        {
+            _store.cleanup( dir );
+        }
+    }
+
     /**
      * Returns a JarDiff for the given request
      *
@@ -204,8 +318,8 @@ public class JarDiffHandler
      * @param res     TODO
      * @return TODO
      */
-    public synchronized DownloadResponse getJarDiffEntry( ResourceCatalog catalog, DownloadRequest dreq,
-                                                          JnlpResource res )
+    public DownloadResponse getJarDiffEntry( final ResourceCatalog catalog, final DownloadRequest dreq,
+                                             final JnlpResource res )
     {
         if ( dreq.getCurrentVersionId() == null )
         {
@@ -214,45 +328,426 @@ public class JarDiffHandler
 
         // check whether the request is from javaws 1.0/1.0.1
         // do not generate minimal jardiff if it is from 1.0/1.0.1
-        boolean doJarDiffWorkAround = isJavawsVersion( dreq, "1.0*" );
+        final boolean doJarDiffWorkAround = isJavawsVersion( dreq, "1.0*" );
 
         // First do a lookup to find a match
         JarDiffKey key =
                 new JarDiffKey( res.getName(), dreq.getCurrentVersionId(), res.getReturnVersionId(), !doJarDiffWorkAround );
 
-        JarDiffEntry entry = (JarDiffEntry) _jarDiffEntries.get( key );
-        // If entry is not found, then the querty has not been made.
-        if ( entry == null )
+        // A JarDiff that is neither cached, generated nor streamed can be sent while it is generated.
+        // Concurrent requests for it wait for a single generation to a file.
+        if ( _streaming && !_jarDiffEntries.containsKey( key ) && _streamingKeys.add( key ) )
+        {
+            DownloadResponse response = getStreamingJarDiff( catalog, dreq, res, key );
+            if ( response != null )
+            {
+                return response;
+            }
+            _streamingKeys.remove( key );
+        }
+
+        BoundedCache.Loader<JarDiffKey, JarDiffEntry> loader = new BoundedCache.Loader<JarDiffKey, JarDiffEntry>()
         {
-            if ( _log.isInformationalLevel() )
+            public JarDiffEntry load( JarDiffKey key )
             {
-                _log.addInformational( "servlet.log.info.jardiff.gen", res.getName(), dreq.getCurrentVersionId(),
-                                       res.getReturnVersionId() );
+                // Lookup up file for request version
+                JnlpResource fromRes;
+                try
+                {
+                    fromRes = catalog.lookupResource( dreq.getFromDownloadRequest() );
+                }
+                catch ( ErrorResponseException ere )
+                {
+                    _log.addDebug( "Failed to genereate jardiff", ere );
+                    fromRes = null;
+                }
+                return createJarDiffEntry( fromRes, res, !doJarDiffWorkAround );
             }
-            File f = generateJarDiff( catalog, dreq, res, doJarDiffWorkAround );
-            if ( f == null )
+        };
+
+        // The file is deleted if the entry is evicted from the cache or from the store
+        // before it is acquired, then the JarDiff is generated again, once
+        for ( int attempt = 0; attempt < 2; attempt++ )
+        {
+            // If entry is not found, then the query has not been made. Generate it, or
+            // wait for the thread which is already generating it.
+            JarDiffEntry entry = getJarDiffEntry( key, loader );
+
+            // Check for no JarDiff to return
+            if ( entry == null || entry.getJarDiffFile() == null )
+            {
+                return null;
+            }
+            SharedFile f = entry.getJarDiffFile();
+            if ( f.acquire() )
+            {
+                // Released by the response once sent, the file is not deleted until then
+                return DownloadResponse.getFileDownloadResponse( f, _jarDiffMimeType, f.getFile().lastModified(),
+                                                                 res.getReturnVersionId() );
+            }
+            _jarDiffEntries.invalidate( key, entry );
+        }
+        return null;
+    }
+
+
+    /**
+     * Generate JARDiffs in parallel mode, which reads and matches the entries of large jars on
+     * several cores. The generated JARDiffs are the same in both modes. The work is done on a
+     * pool of the handler, not on the common pool of the JVM, and every JARDiff generated at
+     * the same time shares it.
+     *
+     * @param threads number of threads of the pool, or 0 to generate JARDiffs in the calling thread
+     */
+    public void setParallel( int threads )
+    {
+        ForkJoinPool previous = _pool;
+        _pool = threads > 0 ? new ForkJoinPool( threads ) : null;
+        if ( previous != null )
+        {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Stops the threads of parallel mode. JARDiffs generated later are generated in the calling thread.
+     */
+    public void shutdown()
+    {
+        setParallel( 0 );
+    }
+
+    /**
+     * Stream JARDiffs that are neither cached nor stored directly to the response. The size of
+     * the JARDiff is computed before any of it is written, so that a JARDiff which is not smaller
+     * than the jar is never sent. Saves the temporary file and the delay of writing the whole
+     * JARDiff before sending it, for version pairs that are rarely requested.
+     *
+     * @param streaming true to stream JARDiffs
+     * @param tee       true to also keep a streamed JARDiff in the cache, and in the store if any
+     */
+    public void setStreaming( boolean streaming, boolean tee )
+    {
+        _streaming = streaming;
+        _streamingTee = tee;
+    }
+
+    /**
+     * Generates and caches the minimal JarDiff between two versions of a resource, unless it is
+     * already cached. Used to compute JarDiffs ahead of the first request for them.
+     *
+     * @param fromRes resource the JarDiff applies to
+     * @param res     resource the JarDiff produces
+     */
+    void precomputeJarDiff( final JnlpResource fromRes, final JnlpResource res )
+    {
+        JarDiffKey key = new JarDiffKey( res.getName(), fromRes.getReturnVersionId(), res.getReturnVersionId(), true );
+        getJarDiffEntry( key, new BoundedCache.Loader<JarDiffKey, JarDiffEntry>()
+        {
+            public JarDiffEntry load( JarDiffKey key )
             {
-                _log.addWarning( "servlet.log.warning.jardiff.failed", res.getName(), dreq.getCurrentVersionId(),
-                                 res.getReturnVersionId() );
+                return createJarDiffEntry( fromRes, res, true );
             }
-            // Store entry in table
-            entry = new JarDiffEntry( f );
-            _jarDiffEntries.put( key, entry );
+        } );
+    }
+
+    private JarDiffEntry getJarDiffEntry( JarDiffKey key, BoundedCache.Loader<JarDiffKey, JarDiffEntry> loader )
+    {
+        try
+        {
+            return _jarDiffEntries.get( key, loader );
+        }
+        catch ( ExecutionException ee )
+        {
+            _log.addDebug( "Failed to genereate jardiff", ee.getCause() );
+            return null;
         }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
 
-        // Check for no JarDiff to return
-        if ( entry.getJarDiffFile() == null )
+    private JarDiffEntry createJarDiffEntry( JnlpResource fromRes, JnlpResource res, boolean minimal )
+    {
+        String fromVersionId = fromRes == null ? null : fromRes.getReturnVersionId();
+        if ( _log.isInformationalLevel() )
+        {
+            _log.addInformational( "servlet.log.info.jardiff.gen", res.getName(), fromVersionId,
+                                   res.getReturnVersionId() );
+        }
+        SharedFile f = fromRes == null ? null : generateJarDiff( fromRes, res, minimal );
+        if ( f == null )
+        {
+            _log.addWarning( "servlet.log.warning.jardiff.failed", res.getName(), fromVersionId,
+                             res.getReturnVersionId() );
+        }
+        return new JarDiffEntry( f, _store != null );
+    }
+
+    /**
+     * Prepares a JarDiff to be streamed to the response.
+     *
+     * @return the response, or null if the JarDiff must be generated to a file first
+     */
+    private DownloadResponse getStreamingJarDiff( ResourceCatalog catalog, DownloadRequest dreq, JnlpResource res,
+                                                  final JarDiffKey key )
+    {
+        JnlpResource fromRes;
+        try
+        {
+            fromRes = catalog.lookupResource( dreq.getFromDownloadRequest() );
+        }
+        catch ( ErrorResponseException ere )
+        {
+            return null;
+        }
+
+        // Stored JarDiffs are sent from the store
+        if ( _store != null && _store.lookup( fromRes, res, key._minimal ) != null )
+        {
+            return null;
+        }
+
+        // Jars which are not on disk are downloaded and diffed to a file
+        String newFilePath = _servletContext.getRealPath( res.getPath() );
+        String oldFilePath = _servletContext.getRealPath( fromRes.getPath() );
+        if ( newFilePath == null || oldFilePath == null )
         {
             return null;
         }
-        else
+
+        if ( _log.isInformationalLevel() )
         {
-            return DownloadResponse.getFileDownloadResponse( entry.getJarDiffFile(), _jarDiffMimeType,
-                                                             entry.getJarDiffFile().lastModified(),
-                                                             res.getReturnVersionId() );
+            _log.addInformational( "servlet.log.info.jardiff.gen", res.getName(), fromRes.getReturnVersionId(),
+                                   res.getReturnVersionId() );
+        }
+        JarDiff.Patch patch = null;
+        try
+        {
+            patch = JarDiff.preparePatch( oldFilePath, newFilePath, key._minimal, _pool );
+            long size = patch.getSize();
+            if ( size < 0 || size > Integer.MAX_VALUE )
+            {
+                // Size only known once written
+                return null;
+            }
+            if ( !isSmallerThanJar( size, newFilePath ) )
+            {
+                // Remember that there is no JarDiff for this version pair
+                getJarDiffEntry( key, new BoundedCache.Loader<JarDiffKey, JarDiffEntry>()
+                {
+                    public JarDiffEntry load( JarDiffKey key )
+                    {
+                        return new JarDiffEntry( null, false );
+                    }
+                } );
+                return null;
+            }
+            _log.addDebug( "Streaming Jardiff between ", oldFilePath, " and ", newFilePath );
+            DownloadResponse response = DownloadResponse.getStreamingDownloadResponse(
+                    new StreamingJarDiff( key, fromRes, oldFilePath, res, newFilePath, patch ), (int) size,
+                    _jarDiffMimeType, System.currentTimeMillis(), res.getReturnVersionId() );
+            patch = null;
+            return response;
+        }
+        catch ( IOException ioe )
+        {
+            _log.addDebug( "Failed to genereate jardiff", ioe );
+            return null;
+        }
+        finally
+        {
+            if ( patch != null )
+            {
+                patch.close();
+            }
         }
     }
 
+    /* Writes a JarDiff to the response as it is generated, and optionally to the cache */
+    private class StreamingJarDiff
+            implements DownloadResponse.ContentWriter
+    {
+        private final JarDiffKey _key;
+
+        private final JnlpResource _fromRes;
+
+        private final String _oldFilePath;
+
+        private final JnlpResource _res;
+
+        private final String _newFilePath;
+
+        private final JarDiff.Patch _patch;
+
+        StreamingJarDiff( JarDiffKey key, JnlpResource fromRes, String oldFilePath, JnlpResource res,
+                          String newFilePath, JarDiff.Patch patch )
+        {
+            _key = key;
+            _fromRes = fromRes;
+            _oldFilePath = oldFilePath;
+            _res = res;
+            _newFilePath = newFilePath;
+            _patch = patch;
+        }
+
+        public void write( OutputStream out )
+                throws IOException
+        {
+            File teeFile = null;
+            TeeOutputStream tee = null;
+            try
+            {
+                if ( _streamingTee )
+                {
+                    teeFile = createOutputFile();
+                    tee = new TeeOutputStream( out, new BufferedOutputStream( new FileOutputStream( teeFile ) ) );
+                }
+                _patch.write( tee == null ? out : tee );
+                if ( tee != null && tee.closeBranch() )
+                {
+                    cacheJarDiff( teeFile );
+                    teeFile = null;
+                }
+            }
+            finally
+            {
+                if ( tee != null )
+                {
+                    tee.closeBranch();
+                }
+                if ( teeFile != null )
+                {
+                    teeFile.delete();
+                }
+            }
+        }
+
+        public void release()
+        {
+            _patch.close();
+            _streamingKeys.remove( _key );
+        }
+
+        private void cacheJarDiff( File file )
+                throws IOException
+        {
+            SharedFile result;
+            if ( _store == null )
+            {
+                result = new SharedFile( file );
+            }
+            else
+            {
+                String hash = _store.getHash( _fromRes, _oldFilePath, _res, _newFilePath, _key._minimal );
+                result = _store.put( hash, _fromRes, _oldFilePath, _res, _newFilePath, _key._minimal, file );
+                if ( result == null )
+                {
+                    return;
+                }
+            }
+            final JarDiffEntry entry = new JarDiffEntry( result, _store != null );
+            JarDiffEntry cached = getJarDiffEntry( _key, new BoundedCache.Loader<JarDiffKey, JarDiffEntry>()
+            {
+                public JarDiffEntry load( JarDiffKey key )
+                {
+                    return entry;
+                }
+            } );
+            if ( cached != entry && !entry._persistent )
+            {
+                // Generated by another request in the meantime
+                result.release();
+            }
+        }
+    }
+
+    /* Copies the data written to a stream to a second stream, which is given up on failure */
+    private static class TeeOutputStream
+            extends OutputStream
+    {
+        private final OutputStream _out;
+
+        private OutputStream _branch;
+
+        private boolean _failed;
+
+        TeeOutputStream( OutputStream out, OutputStream branch )
+        {
+            _out = out;
+            _branch = branch;
+        }
+
+        public void write( int b )
+                throws IOException
+        {
+            _out.write( b );
+            if ( _branch != null )
+            {
+                try
+                {
+                    _branch.write( b );
+                }
+                catch ( IOException e )
+                {
+                    fail();
+                }
+            }
+        }
+
+        public void write( byte[] b, int off, int len )
+                throws IOException
+        {
+            _out.write( b, off, len );
+            if ( _branch != null )
+            {
+                try
+                {
+                    _branch.write( b, off, len );
+                }
+                catch ( IOException e )
+                {
+                    fail();
+                }
+            }
+        }
+
+        public void flush()
+                throws IOException
+        {
+            _out.flush();
+        }
+
+        /**
+         * Closes the second stream.
+         *
+         * @return true if all the data was written to the second stream
+         */
+        boolean closeBranch()
+        {
+            if ( _branch != null )
+            {
+                try
+                {
+                    _branch.close();
+                }
+                catch ( IOException e )
+                {
+                    _failed = true;
+                }
+                _branch = null;
+            }
+            return !_failed;
+        }
+
+        private void fail()
+        {
+            _failed = true;
+            closeBranch();
+        }
+    }
 
     public static boolean isJavawsVersion( DownloadRequest dreq, String version )
     {
@@ -326,8 +821,11 @@ public class JarDiffHandler
                 totalRead += read;
             }
 
-            _log.addDebug( "total read: " + totalRead );
-            _log.addDebug( "Wrote URL " + target.toString() + " to file " + file );
+            if ( _log.isDebugLevel() )
+            {
+                _log.addDebug( "total read: " + totalRead );
+            }
+            _log.addDebug( "Wrote URL ", target, " to file ", file );
 
         }
         catch ( IOException ioe )
@@ -400,21 +898,30 @@ public class JarDiffHandler
     }
 
 
-    private File generateJarDiff( ResourceCatalog catalog, DownloadRequest dreq, JnlpResource res,
-                                  boolean doJarDiffWorkAround )
+    private SharedFile generateJarDiff( JnlpResource fromRes, JnlpResource res, boolean minimal )
     {
         boolean del_old = false;
         boolean del_new = false;
+        String newFilePath = null;
+        String oldFilePath = null;
+        File outputFile = null;
 
-        // Lookup up file for request version
-        DownloadRequest fromDreq = dreq.getFromDownloadRequest();
         try
         {
-            JnlpResource fromRes = catalog.lookupResource( fromDreq );
+            // Check if the JarDiff was generated before, e.g. before a restart
+            if ( _store != null )
+            {
+                SharedFile stored = _store.lookup( fromRes, res, minimal );
+                if ( stored != null )
+                {
+                    _log.addDebug( "JarDiff found in store: ", stored );
+                    return stored;
+                }
+            }
 
             /* Get file locations */
-            String newFilePath = _servletContext.getRealPath( res.getPath() );
-            String oldFilePath = _servletContext.getRealPath( fromRes.getPath() );
+            newFilePath = _servletContext.getRealPath( res.getPath() );
+            oldFilePath = _servletContext.getRealPath( fromRes.getPath() );
 
             // fix for 4720897
             if ( newFilePath == null )
@@ -440,73 +947,129 @@ public class JarDiffHandler
                 return null;
             }
 
-            // Create temp. file to store JarDiff file in
-            File tempDir = (File) _servletContext.getAttribute( "javax.servlet.context.tempdir" );
+            // The source jars may have been touched without changing, look up by content
+            String hash = null;
+            if ( _store != null )
+            {
+                hash = _store.getHash( fromRes, oldFilePath, res, newFilePath, minimal );
+                SharedFile stored = _store.lookup( hash, fromRes, res, minimal );
+                if ( stored != null )
+                {
+                    _log.addDebug( "JarDiff found in store: ", stored );
+                    return stored;
+                }
+            }
 
-            // fix for 4653036: JarDiffHandler() should use javax.servlet.context.tempdir to store the jardiff
-            File outputFile = File.createTempFile( "jnlp", ".jardiff", tempDir );
+            outputFile = createOutputFile();
 
-            _log.addDebug(
-                    "Generating Jardiff between " + oldFilePath + " and " + newFilePath + " Store in " + outputFile );
+            if ( _log.isDebugLevel() )
+            {
+                _log.addDebug( "Generating Jardiff between " + oldFilePath + " and " + newFilePath + " Store in " +
+                                       outputFile );
+            }
 
             // Generate JarDiff
             OutputStream os = new FileOutputStream( outputFile );
 
-            JarDiff.createPatch( oldFilePath, newFilePath, os, !doJarDiffWorkAround );
-            os.close();
-
             try
             {
-
-                // Check that Jardiff is smaller, or return null
-                if ( outputFile.length() >= ( new File( newFilePath ).length() ) )
-                {
-                    _log.addDebug( "JarDiff discarded - since it is bigger" );
-                    return null;
-                }
-
-                // Check that Jardiff is smaller than the packed version of
-                // the new file, if the file exists at all
-                File newFilePacked = new File( newFilePath + ".pack.gz" );
-                if ( newFilePacked.exists() )
-                {
-                    _log.addDebug( "generated jardiff size: " + outputFile.length() );
-                    _log.addDebug( "packed requesting file size: " + newFilePacked.length() );
-                    if ( outputFile.length() >= newFilePacked.length() )
-                    {
-                        _log.addDebug( "JarDiff discarded - packed version of requesting file is smaller" );
-                        return null;
-                    }
-                }
-
-                _log.addDebug( "JarDiff generation succeeded" );
-                return outputFile;
-
+                JarDiff.createPatch( oldFilePath, newFilePath, os, minimal, _pool );
             }
             finally
             {
-                // delete the temporarily downloaded file
-                if ( del_new )
-                {
-                    new File( newFilePath ).delete();
-                }
+                os.close();
+            }
 
-                if ( del_old )
-                {
-                    new File( oldFilePath ).delete();
-                }
+            if ( !isSmallerThanJar( outputFile.length(), newFilePath ) )
+            {
+                return null;
+            }
+
+            _log.addDebug( "JarDiff generation succeeded" );
+            SharedFile result;
+            if ( _store == null )
+            {
+                result = new SharedFile( outputFile );
+            }
+            else
+            {
+                result = _store.put( hash, fromRes, oldFilePath, res, newFilePath, minimal, outputFile );
             }
+            outputFile = null;
+            return result;
         }
         catch ( IOException ioe )
         {
             _log.addDebug( "Failed to genereate jardiff", ioe );
             return null;
         }
-        catch ( ErrorResponseException ere )
+        finally
         {
-            _log.addDebug( "Failed to genereate jardiff", ere );
-            return null;
+            // delete a discarded jardiff
+            if ( outputFile != null )
+            {
+                outputFile.delete();
+            }
+
+            // delete the temporarily downloaded file
+            if ( del_new )
+            {
+                new File( newFilePath ).delete();
+            }
+
+            if ( del_old )
+            {
+                new File( oldFilePath ).delete();
+            }
         }
     }
-}
 
+    /**
+     * @return a new file to write a JarDiff to
+     */
+    private File createOutputFile()
+            throws IOException
+    {
+        if ( _store != null )
+        {
+            return _store.createTempFile();
+        }
+
+        // Create temp. file to store JarDiff file in
+        File tempDir = (File) _servletContext.getAttribute( "javax.servlet.context.tempdir" );
+
+        // fix for 4653036: JarDiffHandler() should use javax.servlet.context.tempdir to store the jardiff
+        return File.createTempFile( "jnlp", ".jardiff", tempDir );
+    }
+
+    /**
+     * @return true if a JarDiff of the given size is worth sending instead of the new jar
+     */
+    private boolean isSmallerThanJar( long jarDiffSize, String newFilePath )
+    {
+        // Check that Jardiff is smaller
+        if ( jarDiffSize >= ( new File( newFilePath ).length() ) )
+        {
+            _log.addDebug( "JarDiff discarded - since it is bigger" );
+            return false;
+        }
+
+        // Check that Jardiff is smaller than the packed version of
+        // the new file, if the file exists at all
+        File newFilePacked = new File( newFilePath + ".pack.gz" );
+        if ( newFilePacked.exists() )
+        {
+            if ( _log.isDebugLevel() )
+            {
+                _log.addDebug( "generated jardiff size: " + jarDiffSize );
+                _log.addDebug( "packed requesting file size: " + newFilePacked.length() );
+            }
+            if ( jarDiffSize >= newFilePacked.length() )
+            {
+                _log.addDebug( "JarDiff discarded - packed version of requesting file is smaller" );
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,204 @@
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.VersionID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates JarDiffs in the background, ahead of the first request for them.
+ * <p>
+ * Whenever the {@link ResourceCatalog} (re)reads the entries of a directory, the JarDiffs
+ * from the last <code>versions</code> older versions of each jar to its newest version are
+ * generated on a bounded pool of worker threads. The JarDiffs of one resource are generated
+ * one after the other, and no new one is started once the time budget of the resource
+ * is spent.
+ */
+class JarDiffPrecomputer
+        implements ResourceCatalog.Listener
+{
+    // Maximum number of resources waiting for a worker thread
+    private static final int QUEUE_SIZE = 1024;
+
+    private final JarDiffHandler _jarDiffHandler;
+
+    private final Logger _log;
+
+    private final int _versions;
+
+    private final long _budgetMillis;
+
+    private final ThreadPoolExecutor _executor;
+
+    /* Resources already scheduled, by path and timestamp of their newest version */
+    private final Set<String> _scheduled = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+    /**
+     * @param jarDiffHandler handler that generates and caches the JarDiffs
+     * @param log            logger
+     * @param versions       number of older versions to generate a JarDiff from
+     * @param threads        number of worker threads
+     * @param budgetMillis   time budget of a resource in milliseconds, or 0 for no limit
+     */
+    JarDiffPrecomputer( JarDiffHandler jarDiffHandler, Logger log, int versions, int threads, long budgetMillis )
+    {
+        _jarDiffHandler = jarDiffHandler;
+        _log = log;
+        _versions = versions;
+        _budgetMillis = budgetMillis;
+        final AtomicInteger count = new AtomicInteger();
+        _executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                                            new ArrayBlockingQueue<Runnable>( QUEUE_SIZE ), new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "jardiff-precompute-" + count.incrementAndGet() );
+                t.setDaemon( true );
+                t.setPriority( Thread.MIN_PRIORITY );
+                return t;
+            }
+        }, new RejectedExecutionHandler()
+        {
+            public void rejectedExecution( Runnable r, ThreadPoolExecutor executor )
+            {
+                // Too much work queued up, a later rescan will schedule it again
+                _scheduled.remove( ( (PrecomputeTask) r )._signature );
+            }
+        } );
+        _executor.allowCoreThreadTimeOut( true );
+    }
+
+    public void entriesChanged( String dir, List<JnlpResource> entries )
+    {
+        // Group the versions of each jar, platform specific jars are only diffed against the same platform
+        Map<String, List<JnlpResource>> groups = new LinkedHashMap<>();
+        Set<String> paths = new HashSet<>();
+        for ( JnlpResource res : entries )
+        {
+            if ( res.getVersionId() == null || !res.isJarFile() || !paths.add( res.getPath() ) )
+            {
+                continue;
+            }
+            String group = res.getName() + Arrays.toString( res.getOSList() ) + Arrays.toString( res.getArchList() ) +
+                    Arrays.toString( res.getLocaleList() );
+            List<JnlpResource> versions = groups.get( group );
+            if ( versions == null )
+            {
+                versions = new ArrayList<>();
+                groups.put( group, versions );
+            }
+            versions.add( res );
+        }
+
+        for ( List<JnlpResource> versions : groups.values() )
+        {
+            if ( versions.size() < 2 )
+            {
+                continue;
+            }
+            // The highest version, the first one of equal versions as in ResourceCatalog.findMatch
+            JnlpResource newest = versions.get( 0 );
+            VersionID newestId = VersionID.valueOf( newest.getVersionId() );
+            boolean numeric = true;
+            for ( JnlpResource res : versions )
+            {
+                VersionID id = VersionID.valueOf( res.getVersionId() );
+                if ( id.isGreaterThan( newestId ) )
+                {
+                    newest = res;
+                    newestId = id;
+                }
+                numeric &= ResourceIndex.isNumericVersion( res.getVersionId() );
+            }
+            List<JnlpResource> older = new ArrayList<>( versions );
+            older.remove( newest );
+            if ( numeric )
+            {
+                // Newest first. Numeric and non-numeric elements are not ordered consistently,
+                // so the others are kept in the order of the catalog as ResourceIndex does
+                Collections.sort( older, new Comparator<JnlpResource>()
+                {
+                    public int compare( JnlpResource r1, JnlpResource r2 )
+                    {
+                        return VersionID.valueOf( r2.getVersionId() ).compareTo(
+                                VersionID.valueOf( r1.getVersionId() ) );
+                    }
+                } );
+            }
+            older = older.subList( 0, Math.min( older.size(), _versions ) );
+            String signature = newest.getPath() + '@' + newest.getLastModified();
+            if ( _scheduled.add( signature ) )
+            {
+                _executor.execute( new PrecomputeTask( newest, older, signature ) );
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads. JarDiffs being generated are abandoned.
+     */
+    void shutdown()
+    {
+        _executor.shutdownNow();
+    }
+
+    /* Generates the JarDiffs of one resource */
+    private class PrecomputeTask
+            implements Runnable
+    {
+        private final JnlpResource _newest;
+
+        private final List<JnlpResource> _older;
+
+        private final String _signature;
+
+        PrecomputeTask( JnlpResource newest, List<JnlpResource> older, String signature )
+        {
+            _newest = newest;
+            _older = older;
+            _signature = signature;
+        }
+
+        public void run()
+        {
+            try
+            {
+                long deadline = System.currentTimeMillis() + _budgetMillis;
+                for ( JnlpResource fromRes : _older )
+                {
+                    if ( Thread.currentThread().isInterrupted() )
+                    {
+                        return;
+                    }
+                    if ( _budgetMillis > 0 && System.currentTimeMillis() > deadline )
+                    {
+                        // A later rescan tries the remaining versions
+                        _log.addDebug( "JarDiff precompute budget exceeded for ", _newest.getPath() );
+                        return;
+                    }
+                    _log.addDebug( "Precomputing JarDiff from ", fromRes.getPath(), " to ", _newest.getPath() );
+                    _jarDiffHandler.precomputeJarDiff( fromRes, _newest );
+                }
+            }
+            finally
+            {
+                // Done, the JarDiffs are cached or stored from now on
+                _scheduled.remove( _signature );
+            }
+        }
+    }
+}
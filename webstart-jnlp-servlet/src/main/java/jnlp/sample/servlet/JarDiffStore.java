@@ -0,0 +1,726 @@
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.BoundedCache;
+import jnlp.sample.util.SharedFile;
+
+import javax.servlet.ServletContext;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent, content addressed store of generated JarDiff files.
+ * <p>
+ * A JarDiff is identified by the resource name, the from- and to-versions, the minimal
+ * flag and the checksums of the two source jars. The files are kept in a configurable
+ * directory together with an index, which is reloaded when the servlet starts so that
+ * JarDiffs computed before a restart are served at once. The total size of the store is
+ * bounded by a quota, and entries whose source jars have disappeared from the web
+ * application or changed are removed when the catalog reads their directory again. A file removed from the store while it is sent to a client is
+ * deleted once it has been sent.
+ * <p>
+ * Changes are appended to the index as they are made, a removal being recorded as a line
+ * with the content address alone; the index is rewritten once it holds many more lines
+ * than there are JarDiffs.
+ */
+class JarDiffStore
+{
+    private static final String INDEX_FILENAME = "index.txt";
+
+    private static final String INDEX_HEADER = "jardiff-store 1.0";
+
+    private static final String JARDIFF_SUFFIX = ".jardiff";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String REMOVED_PREFIX = "-\t";
+
+    /* Appended lines beyond which the index is rewritten, in addition to twice the number of JarDiffs */
+    private static final int INDEX_SLACK = 64;
+
+    private static final int BUF_SIZE = 32 * 1024;
+
+    // Maximum number of source jar checksums remembered
+    private static final int CHECKSUM_CACHE_MAX_ENTRIES = 4096;
+
+    /* Contains information about a stored JarDiff */
+    private static class Record
+    {
+        private String _hash;           // Content address, also the file name
+
+        private String _name;           // Name of resource
+
+        private String _fromVersionId;
+
+        private String _toVersionId;
+
+        private boolean _minimal;
+
+        private String _oldPath;        // Path of source jars in WAR file
+
+        private long _oldLastModified;
+
+        private String _oldChecksum;
+
+        private String _newPath;
+
+        private long _newLastModified;
+
+        private String _newChecksum;
+
+        private long _size;             // Size of JarDiff file
+
+        private long _lastAccess;
+
+        private SharedFile _file;       // The JarDiff file, referenced by the store
+
+        String getLocation()
+        {
+            return location( _name, _fromVersionId, _toVersionId, _minimal, _oldPath, _oldLastModified, _newPath,
+                             _newLastModified );
+        }
+
+        String toLine()
+        {
+            return _hash + '\t' + _name + '\t' + _fromVersionId + '\t' + _toVersionId + '\t' + _minimal + '\t' +
+                    _oldPath + '\t' + _oldLastModified + '\t' + _oldChecksum + '\t' + _newPath + '\t' +
+                    _newLastModified + '\t' + _newChecksum + '\t' + _size;
+        }
+
+        static Record fromLine( String line )
+        {
+            String[] fields = line.split( "\t" );
+            if ( fields.length != 12 )
+            {
+                return null;
+            }
+            try
+            {
+                Record r = new Record();
+                r._hash = fields[0];
+                r._name = fields[1];
+                r._fromVersionId = fields[2];
+                r._toVersionId = fields[3];
+                r._minimal = Boolean.valueOf( fields[4] );
+                r._oldPath = fields[5];
+                r._oldLastModified = Long.parseLong( fields[6] );
+                r._oldChecksum = fields[7];
+                r._newPath = fields[8];
+                r._newLastModified = Long.parseLong( fields[9] );
+                r._newChecksum = fields[10];
+                r._size = Long.parseLong( fields[11] );
+                return r;
+            }
+            catch ( NumberFormatException e )
+            {
+                return null;
+            }
+        }
+    }
+
+    private final ServletContext _servletContext;
+
+    private final Logger _log;
+
+    private final File _dir;
+
+    private final long _maxBytes;
+
+    /* Stored JarDiffs by content address */
+    private final Map<String, Record> _byHash = new HashMap<>();
+
+    /* Content address by name, versions and location of the source jars */
+    private final Map<String, String> _byLocation = new HashMap<>();
+
+    /* Files removed from the store which may still be sent to clients, by content address */
+    private final Map<String, SharedFile> _released = new HashMap<>();
+
+    /* Checksums of source jars by path and last modified time */
+    private final BoundedCache<String, String> _checksums =
+            new BoundedCache<>( CHECKSUM_CACHE_MAX_ENTRIES, 0, null, null );
+
+    /* Index lines not written yet */
+    private final List<String> _pendingLines = new ArrayList<>();
+
+    /* Lines appended to the index since it was last rewritten */
+    private int _appendedLines;
+
+    private long _totalBytes;
+
+    private long _clock;
+
+    /**
+     * Create a store and load the index of a previous run
+     *
+     * @param servletContext context used to check for the source jars
+     * @param log            logger
+     * @param dir            directory of the store, created if needed
+     * @param maxBytes       maximum total size of the stored JarDiffs, or 0 for no limit
+     */
+    JarDiffStore( ServletContext servletContext, Logger log, File dir, long maxBytes )
+    {
+        _servletContext = servletContext;
+        _log = log;
+        _dir = dir;
+        _maxBytes = maxBytes;
+        if ( !_dir.isDirectory() && !_dir.mkdirs() )
+        {
+            _log.addWarning( "servlet.log.warning.jardiff.store", _dir.getPath() );
+        }
+        load();
+    }
+
+    /**
+     * Looks up a JarDiff by the location and timestamp of its source jars. This does not
+     * require the source jars to be read, so it is the fast path after a restart.
+     *
+     * @param oldRes  resource the JarDiff applies to
+     * @param newRes  resource the JarDiff produces
+     * @param minimal true for a minimal JarDiff
+     * @return the stored JarDiff file, or <code>null</code> if not found
+     */
+    synchronized SharedFile lookup( JnlpResource oldRes, JnlpResource newRes, boolean minimal )
+    {
+        String hash = _byLocation.get(
+                location( newRes.getName(), oldRes.getReturnVersionId(), newRes.getReturnVersionId(), minimal,
+                          oldRes.getPath(), oldRes.getLastModified(), newRes.getPath(),
+                          newRes.getLastModified() ) );
+        SharedFile f = hash == null ? null : lookup( hash );
+        appendIndex();
+        return f;
+    }
+
+    /**
+     * Looks up a JarDiff by its content address. On a hit, the location of the source jars
+     * is updated so that the next lookup takes the fast path.
+     *
+     * @param hash    content address as returned by {@link #getHash}
+     * @param oldRes  resource the JarDiff applies to
+     * @param newRes  resource the JarDiff produces
+     * @param minimal true for a minimal JarDiff
+     * @return the stored JarDiff file, or <code>null</code> if not found
+     */
+    synchronized SharedFile lookup( String hash, JnlpResource oldRes, JnlpResource newRes, boolean minimal )
+    {
+        SharedFile f = lookup( hash );
+        if ( f != null )
+        {
+            Record r = _byHash.get( hash );
+            String location = r.getLocation();
+            String newLocation = location( r._name, r._fromVersionId, r._toVersionId, r._minimal, oldRes.getPath(),
+                                           oldRes.getLastModified(), newRes.getPath(), newRes.getLastModified() );
+            if ( !newLocation.equals( location ) )
+            {
+                if ( hash.equals( _byLocation.get( location ) ) )
+                {
+                    _byLocation.remove( location );
+                }
+                r._oldPath = oldRes.getPath();
+                r._oldLastModified = oldRes.getLastModified();
+                r._newPath = newRes.getPath();
+                r._newLastModified = newRes.getLastModified();
+                _byLocation.put( newLocation, hash );
+                _pendingLines.add( r.toLine() );
+            }
+        }
+        appendIndex();
+        return f;
+    }
+
+    private SharedFile lookup( String hash )
+    {
+        Record r = _byHash.get( hash );
+        if ( r == null )
+        {
+            return null;
+        }
+        if ( !r._file.getFile().exists() )
+        {
+            remove( r );
+            return null;
+        }
+        r._lastAccess = ++_clock;
+        return r._file;
+    }
+
+    /**
+     * Computes the content address of a JarDiff.
+     *
+     * @param oldRes     resource the JarDiff applies to
+     * @param oldJarPath local copy of the old jar
+     * @param newRes     resource the JarDiff produces
+     * @param newJarPath local copy of the new jar
+     * @param minimal    true for a minimal JarDiff
+     * @return the content address
+     * @throws IOException if a source jar could not be read
+     */
+    String getHash( JnlpResource oldRes, String oldJarPath, JnlpResource newRes, String newJarPath,
+                    boolean minimal )
+            throws IOException
+    {
+        return digest( newRes.getName() + '\n' + oldRes.getReturnVersionId() + '\n' + newRes.getReturnVersionId() +
+                               '\n' + minimal + '\n' + getChecksum( oldRes, oldJarPath ) + '\n' +
+                               getChecksum( newRes, newJarPath ) );
+    }
+
+    /**
+     * @return a temporary file in the store directory, so that it can be moved into the store cheaply
+     * @throws IOException if the file could not be created
+     */
+    File createTempFile()
+            throws IOException
+    {
+        return File.createTempFile( "jnlp", TMP_SUFFIX, _dir );
+    }
+
+    /**
+     * Moves a generated JarDiff into the store.
+     *
+     * @param hash       content address as returned by {@link #getHash}
+     * @param oldRes     resource the JarDiff applies to
+     * @param oldJarPath local copy of the old jar
+     * @param newRes     resource the JarDiff produces
+     * @param newJarPath local copy of the new jar
+     * @param minimal    true for a minimal JarDiff
+     * @param jarDiff    the generated file, usually created by {@link #createTempFile()}
+     * @return the stored JarDiff file, or <code>null</code> if it could not be stored
+     * @throws IOException if a source jar could not be read
+     */
+    synchronized SharedFile put( String hash, JnlpResource oldRes, String oldJarPath, JnlpResource newRes,
+                           String newJarPath, boolean minimal, File jarDiff )
+            throws IOException
+    {
+        Record r = new Record();
+        r._hash = hash;
+        r._name = newRes.getName();
+        r._fromVersionId = oldRes.getReturnVersionId();
+        r._toVersionId = newRes.getReturnVersionId();
+        r._minimal = minimal;
+        r._oldPath = oldRes.getPath();
+        r._oldLastModified = oldRes.getLastModified();
+        r._oldChecksum = getChecksum( oldRes, oldJarPath );
+        r._newPath = newRes.getPath();
+        r._newLastModified = newRes.getLastModified();
+        r._newChecksum = getChecksum( newRes, newJarPath );
+        r._size = jarDiff.length();
+        r._lastAccess = ++_clock;
+
+        Record previous = _byHash.get( hash );
+        if ( previous != null )
+        {
+            remove( previous );
+        }
+        // The file of the same content may still be sent to a client, take it back then
+        // rather than replace it, as it would be deleted once sent
+        SharedFile file = _released.remove( hash );
+        if ( file != null && file.acquire() )
+        {
+            jarDiff.delete();
+        }
+        else
+        {
+            File f = getFile( hash );
+            f.delete();
+            if ( !jarDiff.renameTo( f ) )
+            {
+                _log.addWarning( "servlet.log.warning.jardiff.store", f.getPath() );
+                jarDiff.delete();
+                appendIndex();
+                return null;
+            }
+            file = new SharedFile( f );
+        }
+        r._file = file;
+        add( r );
+        enforceQuota( r );
+        appendIndex();
+        return file;
+    }
+
+    /**
+     * Removes the JarDiffs with a source jar in a directory which does not exist anymore,
+     * or has changed.
+     *
+     * @param dir directory of the web application which has been read again, e.g. <code>/lib/</code>,
+     *            or <code>null</code> to check every JarDiff
+     */
+    synchronized void cleanup( String dir )
+    {
+        removeStale( dir );
+        appendIndex();
+    }
+
+    // Remove the JarDiffs with a missing or changed source jar, in the directory if not null
+    private void removeStale( String dir )
+    {
+        for ( Record r : new ArrayList<>( _byHash.values() ) )
+        {
+            if ( dir != null && !r._oldPath.startsWith( dir ) && !r._newPath.startsWith( dir ) )
+            {
+                continue;
+            }
+            boolean oldCurrent = isCurrent( r._oldPath, r._oldLastModified );
+            boolean newCurrent = isCurrent( r._newPath, r._newLastModified );
+            if ( !oldCurrent || !newCurrent )
+            {
+                _log.addDebug( "Removing JarDiff with missing source jar from store: ", r._hash );
+                remove( r );
+                // Not looked up again under this timestamp
+                if ( !oldCurrent )
+                {
+                    _checksums.invalidate( r._oldPath + '@' + r._oldLastModified );
+                }
+                if ( !newCurrent )
+                {
+                    _checksums.invalidate( r._newPath + '@' + r._newLastModified );
+                }
+            }
+        }
+    }
+
+    private File getFile( String hash )
+    {
+        return new File( _dir, hash + JARDIFF_SUFFIX );
+    }
+
+    private void add( Record r )
+    {
+        _byHash.put( r._hash, r );
+        _byLocation.put( r.getLocation(), r._hash );
+        _checksums.put( r._oldPath + '@' + r._oldLastModified, r._oldChecksum );
+        _checksums.put( r._newPath + '@' + r._newLastModified, r._newChecksum );
+        _totalBytes += r._size;
+        _pendingLines.add( r.toLine() );
+    }
+
+    private void remove( Record r )
+    {
+        if ( _byHash.remove( r._hash ) == null )
+        {
+            return;
+        }
+        String location = r.getLocation();
+        if ( r._hash.equals( _byLocation.get( location ) ) )
+        {
+            _byLocation.remove( location );
+        }
+        _totalBytes -= r._size;
+        _pendingLines.add( REMOVED_PREFIX + r._hash );
+        // Deleted once it is not sent to any client anymore
+        r._file.release();
+        if ( !r._file.isReleased() )
+        {
+            _released.put( r._hash, r._file );
+        }
+        for ( Iterator<SharedFile> it = _released.values().iterator(); it.hasNext(); )
+        {
+            if ( it.next().isReleased() )
+            {
+                it.remove();
+            }
+        }
+    }
+
+    // Remove least recently used JarDiffs until the store fits in its quota
+    private void enforceQuota( Record keep )
+    {
+        if ( _maxBytes <= 0 || _totalBytes <= _maxBytes )
+        {
+            return;
+        }
+        while ( _totalBytes > _maxBytes && _byHash.size() > 1 )
+        {
+            Record victim = null;
+            for ( Record r : _byHash.values() )
+            {
+                if ( r != keep && ( victim == null || r._lastAccess < victim._lastAccess ) )
+                {
+                    victim = r;
+                }
+            }
+            _log.addDebug( "Evicting JarDiff from store: ", victim._hash );
+            remove( victim );
+        }
+        // Files of earlier removals which could not be deleted then
+        deleteOrphans( false );
+    }
+
+    /**
+     * Deletes the files of the store directory which are not referenced by the index,
+     * except those still sent to clients.
+     *
+     * @param temporary true to delete temporary files as well, which are otherwise JarDiffs being generated
+     */
+    private void deleteOrphans( boolean temporary )
+    {
+        File[] files = _dir.listFiles();
+        if ( files == null )
+        {
+            return;
+        }
+        for ( File f : files )
+        {
+            String name = f.getName();
+            if ( name.endsWith( TMP_SUFFIX ) )
+            {
+                if ( temporary )
+                {
+                    f.delete();
+                }
+            }
+            else if ( name.endsWith( JARDIFF_SUFFIX ) )
+            {
+                String hash = name.substring( 0, name.length() - JARDIFF_SUFFIX.length() );
+                SharedFile released = _released.get( hash );
+                if ( !_byHash.containsKey( hash ) && ( released == null || released.isReleased() ) )
+                {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    // Returns true if the resource still exists in the WAR with the same timestamp
+    private boolean isCurrent( String path, long lastModified )
+    {
+        try
+        {
+            if ( _servletContext.getResource( path ) == null )
+            {
+                return false;
+            }
+        }
+        catch ( MalformedURLException e )
+        {
+            return false;
+        }
+        String realPath = _servletContext.getRealPath( path );
+        return realPath == null || new File( realPath ).lastModified() == lastModified;
+    }
+
+    private String getChecksum( JnlpResource res, String localPath )
+            throws IOException
+    {
+        String key = res.getPath() + '@' + res.getLastModified();
+        String checksum = _checksums.getIfPresent( key );
+        if ( checksum == null )
+        {
+            checksum = digest( new File( localPath ) );
+            _checksums.put( key, checksum );
+        }
+        return checksum;
+    }
+
+    private static String location( String name, String fromVersionId, String toVersionId, boolean minimal,
+                                    String oldPath, long oldLastModified, String newPath, long newLastModified )
+    {
+        return name + '\n' + fromVersionId + '\n' + toVersionId + '\n' + minimal + '\n' + oldPath + '@' +
+                oldLastModified + '\n' + newPath + '@' + newLastModified;
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static String digest( String s )
+            throws IOException
+    {
+        return toHex( newDigest().digest( s.getBytes( "UTF-8" ) ) );
+    }
+
+    private static String digest( File file )
+            throws IOException
+    {
+        MessageDigest md = newDigest();
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buf = new byte[BUF_SIZE];
+            int read;
+            while ( ( read = in.read( buf ) ) != -1 )
+            {
+                md.update( buf, 0, read );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return toHex( md.digest() );
+    }
+
+    private static String toHex( byte[] bytes )
+    {
+        StringBuilder sb = new StringBuilder( bytes.length * 2 );
+        for ( byte b : bytes )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) );
+            sb.append( Character.forDigit( b & 0xf, 16 ) );
+        }
+        return sb.toString();
+    }
+
+    // Read the index of a previous run, dropping entries whose files are gone
+    private synchronized void load()
+    {
+        File index = new File( _dir, INDEX_FILENAME );
+        if ( index.exists() )
+        {
+            // The latest line of a content address wins, in the order of the index
+            Map<String, Record> records = new LinkedHashMap<>();
+            try
+            {
+                BufferedReader br = new BufferedReader( new InputStreamReader( new FileInputStream( index ), "UTF-8" ) );
+                try
+                {
+                    String line = br.readLine();
+                    if ( INDEX_HEADER.equals( line ) )
+                    {
+                        while ( ( line = br.readLine() ) != null )
+                        {
+                            if ( line.startsWith( REMOVED_PREFIX ) )
+                            {
+                                records.remove( line.substring( REMOVED_PREFIX.length() ) );
+                                continue;
+                            }
+                            Record r = Record.fromLine( line );
+                            if ( r != null )
+                            {
+                                records.put( r._hash, r );
+                            }
+                        }
+                    }
+                }
+                finally
+                {
+                    br.close();
+                }
+            }
+            catch ( IOException ioe )
+            {
+                _log.addWarning( "servlet.log.warning.jardiff.store", index.getPath(), ioe );
+            }
+            for ( Record r : records.values() )
+            {
+                if ( getFile( r._hash ).exists() )
+                {
+                    // Keep the access order of the previous run, approximately
+                    r._lastAccess = getFile( r._hash ).lastModified();
+                    r._file = new SharedFile( getFile( r._hash ) );
+                    add( r );
+                }
+            }
+        }
+        for ( Record r : _byHash.values() )
+        {
+            _clock = Math.max( _clock, r._lastAccess );
+        }
+        _log.addDebug( "Loaded ", _byHash.size(), " JarDiffs from store ", _dir );
+
+        // Remove files which are not referenced by the index, e.g. left over by a crash
+        deleteOrphans( true );
+        removeStale( null );
+        enforceQuota( null );
+        saveIndex();
+    }
+
+    // Append the pending lines to the index, or rewrite it if it has grown too much
+    private void appendIndex()
+    {
+        if ( _pendingLines.isEmpty() )
+        {
+            return;
+        }
+        File index = new File( _dir, INDEX_FILENAME );
+        if ( _appendedLines + _pendingLines.size() > 2 * _byHash.size() + INDEX_SLACK || !index.exists() )
+        {
+            saveIndex();
+            return;
+        }
+        try
+        {
+            PrintWriter pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( index, true ), "UTF-8" ) );
+            try
+            {
+                for ( String line : _pendingLines )
+                {
+                    pw.println( line );
+                }
+            }
+            finally
+            {
+                pw.close();
+            }
+            if ( pw.checkError() )
+            {
+                throw new IOException( "Cannot append to " + index );
+            }
+            _appendedLines += _pendingLines.size();
+            _pendingLines.clear();
+        }
+        catch ( IOException ioe )
+        {
+            _log.addWarning( "servlet.log.warning.jardiff.store", index.getPath(), ioe );
+            // A partly written line would be ignored or misread, write the whole index again
+            saveIndex();
+        }
+    }
+
+    // Write the index to a temporary file, then move it into place
+    private void saveIndex()
+    {
+        _pendingLines.clear();
+        _appendedLines = 0;
+        File index = new File( _dir, INDEX_FILENAME );
+        File tmp = new File( _dir, INDEX_FILENAME + ".new" );
+        try
+        {
+            PrintWriter pw = new PrintWriter( new OutputStreamWriter( new FileOutputStream( tmp ), "UTF-8" ) );
+            try
+            {
+                pw.println( INDEX_HEADER );
+                for ( Record r : _byHash.values() )
+                {
+                    pw.println( r.toLine() );
+                }
+            }
+            finally
+            {
+                pw.close();
+            }
+            index.delete();
+            if ( !tmp.renameTo( index ) )
+            {
+                _log.addWarning( "servlet.log.warning.jardiff.store", index.getPath() );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            _log.addWarning( "servlet.log.warning.jardiff.store", index.getPath(), ioe );
+        }
+    }
+}
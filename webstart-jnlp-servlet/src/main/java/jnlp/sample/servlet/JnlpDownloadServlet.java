@@ -36,13 +36,20 @@
 
 package jnlp.sample.servlet;
 
+import jnlp.sample.util.SharedFile;
+
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.StringTokenizer;
 
 /**
  * This Servlet class is an implementation of JNLP Specification's
@@ -75,6 +82,73 @@ public class JnlpDownloadServlet
 
     private static final String PARAM_JNLP_FILE_HANDLER_HOOK = "jnlp-file-handler-hook";
 
+    private static final String PARAM_CACHE_CONTROL = "cache-control";
+
+    private static final String PARAM_JNLP_CACHE_MAX_ENTRIES = "jnlp-cache-max-entries";
+
+    private static final String PARAM_JNLP_CACHE_MAX_BYTES = "jnlp-cache-max-bytes";
+
+    private static final String PARAM_JNLP_CACHE_TTL = "jnlp-cache-ttl";
+
+    private static final String PARAM_JARDIFF_CACHE_MAX_ENTRIES = "jardiff-cache-max-entries";
+
+    private static final String PARAM_JARDIFF_CACHE_MAX_BYTES = "jardiff-cache-max-bytes";
+
+    private static final String PARAM_JARDIFF_STORE_DIR = "jardiff-store-dir";
+
+    private static final String PARAM_JARDIFF_STORE_MAX_BYTES = "jardiff-store-max-bytes";
+
+    private static final String PARAM_JARDIFF_PRECOMPUTE_VERSIONS = "jardiff-precompute-versions";
+
+    private static final String PARAM_JARDIFF_PRECOMPUTE_THREADS = "jardiff-precompute-threads";
+
+    private static final String PARAM_JARDIFF_PRECOMPUTE_BUDGET = "jardiff-precompute-budget";
+
+    private static final String PARAM_JARDIFF_PARALLEL = "jardiff-parallel";
+
+    private static final String PARAM_JARDIFF_PARALLEL_THREADS = "jardiff-parallel-threads";
+
+    private static final String PARAM_JARDIFF_STREAMING = "jardiff-streaming";
+
+    private static final String PARAM_JARDIFF_STREAMING_TEE = "jardiff-streaming-tee";
+
+    private static final String PARAM_RESOURCE_MISS_CACHE_MAX_ENTRIES = "resource-miss-cache-max-entries";
+
+    private static final String PARAM_RESOURCE_MISS_CACHE_TTL = "resource-miss-cache-ttl";
+
+    private static final String PARAM_RESOURCE_WATCH = "resource-watch";
+
+    private static final String PARAM_RESOURCE_METADATA_CACHE_MAX_ENTRIES = "resource-metadata-cache-max-entries";
+
+    private static final String PARAM_RESOURCE_WATCH_LATENCY = "resource-watch-latency";
+
+    private static final String PARAM_RESOURCE_PRELOAD = "resource-preload";
+
+    private static final String PARAM_ASYNC_DOWNLOADS = "async-downloads";
+
+    private static final String PARAM_ASYNC_MIN_LENGTH = "async-min-length";
+
+    private static final String PARAM_ASYNC_TIMEOUT = "async-timeout";
+
+    private static final String PARAM_COMPRESSION = "compression";
+
+    private static final String PARAM_COMPRESSION_CACHE_DIR = "compression-cache-dir";
+
+    private static final String PARAM_COMPRESSION_CACHE_MAX_ENTRIES = "compression-cache-max-entries";
+
+    private static final String PARAM_COMPRESSION_CACHE_MAX_BYTES = "compression-cache-max-bytes";
+
+    private static final String PARAM_COMPRESSION_MIN_LENGTH = "compression-min-length";
+
+    // Default length of the contents sent asynchronously
+    private static final long DEFAULT_ASYNC_MIN_LENGTH = 1024 * 1024;
+
+    // Default time in milliseconds an asynchronous download may take
+    private static final long DEFAULT_ASYNC_TIMEOUT = 10 * 60 * 1000;
+
+    // Default time in milliseconds changes of a watched directory are collected
+    private static final long DEFAULT_RESOURCE_WATCH_LATENCY = 1000;
+
     // Servlet configuration
     private Logger _log = null;
 
@@ -84,6 +158,14 @@ public class JnlpDownloadServlet
 
     private ResourceCatalog _resourceCatalog = null;
 
+    private JarDiffPrecomputer _jarDiffPrecomputer = null;
+
+    private DirectoryWatcher _directoryWatcher = null;
+
+    private ResourceMetadataCache _resourceMetadataCache = null;
+
+    private CompressionCache _compressionCache = null;
+
     /**
      * Initialize servlet
      */
@@ -100,10 +182,175 @@ public class JnlpDownloadServlet
         JnlpResource.setDefaultExtensions( config.getInitParameter( PARAM_JNLP_EXTENSION ),
                                            config.getInitParameter( PARAM_JAR_EXTENSION ) );
 
+        // Remember what is known about the resources of the web application
+        int metadataCacheMaxEntries = (int) getLongParameter( config, PARAM_RESOURCE_METADATA_CACHE_MAX_ENTRIES,
+                                                              ResourceMetadataCache.DEFAULT_MAX_ENTRIES );
+        if ( metadataCacheMaxEntries > 0 )
+        {
+            _resourceMetadataCache = new ResourceMetadataCache( config.getServletContext(), metadataCacheMaxEntries );
+            _resourceMetadataCache.install();
+        }
+
+        // Cache-Control headers, given for all mime types and as cache-control.<mime type>
+        Map<String, String> cacheControl = new HashMap<>();
+        Enumeration names = config.getInitParameterNames();
+        while ( names.hasMoreElements() )
+        {
+            String name = (String) names.nextElement();
+            String value = config.getInitParameter( name );
+            if ( name.startsWith( PARAM_CACHE_CONTROL + "." ) && value != null && value.trim().length() > 0 )
+            {
+                cacheControl.put( name.substring( PARAM_CACHE_CONTROL.length() + 1 ), value.trim() );
+            }
+        }
+        String defaultCacheControl = config.getInitParameter( PARAM_CACHE_CONTROL );
+        DownloadResponse.setCacheControl( defaultCacheControl == null || defaultCacheControl.trim().length() == 0
+                                                  ? null
+                                                  : defaultCacheControl.trim(), cacheControl );
+
+        // Optionally send large contents with non-blocking output (Servlet 3.1)
+        if ( Boolean.valueOf( config.getInitParameter( PARAM_ASYNC_DOWNLOADS ) ) )
+        {
+            DownloadResponse.setAsync( Math.max( 1, getLongParameter( config, PARAM_ASYNC_MIN_LENGTH,
+                                                                      DEFAULT_ASYNC_MIN_LENGTH ) ),
+                                       getLongParameter( config, PARAM_ASYNC_TIMEOUT, DEFAULT_ASYNC_TIMEOUT ) );
+        }
+        else
+        {
+            DownloadResponse.setAsync( 0, 0 );
+        }
+
         JnlpFileHandlerHook hook = createHook( config.getInitParameter(PARAM_JNLP_FILE_HANDLER_HOOK) );
-	_jnlpFileHandler = new JnlpFileHandler( config.getServletContext(), hook, _log );
-        _jarDiffHandler = new JarDiffHandler( config.getServletContext(), _log );
+        _jnlpFileHandler = new JnlpFileHandler( config.getServletContext(), hook, _log,
+                                                (int) getLongParameter( config, PARAM_JNLP_CACHE_MAX_ENTRIES,
+                                                                        JnlpFileHandler.DEFAULT_CACHE_MAX_ENTRIES ),
+                                                getLongParameter( config, PARAM_JNLP_CACHE_MAX_BYTES,
+                                                                  JnlpFileHandler.DEFAULT_CACHE_MAX_BYTES ),
+                                                getLongParameter( config, PARAM_JNLP_CACHE_TTL, 0 ) );
+        String storeDir = config.getInitParameter( PARAM_JARDIFF_STORE_DIR );
+        _jarDiffHandler = new JarDiffHandler( config.getServletContext(), _log,
+                                              (int) getLongParameter( config, PARAM_JARDIFF_CACHE_MAX_ENTRIES,
+                                                                      JarDiffHandler.DEFAULT_CACHE_MAX_ENTRIES ),
+                                              getLongParameter( config, PARAM_JARDIFF_CACHE_MAX_BYTES,
+                                                                JarDiffHandler.DEFAULT_CACHE_MAX_BYTES ),
+                                              ( storeDir == null || storeDir.trim().length() == 0 )
+                                                      ? null
+                                                      : new File( storeDir.trim() ),
+                                              getLongParameter( config, PARAM_JARDIFF_STORE_MAX_BYTES, 0 ) );
+        if ( Boolean.valueOf( config.getInitParameter( PARAM_JARDIFF_PARALLEL ) ) )
+        {
+            int threads = (int) getLongParameter( config, PARAM_JARDIFF_PARALLEL_THREADS,
+                                                  Runtime.getRuntime().availableProcessors() );
+            _jarDiffHandler.setParallel( Math.max( 1, threads ) );
+        }
+        _jarDiffHandler.setStreaming( Boolean.valueOf( config.getInitParameter( PARAM_JARDIFF_STREAMING ) ),
+                                      Boolean.valueOf( config.getInitParameter( PARAM_JARDIFF_STREAMING_TEE ) ) );
         _resourceCatalog = new ResourceCatalog( config.getServletContext(), _log );
+        // Drops the stored JarDiffs of removed or replaced jars
+        _resourceCatalog.addListener( _jarDiffHandler );
+        _resourceCatalog.setMissCache( (int) getLongParameter( config, PARAM_RESOURCE_MISS_CACHE_MAX_ENTRIES,
+                                                               ResourceCatalog.DEFAULT_MISS_CACHE_MAX_ENTRIES ),
+                                       getLongParameter( config, PARAM_RESOURCE_MISS_CACHE_TTL,
+                                                         ResourceCatalog.DEFAULT_MISS_CACHE_TTL ) );
+        if ( Boolean.valueOf( config.getInitParameter( PARAM_RESOURCE_WATCH ) ) )
+        {
+            try
+            {
+                _directoryWatcher = new DirectoryWatcher( _log, getLongParameter( config, PARAM_RESOURCE_WATCH_LATENCY,
+                                                                                  DEFAULT_RESOURCE_WATCH_LATENCY ) );
+                _resourceCatalog.setWatcher( _directoryWatcher );
+                if ( _resourceMetadataCache != null )
+                {
+                    _resourceMetadataCache.setWatcher( _directoryWatcher );
+                }
+            }
+            catch ( IOException e )
+            {
+                _log.addWarning( "servlet.log.warning.watch", PARAM_RESOURCE_WATCH, e );
+            }
+        }
+
+        // Optionally generate JarDiffs in the background when new versions are found
+        int precomputeVersions = (int) getLongParameter( config, PARAM_JARDIFF_PRECOMPUTE_VERSIONS, 0 );
+        if ( precomputeVersions > 0 )
+        {
+            int threads = (int) getLongParameter( config, PARAM_JARDIFF_PRECOMPUTE_THREADS, 1 );
+            long budget = getLongParameter( config, PARAM_JARDIFF_PRECOMPUTE_BUDGET, 0 );
+            _jarDiffPrecomputer =
+                    new JarDiffPrecomputer( _jarDiffHandler, _log, precomputeVersions, Math.max( 1, threads ), budget );
+            _resourceCatalog.addListener( _jarDiffPrecomputer );
+        }
+
+        // Optionally gzip the resources which have no compressed variant
+        if ( Boolean.valueOf( config.getInitParameter( PARAM_COMPRESSION ) ) )
+        {
+            String compressionDir = config.getInitParameter( PARAM_COMPRESSION_CACHE_DIR );
+            File dir = compressionDir == null || compressionDir.trim().length() == 0
+                    ? new File( (File) config.getServletContext().getAttribute( "javax.servlet.context.tempdir" ),
+                                "jnlp-compression" )
+                    : new File( compressionDir.trim() );
+            int maxEntries = (int) getLongParameter( config, PARAM_COMPRESSION_CACHE_MAX_ENTRIES,
+                                                     CompressionCache.DEFAULT_MAX_ENTRIES );
+            long maxBytes = getLongParameter( config, PARAM_COMPRESSION_CACHE_MAX_BYTES,
+                                              CompressionCache.DEFAULT_MAX_BYTES );
+            long minLength = getLongParameter( config, PARAM_COMPRESSION_MIN_LENGTH,
+                                               CompressionCache.DEFAULT_MIN_LENGTH );
+            try
+            {
+                _compressionCache = new CompressionCache( _log, dir, maxEntries, maxBytes, minLength );
+            }
+            catch ( IOException e )
+            {
+                _log.addWarning( "servlet.log.warning.compression", PARAM_COMPRESSION, e );
+            }
+        }
+
+        // Optionally read the entries of the given directories now instead of on the first request
+        String preload = config.getInitParameter( PARAM_RESOURCE_PRELOAD );
+        if ( preload != null )
+        {
+            StringTokenizer st = new StringTokenizer( preload, ", \t\n\r" );
+            while ( st.hasMoreTokens() )
+            {
+                _resourceCatalog.preload( st.nextToken() );
+            }
+        }
+    }
+
+    public void destroy()
+    {
+        if ( _jnlpFileHandler != null )
+        {
+            _log.addInformational( "servlet.log.info.jnlp.cache",
+                                   String.valueOf( _jnlpFileHandler.getCacheHitCount() ),
+                                   String.valueOf( _jnlpFileHandler.getCacheMissCount() ),
+                                   String.valueOf( _jnlpFileHandler.getCacheEvictionCount() ) );
+        }
+        if ( _jarDiffPrecomputer != null )
+        {
+            _jarDiffPrecomputer.shutdown();
+        }
+        if ( _jarDiffHandler != null )
+        {
+            _jarDiffHandler.shutdown();
+        }
+        if ( _directoryWatcher != null )
+        {
+            _directoryWatcher.close();
+        }
+        if ( _compressionCache != null )
+        {
+            _compressionCache.close();
+        }
+        if ( _resourceMetadataCache != null )
+        {
+            _resourceMetadataCache.uninstall();
+        }
+        if ( _log != null )
+        {
+            _log.close();
+        }
+        super.destroy();
     }
 
     /**
@@ -122,6 +369,31 @@ public class JnlpDownloadServlet
         return JnlpFileHandlerHook.IDENTITY;
     }
 
+    /**
+     * Reads a numeric init parameter.
+     *
+     * @param config       servlet configuration
+     * @param name         name of the init parameter
+     * @param defaultValue value used if the parameter is missing or invalid
+     * @return the value of the parameter
+     */
+    private long getLongParameter( ServletConfig config, String name, long defaultValue )
+    {
+        String value = config.getInitParameter( name );
+        if ( value != null && value.trim().length() > 0 )
+        {
+            try
+            {
+                return Long.parseLong( value.trim() );
+            }
+            catch ( NumberFormatException e )
+            {
+                _log.addWarning( "servlet.log.warning.bad-init-param", name, value );
+            }
+        }
+        return defaultValue;
+    }
+
     public static synchronized ResourceBundle getResourceBundle()
     {
         if ( _resourceBundle == null )
@@ -150,17 +422,11 @@ public class JnlpDownloadServlet
     private void handleRequest( HttpServletRequest request, HttpServletResponse response, boolean isHead )
             throws IOException
     {
-        String requestStr = request.getRequestURI();
-        if ( request.getQueryString() != null )
-        {
-            requestStr += "?" + request.getQueryString().trim();
-        }
-
         // Parse HTTP request
         DownloadRequest dreq = new DownloadRequest( getServletContext(), request );
         if ( _log.isInformationalLevel() )
         {
-            _log.addInformational( "servlet.log.info.request", requestStr );
+            _log.addInformational( "servlet.log.info.request", getRequestString( request ) );
             _log.addInformational( "servlet.log.info.useragent", request.getHeader( "User-Agent" ) );
         }
         if ( _log.isDebugLevel() )
@@ -169,6 +435,8 @@ public class JnlpDownloadServlet
         }
 
         long ifModifiedSince = request.getDateHeader( "If-Modified-Since" );
+        // If-None-Match takes precedence over If-Modified-Since, the response checks it
+        boolean ifNoneMatch = request.getHeader( "If-None-Match" ) != null;
 
         // Check if it is a valid request
         try
@@ -178,7 +446,7 @@ public class JnlpDownloadServlet
 
             // Decide what resource to return
             JnlpResource jnlpres = locateResource( dreq );
-            _log.addDebug( "JnlpResource: " + jnlpres );
+            _log.addDebug( "JnlpResource: ", jnlpres );
 
             if ( _log.isInformationalLevel() )
             {
@@ -187,17 +455,26 @@ public class JnlpDownloadServlet
 
             DownloadResponse dres;
 
+            // Caches must not send a compressed resource to clients which do not accept it
+            if ( !jnlpres.isJnlpFile() &&
+                    ( _compressionCache != null || jnlpres.hasCompressedVariant( getServletContext() ) ) )
+            {
+                response.setHeader( "Vary", "Accept-Encoding" );
+            }
+
             if ( isHead )
             {
 
-                int cl = jnlpres.getResource().openConnection().getContentLength();
+                long length = jnlpres.getContentLength();
+                int cl = length >= 0 ? (int) length : jnlpres.getResource().openConnection().getContentLength();
 
                 // head request response
                 dres = DownloadResponse.getHeadRequestResponse( jnlpres.getMimeType(), jnlpres.getVersionId(),
                                                                 jnlpres.getLastModified(), cl );
 
             }
-            else if ( ifModifiedSince != -1 && ( ifModifiedSince / 1000 ) >= ( jnlpres.getLastModified() / 1000 ) )
+            else if ( !ifNoneMatch && ifModifiedSince != -1 &&
+                    ( ifModifiedSince / 1000 ) >= ( jnlpres.getLastModified() / 1000 ) )
             {
                 // We divide the value returned by getLastModified here by 1000
                 // because if protocol is HTTP, last 3 digits will always be 
@@ -217,14 +494,14 @@ public class JnlpDownloadServlet
                 dres = constructResponse( jnlpres, dreq );
             }
 
-            dres.sendRespond( response );
+            dres.sendRespond( request, response );
 
         }
         catch ( ErrorResponseException ere )
         {
             if ( _log.isInformationalLevel() )
             {
-                _log.addInformational( "servlet.log.info.badrequest", requestStr );
+                _log.addInformational( "servlet.log.info.badrequest", getRequestString( request ) );
             }
             if ( _log.isDebugLevel() )
             {
@@ -240,6 +517,19 @@ public class JnlpDownloadServlet
         }
     }
 
+    /**
+     * @return the request URI and query, for the log
+     */
+    private static String getRequestString( HttpServletRequest request )
+    {
+        String requestStr = request.getRequestURI();
+        if ( request.getQueryString() != null )
+        {
+            requestStr += "?" + request.getQueryString().trim();
+        }
+        return requestStr;
+    }
+
     /**
      * Make sure that it is a valid request. This is also the place to implement the
      * reverse IP lookup
@@ -308,7 +598,7 @@ public class JnlpDownloadServlet
         {
             // It is a JNLP file. It need to be macro-expanded, so it is handled differently
             boolean supportQuery = JarDiffHandler.isJavawsVersion( dreq, "1.5+" );
-            _log.addDebug( "SupportQuery in Href: " + supportQuery );
+            _log.addDebug( "SupportQuery in Href: ", supportQuery );
 
             // only support query string in href for 1.5 and above
             if ( supportQuery )
@@ -338,9 +628,26 @@ public class JnlpDownloadServlet
                                   jnlpres.getArchList(), jnlpres.getLocaleList(), jnlpres.getPath(),
                                   jnlpres.getReturnVersionId(), dreq.getEncoding() );
 
-        _log.addDebug( "Real resource returned: " + jr );
+        _log.addDebug( "Real resource returned: ", jr );
+
+        // Send a compressed copy of a resource without compressed variant, once it is ready
+        if ( _compressionCache != null && dreq.isEncodingAccepted( DownloadResponse.GZIP_ENCODING ) &&
+                jr.exists() && jr.getPath().equals( jnlpres.getPath() ) )
+        {
+            SharedFile compressed = _compressionCache.getCompressed( jr );
+            if ( compressed != null )
+            {
+                return DownloadResponse.getFileDownloadResponse( compressed, jr.getMimeType(), jr.getLastModified(),
+                                                                 jr.getReturnVersionId() );
+            }
+        }
 
         // Return WAR file resource
+        if ( jr.getFile() != null )
+        {
+            return DownloadResponse.getFileDownloadResponse( jr.getFile(), jr.getContentLength(), jr.getMimeType(),
+                                                             jr.getLastModified(), jr.getReturnVersionId() );
+        }
         return DownloadResponse.getFileDownloadResponse( jr.getResource(), jr.getMimeType(), jr.getLastModified(),
                                                          jr.getReturnVersionId() );
     }
@@ -36,6 +36,7 @@
 
 package jnlp.sample.servlet;
 
+import jnlp.sample.util.BoundedCache;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -50,18 +51,20 @@ import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringWriter;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.util.Calendar;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
 
 /* The JNLP file handler implements a class that keeps
  * track of JNLP files and their specializations
@@ -72,13 +75,28 @@ public class JnlpFileHandler
 
     private static final String HEADER_LASTMOD = "Last-Modified";
 
+    private static final int TEMPLATE_CACHE_MAX_ENTRIES = 1000;
+
+    // Default bounds of the cache of JNLP files
+    public static final int DEFAULT_CACHE_MAX_ENTRIES = 1000;
+
+    public static final long DEFAULT_CACHE_MAX_BYTES = 16L * 1024 * 1024;
+
     private ServletContext _servletContext;
 
     private JnlpFileHandlerHook _hook;
 
     private Logger _log = null;
 
-    private HashMap _jnlpFiles = null;
+    /**
+     * Specialized JNLP files by request URL. Files for different URLs are generated in
+     * parallel, concurrent requests for the same URL wait for a single generation.
+     */
+    private BoundedCache<String, JnlpFileEntry> _jnlpFiles = null;
+
+    /* Compiled JNLP files by path */
+    private final BoundedCache<String, JnlpTemplate> _templates =
+            new BoundedCache<>( TEMPLATE_CACHE_MAX_ENTRIES, 0, null, null );
 
     /**
      * Initialize JnlpFileHandler for the specific ServletContext
@@ -87,26 +105,53 @@ public class JnlpFileHandler
      * @param servletContext TODO
      */
     public JnlpFileHandler( ServletContext servletContext, JnlpFileHandlerHook hook, Logger log )
+    {
+        this( servletContext, hook, log, DEFAULT_CACHE_MAX_ENTRIES, DEFAULT_CACHE_MAX_BYTES, 0 );
+    }
+
+    /**
+     * Initialize JnlpFileHandler with a bounded cache. When a bound is exceeded, the least
+     * recently used JNLP files are evicted.
+     *
+     * @param servletContext  context the JNLP files are read from
+     * @param hook            hook called before a JNLP file with a query string is sent
+     * @param log             logger
+     * @param cacheMaxEntries maximum number of cached JNLP files, or 0 for no limit
+     * @param cacheMaxBytes   maximum total size of the cached JNLP files, or 0 for no limit
+     * @param cacheTimeToLive time in milliseconds a JNLP file is cached, or 0 for no limit
+     */
+    public JnlpFileHandler( ServletContext servletContext, JnlpFileHandlerHook hook, Logger log,
+                            int cacheMaxEntries, long cacheMaxBytes, long cacheTimeToLive )
     {
         _servletContext = servletContext;
         _hook = hook;
         _log = log;
-        _jnlpFiles = new HashMap();
+        _jnlpFiles = new BoundedCache<>( cacheMaxEntries, cacheMaxBytes, new BoundedCache.Weigher<JnlpFileEntry>()
+        {
+            public long weigh( JnlpFileEntry entry )
+            {
+                return entry.getLength();
+            }
+        }, null, cacheTimeToLive );
     }
 
     private static class JnlpFileEntry
     {
         // Response
-        DownloadResponse _response;
+        private final DownloadResponse _response;
 
         // Keeps track of cache is out of date
-        private long _lastModified;
+        private final long _lastModified;
+
+        // Size of the content, used to bound the cache
+        private final long _length;
 
         // Constructor
-        JnlpFileEntry( DownloadResponse response, long lastmodfied )
+        JnlpFileEntry( DownloadResponse response, long lastmodfied, long length )
         {
             _response = response;
             _lastModified = lastmodfied;
+            _length = length;
         }
 
         public DownloadResponse getResponse()
@@ -118,154 +163,191 @@ public class JnlpFileHandler
         {
             return _lastModified;
         }
+
+        long getLength()
+        {
+            return _length;
+        }
     }
 
     /* Main method to lookup an entry */
-    public synchronized DownloadResponse getJnlpFile( JnlpResource jnlpres, DownloadRequest dreq )
+    public DownloadResponse getJnlpFile( final JnlpResource jnlpres, final DownloadRequest dreq )
             throws IOException
     {
-        String path = jnlpres.getPath();
-        URL resource = jnlpres.getResource();
-        long lastModified = jnlpres.getLastModified();
-
-        _log.addDebug( "lastModified: " + lastModified + " " + new Date( lastModified ) );
-        if ( lastModified == 0 )
-        {
-            _log.addWarning( "servlet.log.warning.nolastmodified", path );
-        }
+        checkLastModified( jnlpres );
 
         // fix for 4474854:  use the request URL as key to look up jnlp file
-        // in hash map
+        // in the cache
         String reqUrl = HttpUtils.getRequestURL( dreq.getHttpRequest() ).toString();
 
-        // Check if entry already exist in HashMap
-        JnlpFileEntry jnlpFile = (JnlpFileEntry) _jnlpFiles.get( reqUrl );
-
-        if ( jnlpFile != null && jnlpFile.getLastModified() == lastModified )
+        return getJnlpFileEntry( reqUrl, jnlpres, new BoundedCache.Loader<String, JnlpFileEntry>()
         {
-            // Entry found in cache, so return it
-            return jnlpFile.getResponse();
-        }
+            public JnlpFileEntry load( String key )
+                    throws IOException
+            {
+                return createJnlpFile( jnlpres, dreq );
+            }
+        } ).getResponse();
+    }
 
-        // Read information from WAR file
-        long timeStamp = lastModified;
-        String mimeType = _servletContext.getMimeType( path );
-        if ( mimeType == null )
+    /* Main method to lookup an entry (NEW for JavaWebStart 1.5+) */
+    public DownloadResponse getJnlpFileEx( final JnlpResource jnlpres, final DownloadRequest dreq )
+            throws IOException
+    {
+        checkLastModified( jnlpres );
+
+        // fix for 4474854:  use the request URL as key to look up jnlp file
+        // in the cache
+        String reqUrl = HttpUtils.getRequestURL( dreq.getHttpRequest() ).toString();
+        // SQE: To support query string, we changed the hash key from Request URL to (Request URL + query string)
+        if ( dreq.getQuery() != null )
         {
-            mimeType = JNLP_MIME_TYPE;
+            reqUrl += dreq.getQuery();
         }
 
-        StringBuilder jnlpFileTemplate = new StringBuilder();
-        URLConnection conn = resource.openConnection();
-        BufferedReader br = new BufferedReader( new InputStreamReader( conn.getInputStream(), "UTF-8" ) );
-        String line = br.readLine();
-        if ( line != null && line.startsWith( "TS:" ) )
+        return getJnlpFileEntry( reqUrl, jnlpres, new BoundedCache.Loader<String, JnlpFileEntry>()
         {
-            timeStamp = parseTimeStamp( line.substring( 3 ) );
-            _log.addDebug( "Timestamp: " + timeStamp + " " + new Date( timeStamp ) );
-            if ( timeStamp == 0 )
+            public JnlpFileEntry load( String key )
+                    throws IOException
             {
-                _log.addWarning( "servlet.log.warning.notimestamp", path );
-                timeStamp = lastModified;
+                return createJnlpFileEx( jnlpres, dreq );
             }
-            line = br.readLine();
-        }
-        while ( line != null )
-        {
-            jnlpFileTemplate.append( line );
-            line = br.readLine();
-        }
-
-        String jnlpFileContent = specializeJnlpTemplate( dreq.getHttpRequest(), path, jnlpFileTemplate.toString() );
+        } ).getResponse();
+    }
 
-        // Convert to bytes as a UTF-8 encoding
-        byte[] byteContent = jnlpFileContent.getBytes( "UTF-8" );
+    /**
+     * @return number of lookups answered from the cache of JNLP files
+     */
+    public long getCacheHitCount()
+    {
+        return _jnlpFiles.getHitCount();
+    }
 
-        // Create entry
-        DownloadResponse resp =
-                DownloadResponse.getFileDownloadResponse( byteContent, mimeType, timeStamp, jnlpres.getReturnVersionId() );
-        jnlpFile = new JnlpFileEntry( resp, lastModified );
-        _jnlpFiles.put( reqUrl, jnlpFile );
+    /**
+     * @return number of lookups which generated a JNLP file
+     */
+    public long getCacheMissCount()
+    {
+        return _jnlpFiles.getMissCount();
+    }
 
-        return resp;
+    /**
+     * @return number of JNLP files evicted from the cache because of its bounds or expiry
+     */
+    public long getCacheEvictionCount()
+    {
+        return _jnlpFiles.getEvictionCount();
     }
 
-    /* Main method to lookup an entry (NEW for JavaWebStart 1.5+) */
-    public synchronized DownloadResponse getJnlpFileEx( JnlpResource jnlpres, DownloadRequest dreq )
-            throws IOException
+    private void checkLastModified( JnlpResource jnlpres )
     {
-        String path = jnlpres.getPath();
-        URL resource = jnlpres.getResource();
         long lastModified = jnlpres.getLastModified();
-
-        _log.addDebug( "lastModified: " + lastModified + " " + new Date( lastModified ) );
+        if ( _log.isDebugLevel() )
+        {
+            _log.addDebug( "lastModified: " + lastModified + " " + new Date( lastModified ) );
+        }
         if ( lastModified == 0 )
         {
-            _log.addWarning( "servlet.log.warning.nolastmodified", path );
+            _log.addWarning( "servlet.log.warning.nolastmodified", jnlpres.getPath() );
         }
+    }
 
-        // fix for 4474854:  use the request URL as key to look up jnlp file
-        // in hash map
-        String reqUrl = HttpUtils.getRequestURL( dreq.getHttpRequest() ).toString();
-        // SQE: To support query string, we changed the hash key from Request URL to (Request URL + query string)
-        if ( dreq.getQuery() != null )
+    /**
+     * Looks up the JNLP file of a request URL, generating it if it is missing or out of
+     * date. Only the stale entry itself is replaced, so that concurrent requests which
+     * find it out of date wait for a single generation of the new one.
+     */
+    private JnlpFileEntry getJnlpFileEntry( String reqUrl, JnlpResource jnlpres,
+                                            BoundedCache.Loader<String, JnlpFileEntry> loader )
+            throws IOException
+    {
+        try
         {
-            reqUrl += dreq.getQuery();
+            JnlpFileEntry jnlpFile = _jnlpFiles.get( reqUrl, loader );
+            if ( jnlpFile.getLastModified() != jnlpres.getLastModified() )
+            {
+                _jnlpFiles.invalidate( reqUrl, jnlpFile );
+                // A file changing again while this is generated is picked up by the next request
+                jnlpFile = _jnlpFiles.get( reqUrl, loader );
+            }
+            return jnlpFile;
         }
-
-        // Check if entry already exist in HashMap
-        JnlpFileEntry jnlpFile = (JnlpFileEntry) _jnlpFiles.get( reqUrl );
-
-        if ( jnlpFile != null && jnlpFile.getLastModified() == lastModified )
+        catch ( ExecutionException ee )
         {
-            // Entry found in cache, so return it
-            return jnlpFile.getResponse();
+            Throwable cause = ee.getCause();
+            if ( cause instanceof IOException )
+            {
+                throw (IOException) cause;
+            }
+            if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+            throw new IOException( cause );
+        }
+        catch ( InterruptedException ie )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for " + reqUrl );
         }
+    }
+
+    private JnlpFileEntry createJnlpFile( JnlpResource jnlpres, DownloadRequest dreq )
+            throws IOException
+    {
+        String path = jnlpres.getPath();
+        long lastModified = jnlpres.getLastModified();
 
         // Read information from WAR file
-        long timeStamp = lastModified;
         String mimeType = _servletContext.getMimeType( path );
         if ( mimeType == null )
         {
             mimeType = JNLP_MIME_TYPE;
         }
 
-        StringBuilder jnlpFileTemplate = new StringBuilder();
-        URLConnection conn = resource.openConnection();
-        BufferedReader br = new BufferedReader( new InputStreamReader( conn.getInputStream(), "UTF-8" ) );
-        String line = br.readLine();
-        if ( line != null && line.startsWith( "TS:" ) )
-        {
-            timeStamp = parseTimeStamp( line.substring( 3 ) );
-            _log.addDebug( "Timestamp: " + timeStamp + " " + new Date( timeStamp ) );
-            if ( timeStamp == 0 )
-            {
-                _log.addWarning( "servlet.log.warning.notimestamp", path );
-                timeStamp = lastModified;
-            }
-            line = br.readLine();
-        }
-        while ( line != null )
+        JnlpTemplate template = getTemplate( jnlpres );
+        long timeStamp = template.getTimeStamp();
+        byte[] byteContent = specializeJnlpTemplate( dreq.getHttpRequest(), path, template );
+
+        // Create entry
+        DownloadResponse resp =
+                DownloadResponse.getFileDownloadResponse( byteContent, mimeType, timeStamp, jnlpres.getReturnVersionId() );
+        return new JnlpFileEntry( resp, lastModified, byteContent.length );
+    }
+
+    private JnlpFileEntry createJnlpFileEx( JnlpResource jnlpres, DownloadRequest dreq )
+            throws IOException
+    {
+        String path = jnlpres.getPath();
+        long lastModified = jnlpres.getLastModified();
+
+        // Read information from WAR file
+        String mimeType = _servletContext.getMimeType( path );
+        if ( mimeType == null )
         {
-            jnlpFileTemplate.append( line );
-            line = br.readLine();
+            mimeType = JNLP_MIME_TYPE;
         }
 
-        String jnlpFileContent = specializeJnlpTemplate( dreq.getHttpRequest(), path, jnlpFileTemplate.toString() );
+        JnlpTemplate template = getTemplate( jnlpres );
+        long timeStamp = template.getTimeStamp();
+        byte[] byteContent = specializeJnlpTemplate( dreq.getHttpRequest(), path, template );
 
         /* SQE: We need to add query string back to href in jnlp file. We also need to handle JRE requirement for
        * the test. We reconstruct the xml DOM object, modify the value, then regenerate the jnlpFileContent.
        */
         String query = dreq.getQuery();
         String testJRE = dreq.getTestJRE();
-        _log.addDebug( "Double check query string: " + query );
+        _log.addDebug( "Double check query string: ", query );
         // For backward compatibility: Always check if the href value exists.
         // Bug 4939273: We will retain the jnlp template structure and will NOT add href value. Above old
         // approach to always check href value caused some test case not run.
         if ( query != null )
         {
-            byte[] cb = jnlpFileContent.getBytes( "UTF-8" );
-            ByteArrayInputStream bis = new ByteArrayInputStream( cb );
+            ByteArrayInputStream bis = new ByteArrayInputStream( byteContent );
             try
             {
                 DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
@@ -304,13 +386,18 @@ public class JnlpFileHandler
                     StringWriter sw = new StringWriter();
                     StreamResult result = new StreamResult( sw );
                     transformer.transform( source, result );
-                    jnlpFileContent = sw.toString();
-                    _log.addDebug( "Converted jnlpFileContent: " + jnlpFileContent );
+                    String jnlpFileContent = sw.toString();
+                    _log.addDebug( "Converted jnlpFileContent: ", jnlpFileContent );
+                    // Convert to bytes as a UTF-8 encoding
+                    byteContent = jnlpFileContent.getBytes( "UTF-8" );
                     // Since we modified the file on the fly, we always update the timestamp value with current time
                     if ( modified )
                     {
                         timeStamp = new java.util.Date().getTime();
-                        _log.addDebug( "Last modified on the fly:  " + timeStamp );
+                        if ( _log.isDebugLevel() )
+                        {
+                            _log.addDebug( "Last modified on the fly:  " + timeStamp );
+                        }
                     }
                 }
             }
@@ -320,42 +407,109 @@ public class JnlpFileHandler
             }
         }
 
-        // Convert to bytes as a UTF-8 encoding
-        byte[] byteContent = jnlpFileContent.getBytes( "UTF-8" );
-
         // Create entry
         DownloadResponse resp =
                 DownloadResponse.getFileDownloadResponse( byteContent, mimeType, timeStamp, jnlpres.getReturnVersionId() );
-        jnlpFile = new JnlpFileEntry( resp, lastModified );
-        _jnlpFiles.put( reqUrl, jnlpFile );
+        return new JnlpFileEntry( resp, lastModified, byteContent.length );
+    }
 
-        return resp;
+    /**
+     * Returns the compiled template of a JNLP file, reading the file again if it was
+     * modified since it was compiled.
+     * <p>
+     * The file is kept as it is, except for an optional first line <code>TS: timestamp</code>
+     * which gives the time stamp of the content instead of the last modification time.
+     */
+    private JnlpTemplate getTemplate( JnlpResource jnlpres )
+            throws IOException
+    {
+        String path = jnlpres.getPath();
+        long lastModified = jnlpres.getLastModified();
+        JnlpTemplate template = _templates.getIfPresent( path );
+        if ( template != null && template.getLastModified() == lastModified )
+        {
+            return template;
+        }
+
+        String content = new String( readContent( jnlpres.getResource() ), StandardCharsets.UTF_8 );
+        long timeStamp = lastModified;
+        if ( content.startsWith( "TS:" ) )
+        {
+            int eol = 0;
+            while ( eol < content.length() && content.charAt( eol ) != '\n' && content.charAt( eol ) != '\r' )
+            {
+                eol++;
+            }
+            timeStamp = parseTimeStamp( content.substring( 3, eol ) );
+            if ( _log.isDebugLevel() )
+            {
+                _log.addDebug( "Timestamp: " + timeStamp + " " + new Date( timeStamp ) );
+            }
+            if ( timeStamp == 0 )
+            {
+                _log.addWarning( "servlet.log.warning.notimestamp", path );
+                timeStamp = lastModified;
+            }
+            // Skip the line terminator, \r\n counting as one
+            if ( content.startsWith( "\r\n", eol ) )
+            {
+                eol++;
+            }
+            content = content.substring( Math.min( eol + 1, content.length() ) );
+        }
+        template = JnlpTemplate.compile( content, lastModified, timeStamp );
+        _templates.put( path, template );
+        return template;
+    }
+
+    private static byte[] readContent( URL resource )
+            throws IOException
+    {
+        URLConnection conn = resource.openConnection();
+        InputStream in = conn.getInputStream();
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream( Math.max( 1024, conn.getContentLength() ) );
+            byte[] buf = new byte[8192];
+            int n;
+            while ( ( n = in.read( buf ) ) != -1 )
+            {
+                out.write( buf, 0, n );
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
     }
 
     /**
      * This method performs the following substituations
      * $$name
+     * $$hostname
      * $$codebase
      * $$context
+     * $$site
      *
-     * @param request      TODO
-     * @param respath      TODO
-     * @param jnlpTemplate TODO
+     * @param request  request the macros are replaced for
+     * @param respath  path of the JNLP file within the web application
+     * @param template compiled JNLP file
+     * @return the JNLP file for the request, encoded in UTF-8
      */
-    private String specializeJnlpTemplate( HttpServletRequest request, String respath, String jnlpTemplate )
+    private byte[] specializeJnlpTemplate( HttpServletRequest request, String respath, JnlpTemplate template )
     {
         String urlprefix = getUrlPrefix( request );
         int idx = respath.lastIndexOf( '/' ); //
-        String name = respath.substring( idx + 1 );    // Exclude /
-        String codebase = respath.substring( 0, idx + 1 ); // Include /
-        jnlpTemplate = substitute( jnlpTemplate, "$$name", name );
+        String[] values = new String[5];
+        values[JnlpTemplate.NAME] = respath.substring( idx + 1 );    // Exclude /
         // fix for 5039951: Add $$hostname macro
-        jnlpTemplate = substitute( jnlpTemplate, "$$hostname", request.getServerName() );
-        jnlpTemplate = substitute( jnlpTemplate, "$$codebase", urlprefix + request.getContextPath() + codebase );
-        jnlpTemplate = substitute( jnlpTemplate, "$$context", urlprefix + request.getContextPath() );
+        values[JnlpTemplate.HOSTNAME] = request.getServerName();
+        values[JnlpTemplate.CODEBASE] = urlprefix + request.getContextPath() + respath.substring( 0, idx + 1 );
+        values[JnlpTemplate.CONTEXT] = urlprefix + request.getContextPath();
         // fix for 6256326: add $$site macro to sample jnlp servlet
-        jnlpTemplate = substitute( jnlpTemplate, "$$site", urlprefix );
-        return jnlpTemplate;
+        values[JnlpTemplate.SITE] = urlprefix;
+        return template.render( values );
     }
 
     // This code is heavily inspired by the stuff in HttpUtils.getRequestURL
@@ -375,22 +529,6 @@ public class JnlpFileHandler
         return url.toString();
     }
 
-    private String substitute( String target, String key, String value )
-    {
-        int start = 0;
-        do
-        {
-            int idx = target.indexOf( key, start );
-            if ( idx == -1 )
-            {
-                return target;
-            }
-            target = target.substring( 0, idx ) + value + target.substring( idx + key.length() );
-            start = idx + value.length();
-        }
-        while ( true );
-    }
-
     /**
      * Parses a ISO 8601 Timestamp. The format of the timestamp is:
      * <p>
@@ -38,9 +38,7 @@ package jnlp.sample.servlet;
 
 import javax.servlet.ServletContext;
 import java.io.File;
-import java.io.IOException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.util.Date;
 
 /**
@@ -110,6 +108,10 @@ public class JnlpResource
 
     private long _lastModified;    // Last modified in WAR file
 
+    private File _file;            // Regular file of the resource, if the WAR file is expanded
+
+    private long _length = -1;     // Length of the resource, or -1 if unknown
+
     private String _mimeType;        // Mime-type for resource
 
     private String _returnVersionId; // Version Id to return
@@ -141,119 +143,69 @@ public class JnlpResource
         _returnVersionId = returnVersionId;
 
         /* Check for existance and get last modified timestamp */
-        try
+        String orig_path = path.trim();
+        ResourceMetadata metadata = ResourceMetadata.get( context, orig_path );
+        _mimeType = getMimeType( metadata.getMimeType(), orig_path );
+        if ( metadata.getResource() != null )
         {
-            String orig_path = path.trim();
-            String search_path = orig_path;
-            _resource = context.getResource( orig_path );
-            _mimeType = getMimeType( context, orig_path );
-            if ( _resource != null )
+            ResourceMetadata found = null;
+            // pack200 compression
+            if ( isPackable( _mimeType ) &&
+                    DownloadRequest.isEncodingAccepted( encoding, DownloadResponse.PACK200_GZIP_ENCODING ) )
             {
+                found = getVariant( context, orig_path + ".pack.gz" );
+            }
 
-                boolean found = false;
-                // pack200 compression
-                if ( encoding != null && _mimeType != null &&
-                        ( _mimeType.compareTo( JAR_MIME_TYPE ) == 0 || _mimeType.compareTo( JAR_MIME_TYPE_NEW ) == 0 ) &&
-                        encoding.toLowerCase().contains( DownloadResponse.PACK200_GZIP_ENCODING ) )
-                {
-                    search_path = orig_path + ".pack.gz";
-                    _resource = context.getResource( search_path );
-                    // Get last modified time
-                    if ( _resource != null )
-                    {
-                        _lastModified = getLastModified( context, _resource, search_path );
-                        if ( _lastModified != 0 )
-                        {
-                            _path = search_path;
-                            found = true;
-                        }
-                        else
-                        {
-                            _resource = null;
-                        }
-                    }
-                }
-
-                // gzip compression
-                if ( !found && encoding != null &&
-                        encoding.toLowerCase().contains( DownloadResponse.GZIP_ENCODING ) )
-                {
-                    search_path = orig_path + ".gz";
-                    _resource = context.getResource( search_path );
-                    // Get last modified time
-                    if ( _resource != null )
-                    {
-                        _lastModified = getLastModified( context, _resource, search_path );
-                        if ( _lastModified != 0 )
-                        {
-                            _path = search_path;
-                            found = true;
-                        }
-                        else
-                        {
-                            _resource = null;
-                        }
-                    }
-                }
-
-                if ( !found )
-                {
-                    // no compression
-                    search_path = orig_path;
-                    _resource = context.getResource( search_path );
-                    // Get last modified time
-                    if ( _resource != null )
-                    {
-                        _lastModified = getLastModified( context, _resource, search_path );
-                        if ( _lastModified != 0 )
-                        {
-                            _path = search_path;
-                            found = true;
-                        }
-                        else
-                        {
-                            _resource = null;
-                        }
-                    }
-                }
+            // gzip compression
+            if ( found == null && DownloadRequest.isEncodingAccepted( encoding, DownloadResponse.GZIP_ENCODING ) )
+            {
+                found = getVariant( context, orig_path + ".gz" );
             }
-        }
-        catch ( IOException ioe )
-        {
-            _resource = null;
-        }
-    }
 
-    long getLastModified( ServletContext context, URL resource, String path )
-    {
-        long lastModified = 0;
-        URLConnection conn;
-        try
-        {
-            // Get last modified time
-            conn = resource.openConnection();
-            lastModified = conn.getLastModified();
-        }
-        catch ( Exception e )
-        {
-            // do nothing
-        }
+            if ( found == null )
+            {
+                // no compression
+                found = metadata.getLastModified() != 0 ? metadata : null;
+            }
 
-        if ( lastModified == 0 )
-        {
-            // Arguably a bug in the JRE will not set the lastModified for file URLs, and
-            // always return 0. This is a workaround for that problem.
-            String filepath = context.getRealPath( path );
-            if ( filepath != null )
+            if ( found != null )
             {
-                File f = new File( filepath );
-                if ( f.exists() )
-                {
-                    lastModified = f.lastModified();
-                }
+                _path = found.getPath();
+                _resource = found.getResource();
+                _file = found.getFile();
+                _length = found.getLength();
+                _lastModified = found.getLastModified();
             }
         }
-        return lastModified;
+    }
+
+    /**
+     * Tells whether the resource, found for a request without encoding, has a compressed
+     * variant which is sent instead to the clients accepting its encoding.
+     *
+     * @param context servlet context of the web application
+     * @return true if the resource has a gzip or pack200 variant
+     */
+    boolean hasCompressedVariant( ServletContext context )
+    {
+        return getVariant( context, _path + ".gz" ) != null ||
+                ( isPackable( _mimeType ) && getVariant( context, _path + ".pack.gz" ) != null );
+    }
+
+    private static boolean isPackable( String mimeType )
+    {
+        return mimeType != null &&
+                ( mimeType.compareTo( JAR_MIME_TYPE ) == 0 || mimeType.compareTo( JAR_MIME_TYPE_NEW ) == 0 );
+    }
+
+    /**
+     * @return the metadata of a compressed variant of the resource, or <code>null</code> if it
+     * does not exist or has no timestamp
+     */
+    private static ResourceMetadata getVariant( ServletContext context, String path )
+    {
+        ResourceMetadata metadata = ResourceMetadata.get( context, path );
+        return metadata.getResource() != null && metadata.getLastModified() != 0 ? metadata : null;
     }
 
     /* Get resource specific attributes */
@@ -277,6 +229,22 @@ public class JnlpResource
         return _lastModified;
     }
 
+    /**
+     * @return the regular file of the resource, or <code>null</code> if it is not on disk
+     */
+    public File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * @return the length of the resource, or -1 if it is not known
+     */
+    public long getContentLength()
+    {
+        return _length;
+    }
+
     public boolean exists()
     {
         return _resource != null;
@@ -323,9 +291,8 @@ public class JnlpResource
         return _returnVersionId;
     }
 
-    private String getMimeType( ServletContext context, String path )
+    private String getMimeType( String mimeType, String path )
     {
-        String mimeType = context.getMimeType( path );
         if ( mimeType != null )
         {
             return mimeType;
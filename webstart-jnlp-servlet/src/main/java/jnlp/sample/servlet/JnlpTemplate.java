@@ -0,0 +1,148 @@
+package jnlp.sample.servlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JNLP file compiled once into its literal parts and the macros replaced on each
+ * request: <code>$$name</code>, <code>$$hostname</code>, <code>$$codebase</code>,
+ * <code>$$context</code> and <code>$$site</code>.
+ * <p>
+ * The literal parts are kept encoded in UTF-8. Rendering computes the length of the
+ * result first and writes every part once into a single array, so the cost does not
+ * depend on how many macros the file uses. Instances are immutable.
+ */
+class JnlpTemplate
+{
+    static final int NAME = 0;
+
+    static final int HOSTNAME = 1;
+
+    static final int CODEBASE = 2;
+
+    static final int CONTEXT = 3;
+
+    static final int SITE = 4;
+
+    /* Indexed by the constants above */
+    private static final String[] MACROS = { "$$name", "$$hostname", "$$codebase", "$$context", "$$site" };
+
+    /* One more literal than macros, the literal before each macro and the one after the last */
+    private final byte[][] _literals;
+
+    private final int[] _macros;
+
+    private final int _literalLength;
+
+    private final long _lastModified;
+
+    private final long _timeStamp;
+
+    private JnlpTemplate( byte[][] literals, int[] macros, long lastModified, long timeStamp )
+    {
+        _literals = literals;
+        _macros = macros;
+        int length = 0;
+        for ( byte[] literal : literals )
+        {
+            length += literal.length;
+        }
+        _literalLength = length;
+        _lastModified = lastModified;
+        _timeStamp = timeStamp;
+    }
+
+    /**
+     * @param template     content of the JNLP file
+     * @param lastModified last modification time of the JNLP file
+     * @param timeStamp    time stamp of the content, from its <code>TS:</code> line or the last modification time
+     * @return the compiled template
+     */
+    static JnlpTemplate compile( String template, long lastModified, long timeStamp )
+    {
+        List<byte[]> literals = new ArrayList<>();
+        List<Integer> macros = new ArrayList<>();
+        int start = 0;
+        int idx = template.indexOf( "$$" );
+        while ( idx != -1 )
+        {
+            int macro = getMacro( template, idx );
+            if ( macro == -1 )
+            {
+                idx = template.indexOf( "$$", idx + 1 );
+                continue;
+            }
+            literals.add( template.substring( start, idx ).getBytes( StandardCharsets.UTF_8 ) );
+            macros.add( macro );
+            start = idx + MACROS[macro].length();
+            idx = template.indexOf( "$$", start );
+        }
+        literals.add( template.substring( start ).getBytes( StandardCharsets.UTF_8 ) );
+
+        int[] macroArray = new int[macros.size()];
+        for ( int i = 0; i < macroArray.length; i++ )
+        {
+            macroArray[i] = macros.get( i );
+        }
+        return new JnlpTemplate( literals.toArray( new byte[literals.size()][] ), macroArray, lastModified,
+                                 timeStamp );
+    }
+
+    private static int getMacro( String template, int idx )
+    {
+        for ( int macro = 0; macro < MACROS.length; macro++ )
+        {
+            if ( template.startsWith( MACROS[macro], idx ) )
+            {
+                return macro;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param values value of each macro, indexed by {@link #NAME}, {@link #HOSTNAME}, {@link #CODEBASE},
+     *               {@link #CONTEXT} and {@link #SITE}
+     * @return the JNLP file with the macros replaced, encoded in UTF-8
+     */
+    byte[] render( String[] values )
+    {
+        byte[][] encoded = new byte[MACROS.length][];
+        int length = _literalLength;
+        for ( int macro : _macros )
+        {
+            if ( encoded[macro] == null )
+            {
+                encoded[macro] = values[macro].getBytes( StandardCharsets.UTF_8 );
+            }
+            length += encoded[macro].length;
+        }
+
+        byte[] content = new byte[length];
+        int pos = 0;
+        for ( int i = 0; i < _macros.length; i++ )
+        {
+            pos = append( content, pos, _literals[i] );
+            pos = append( content, pos, encoded[_macros[i]] );
+        }
+        append( content, pos, _literals[_macros.length] );
+        return content;
+    }
+
+    private static int append( byte[] content, int pos, byte[] part )
+    {
+        System.arraycopy( part, 0, content, pos, part.length );
+        return pos + part.length;
+    }
+
+    long getLastModified()
+    {
+        return _lastModified;
+    }
+
+    long getTimeStamp()
+    {
+        return _timeStamp;
+    }
+}
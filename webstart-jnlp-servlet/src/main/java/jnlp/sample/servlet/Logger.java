@@ -38,6 +38,7 @@ package jnlp.sample.servlet;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -74,6 +75,23 @@ public class Logger
 
     private final static String LOG_PATH = "logPath";
 
+    private final static String LOG_ASYNC = "logAsync";
+
+    private final static String LOG_QUEUE_SIZE = "logQueueSize";
+
+    private final static String LOG_QUEUE_FULL = "logQueueFull";
+
+    private final static String LOG_MAX_BYTES = "logMaxBytes";
+
+    private final static String LOG_MAX_FILES = "logMaxFiles";
+
+    // Value of logQueueFull making logging threads wait instead of dropping events
+    private final static String QUEUE_FULL_BLOCK = "block";
+
+    private final static int DEFAULT_QUEUE_SIZE = 10000;
+
+    private final static int DEFAULT_MAX_FILES = 5;
+
     private int _loggingLevel = FATAL;
 
     private ServletContext _servletContext = null;
@@ -82,6 +100,9 @@ public class Logger
 
     private String _servletName = null;
 
+    // Writes the log file on a thread of its own, if enabled
+    private AsyncLogWriter _asyncWriter = null;
+
     // Localization
     ResourceBundle _resources = null;
 
@@ -132,12 +153,52 @@ public class Logger
                 _loggingLevel = DEBUG;
             }
         }
+        if ( _logFile != null && Boolean.valueOf( config.getInitParameter( LOG_ASYNC ) ) )
+        {
+            _asyncWriter = new AsyncLogWriter( _servletContext, _servletName, new File( _logFile ),
+                                               (int) getLong( config, LOG_QUEUE_SIZE, DEFAULT_QUEUE_SIZE ),
+                                               !QUEUE_FULL_BLOCK.equalsIgnoreCase(
+                                                       config.getInitParameter( LOG_QUEUE_FULL ) ),
+                                               getLong( config, LOG_MAX_BYTES, 0 ),
+                                               (int) getLong( config, LOG_MAX_FILES, DEFAULT_MAX_FILES ) );
+        }
+    }
+
+    private static long getLong( ServletConfig config, String name, long defaultValue )
+    {
+        String value = config.getInitParameter( name );
+        if ( value != null )
+        {
+            try
+            {
+                return Long.parseLong( value.trim() );
+            }
+            catch ( NumberFormatException e )
+            {
+                // Use the default value
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Writes the events still queued for the log file and stops writing asynchronously.
+     */
+    public void close()
+    {
+        if ( _asyncWriter != null )
+        {
+            _asyncWriter.close();
+        }
     }
 
     // Logging API. Fatal, Warning, and Informational are localized    
     public void addFatal( String key, Throwable throwable )
     {
-        logEvent( FATAL, getString( key ), throwable );
+        if ( isFatalevel() )
+        {
+            logEvent( FATAL, getString( key ), throwable );
+        }
     }
 
     public void addWarning( String key, String arg )
@@ -162,7 +223,10 @@ public class Logger
 
     public void addInformational( String key )
     {
-        logEvent( INFORMATIONAL, getString( key ), null );
+        if ( isInformationalLevel() )
+        {
+            logEvent( INFORMATIONAL, getString( key ), null );
+        }
     }
 
     public void addInformational( String key, String arg )
@@ -186,6 +250,31 @@ public class Logger
         logEvent( DEBUG, msg, throwable );
     }
 
+    /**
+     * Logs the text followed by the argument. The message is only built if debug
+     * messages are logged, so callers pass the parts instead of concatenating them.
+     * A {@link Throwable} argument goes to {@link #addDebug(String, Throwable)} instead.
+     */
+    public void addDebug( String msg, Object arg )
+    {
+        if ( isDebugLevel() )
+        {
+            logEvent( DEBUG, msg + arg, null );
+        }
+    }
+
+    /**
+     * Logs the text followed by both arguments, only building the message if debug
+     * messages are logged.
+     */
+    public void addDebug( String msg, Object arg1, String msg2, Object arg2 )
+    {
+        if ( isDebugLevel() )
+        {
+            logEvent( DEBUG, msg + arg1 + msg2 + arg2, null );
+        }
+    }
+
     // Query to test for level
     boolean isNoneLevel()
     {
@@ -227,18 +316,31 @@ public class Logger
 
     private void logL10N( int level, String key, String arg, Throwable e )
     {
+        // Check the level before the message is formatted
+        if ( level > _loggingLevel )
+        {
+            return;
+        }
         Object[] messageArguments = {arg};
         logEvent( level, applyPattern( key, messageArguments ), e );
     }
 
     private void logL10N( int level, String key, String arg1, String arg2 )
     {
+        if ( level > _loggingLevel )
+        {
+            return;
+        }
         Object[] messageArguments = {arg1, arg2};
         logEvent( level, applyPattern( key, messageArguments ), null );
     }
 
     private void logL10N( int level, String key, String arg1, String arg2, String arg3 )
     {
+        if ( level > _loggingLevel )
+        {
+            return;
+        }
         Object[] messageArguments = {arg1, arg2, arg3};
         logEvent( level, applyPattern( key, messageArguments ), null );
     }
@@ -255,7 +357,7 @@ public class Logger
     }
 
     // The method that actually does the logging */
-    private synchronized void logEvent( int level, String string, Throwable throwable )
+    private void logEvent( int level, String string, Throwable throwable )
     {
         // Check if the event should be logged
         if ( level > _loggingLevel )
@@ -263,6 +365,15 @@ public class Logger
             return;
         }
 
+        if ( _asyncWriter != null && _asyncWriter.add( level, string, throwable ) )
+        {
+            return;
+        }
+        writeEvent( level, string, throwable );
+    }
+
+    private synchronized void writeEvent( int level, String string, Throwable throwable )
+    {
         if ( _logFile != null )
         {
             // No logfile specified, log using servlet context
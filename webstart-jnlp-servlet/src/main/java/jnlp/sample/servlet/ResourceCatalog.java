@@ -36,58 +36,143 @@
 
 package jnlp.sample.servlet;
 
+import jnlp.sample.util.BoundedCache;
 import jnlp.sample.util.VersionID;
 import jnlp.sample.util.VersionString;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXParseException;
 
 import javax.servlet.ServletContext;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class ResourceCatalog
 {
     public static final String VERSION_XML_FILENAME = "version.xml";
 
+    /* Index of version.xml generated by the webstart-maven-plugin */
+    public static final String VERSION_INDEX_FILENAME = "version.xml.idx";
+
+    private static final String VERSION_INDEX_HEADER = "jnlp-versions-index";
+
+    private static final String VERSION_INDEX_FORMAT = "1";
+
+    /* Creating readers is thread-safe once the factory is configured */
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static
+    {
+        XML_INPUT_FACTORY.setProperty( XMLInputFactory.IS_COALESCING, Boolean.TRUE );
+    }
+
+    public static final int DEFAULT_MISS_CACHE_MAX_ENTRIES = 1000;
+
+    public static final long DEFAULT_MISS_CACHE_TTL = 60 * 1000L;
+
     private Logger _log = null;
 
     private ServletContext _servletContext = null;
 
-    private HashMap _entries;
+    /* Snapshot of the entries of each directory, replaced as a whole when the directory is read again */
+    private final ConcurrentHashMap<String, PathEntries> _entries = new ConcurrentHashMap<>();
+
+    /* Serializes the reads of each directory, lookups of a current snapshot never wait on it */
+    private final ConcurrentHashMap<String, Object> _scanLocks = new ConcurrentHashMap<>();
+
+    /* Requests which did not match even after rescanning their directory */
+    private volatile BoundedCache<MissKey, Miss> _misses =
+            new BoundedCache<>( DEFAULT_MISS_CACHE_MAX_ENTRIES, 0, null, null );
+
+    private volatile long _missTtl = DEFAULT_MISS_CACHE_TTL;
+
+    private final List<Listener> _listeners = new CopyOnWriteArrayList<>();
+
+    /* Tells if watched directories changed, or null to check version.xml on each request */
+    private volatile DirectoryWatcher _watcher = null;
+
+    /**
+     * Callback invoked when the entries of a directory have been (re)read, either
+     * because its version.xml file changed or because the directory was rescanned.
+     */
+    public interface Listener
+    {
+        /**
+         * @param dir     directory which has been read
+         * @param entries all version-based entries of the directory, from version.xml and from file names
+         */
+        void entriesChanged( String dir, List<JnlpResource> entries );
+    }
 
     /**
      * Class to contain the information we know
-     * about a specific directory
+     * about a specific directory. Instances are immutable, so that they can be
+     * read by any number of threads while a newer snapshot is being built.
      */
     static private class PathEntries
     {
         /* Version-based entries at this particular path */
-        private List _versionXmlList;
+        private final List _versionXmlList;
+
+        private final List _directoryList;
+
+        private final List _platformList;
 
-        private List _directoryList;
+        /* Indexes of the lists above, by resource name and version */
+        private final ResourceIndex _versionXmlIndex;
 
-        private List _platformList;
+        private final ResourceIndex _directoryIndex;
+
+        private final ResourceIndex _platformIndex;
 
         /* Last time this entry was updated */
-        private long _lastModified; // Last modified time of entry;
+        private final long _lastModified; // Last modified time of entry;
+
+        /* Stamp of the directory when it was read, or -1 if it is not watched */
+        private final long _stamp;
 
-        public PathEntries( List versionXmlList, List directoryList, List platformList, long lastModified )
+        public PathEntries( ResourceCatalog catalog, List versionXmlList, List directoryList, List platformList,
+                            long lastModified, long stamp )
+        {
+            this( catalog, unmodifiable( versionXmlList ), new ResourceIndex( catalog, versionXmlList ),
+                  unmodifiable( directoryList ), unmodifiable( platformList ),
+                  new ResourceIndex( catalog, platformList ), lastModified, stamp );
+        }
+
+        private PathEntries( ResourceCatalog catalog, List versionXmlList, ResourceIndex versionXmlIndex,
+                             List directoryList, List platformList, ResourceIndex platformIndex, long lastModified,
+                             long stamp )
         {
             _versionXmlList = versionXmlList;
+            _versionXmlIndex = versionXmlIndex;
             _directoryList = directoryList;
+            _directoryIndex = new ResourceIndex( catalog, directoryList );
             _platformList = platformList;
+            _platformIndex = platformIndex;
             _lastModified = lastModified;
+            _stamp = stamp;
         }
 
-
-        public void setDirectoryList( List dirList )
+        /**
+         * @param catalog catalog the entries belong to
+         * @param dirList entries read from the directory again
+         * @return a snapshot with the same version.xml entries and the given directory entries
+         */
+        public PathEntries withDirectoryList( ResourceCatalog catalog, List dirList )
         {
-            _directoryList = dirList;
+            return new PathEntries( catalog, _versionXmlList, _versionXmlIndex, unmodifiable( dirList ),
+                                    _platformList, _platformIndex, _lastModified, _stamp );
         }
 
         public List getVersionXmlList()
@@ -105,19 +190,144 @@ public class ResourceCatalog
             return _platformList;
         }
 
+        public ResourceIndex getVersionXmlIndex()
+        {
+            return _versionXmlIndex;
+        }
+
+        public ResourceIndex getDirectoryIndex()
+        {
+            return _directoryIndex;
+        }
+
+        public ResourceIndex getPlatformIndex()
+        {
+            return _platformIndex;
+        }
+
         public long getLastModified()
         {
             return _lastModified;
         }
+
+        public long getStamp()
+        {
+            return _stamp;
+        }
+
+        private static List unmodifiable( List list )
+        {
+            return list == null ? null : Collections.unmodifiableList( list );
+        }
+    }
+
+    /**
+     * Key of a request in the cache of misses
+     */
+    static private class MissKey
+    {
+        private final String _path;
+
+        private final String _version;
+
+        private final String[] _os;
+
+        private final String[] _arch;
+
+        private final String[] _locale;
+
+        MissKey( DownloadRequest dreq )
+        {
+            _path = dreq.getPath();
+            _version = dreq.getVersion();
+            _os = dreq.getOS();
+            _arch = dreq.getArch();
+            _locale = dreq.getLocale();
+        }
+
+        public boolean equals( Object o )
+        {
+            if ( !( o instanceof MissKey ) )
+            {
+                return false;
+            }
+            MissKey other = (MissKey) o;
+            return _path.equals( other._path ) &&
+                    ( _version == null ? other._version == null : _version.equals( other._version ) ) &&
+                    Arrays.equals( _os, other._os ) && Arrays.equals( _arch, other._arch ) &&
+                    Arrays.equals( _locale, other._locale );
+        }
+
+        public int hashCode()
+        {
+            int hash = _path.hashCode() * 31 + ( _version == null ? 0 : _version.hashCode() );
+            return ( ( hash * 31 + Arrays.hashCode( _os ) ) * 31 + Arrays.hashCode( _arch ) ) * 31 +
+                    Arrays.hashCode( _locale );
+        }
+    }
+
+    /**
+     * Outcome of a request which did not match, valid as long as the directory and its
+     * version.xml file are unchanged, and at most until it expires
+     */
+    static private class Miss
+    {
+        private final int _error;
+
+        private final long _versionXmlLastModified;
+
+        private final long _dirLastModified;
+
+        private final long _expires;
+
+        Miss( int error, long versionXmlLastModified, long dirLastModified, long expires )
+        {
+            _error = error;
+            _versionXmlLastModified = versionXmlLastModified;
+            _dirLastModified = dirLastModified;
+            _expires = expires;
+        }
     }
 
     public ResourceCatalog( ServletContext servletContext, Logger log )
     {
-        _entries = new HashMap();
         _servletContext = servletContext;
         _log = log;
     }
 
+    /**
+     * @param listener notified when the entries of a directory have been (re)read
+     */
+    public void addListener( Listener listener )
+    {
+        _listeners.add( listener );
+    }
+
+    /**
+     * Lets the catalog trust the entries of the directories it read as long as the
+     * watcher reports no change, instead of checking version.xml on each request.
+     * Directories which cannot be watched are still checked on each request.
+     *
+     * @param watcher watcher of the directories, or null
+     */
+    public void setWatcher( DirectoryWatcher watcher )
+    {
+        _watcher = watcher;
+    }
+
+    /**
+     * Configures the cache of requests which did not match any resource, so that
+     * repeating them does not rescan their directory.
+     *
+     * @param maxEntries maximum number of requests remembered, or 0 to disable the cache
+     * @param ttl        time in milliseconds a request is remembered, or 0 to disable the cache
+     */
+    public void setMissCache( int maxEntries, long ttl )
+    {
+        _misses = ( maxEntries > 0 && ttl > 0 ) ? new BoundedCache<MissKey, Miss>( maxEntries, 0, null, null ) : null;
+        _missTtl = ttl;
+    }
+
 
     public JnlpResource lookupResource( DownloadRequest dreq )
             throws ErrorResponseException
@@ -138,27 +348,14 @@ public class ResourceCatalog
         }
 
         // Lookup up already parsed entries, and san directory for entries if neccesary
-        PathEntries pentries = (PathEntries) _entries.get( dir );
-        JnlpResource xmlVersionResPath = new JnlpResource( _servletContext, dir + VERSION_XML_FILENAME );
-        if ( pentries == null ||
-                ( xmlVersionResPath.exists() && xmlVersionResPath.getLastModified() > pentries.getLastModified() ) )
-        {
-            _log.addInformational( "servlet.log.scandir", dir );
-            List dirList = scanDirectory( dir, dreq );
-            // Scan XML file
-            List versionList = new ArrayList();
-            List platformList = new ArrayList();
-            parseVersionXML( versionList, platformList, dir, xmlVersionResPath );
-            pentries = new PathEntries( versionList, dirList, platformList, xmlVersionResPath.getLastModified() );
-            _entries.put( dir, pentries );
-        }
+        PathEntries pentries = getPathEntries( dir, dreq );
 
         // Search for a match
         JnlpResource[] result = new JnlpResource[1];
 
         if ( dreq.isPlatformRequest() )
         {
-            int sts = findMatch( pentries.getPlatformList(), name, dreq, result );
+            int sts = pentries.getPlatformIndex().findMatch( name, dreq, result );
             if ( sts != DownloadResponse.STS_00_OK )
             {
                 throw new ErrorResponseException( DownloadResponse.getJnlpErrorResponse( sts ) );
@@ -167,24 +364,47 @@ public class ResourceCatalog
         else
         {
             // First lookup in versions.xml file
-            int sts1 = findMatch( pentries.getVersionXmlList(), name, dreq, result );
+            int sts1 = pentries.getVersionXmlIndex().findMatch( name, dreq, result );
             if ( sts1 != DownloadResponse.STS_00_OK )
             {
                 // Then lookup in directory
-                int sts2 = findMatch( pentries.getDirectoryList(), name, dreq, result );
+                int sts2 = pentries.getDirectoryIndex().findMatch( name, dreq, result );
+                if ( sts2 != DownloadResponse.STS_00_OK && isWatchedAndCurrent( getKey( dir ), pentries ) )
+                {
+                    // The directory did not change since it was read, a rescan would not help
+                    throw new ErrorResponseException(
+                            DownloadResponse.getJnlpErrorResponse( Math.max( sts1, sts2 ) ) );
+                }
                 if ( sts2 != DownloadResponse.STS_00_OK )
                 {
+                    // Do not rescan for a request which already failed since the last change
+                    BoundedCache<MissKey, Miss> misses = _misses;
+                    MissKey missKey = misses == null ? null : new MissKey( dreq );
+                    long dirLastModified = misses == null ? 0 : getDirectoryLastModified( dir );
+                    Miss miss = misses == null ? null : misses.getIfPresent( missKey );
+                    if ( miss != null && miss._versionXmlLastModified == pentries.getLastModified() &&
+                            miss._dirLastModified == dirLastModified && miss._expires > System.currentTimeMillis() )
+                    {
+                        throw new ErrorResponseException( DownloadResponse.getJnlpErrorResponse( miss._error ) );
+                    }
 
                     // fix for 4450104
                     // try rescan and see if it helps
-                    pentries.setDirectoryList( scanDirectory( dir, dreq ) );
-                    sts2 = findMatch( pentries.getDirectoryList(), name, dreq, result );
+                    pentries = rescanDirectory( dir, dreq, pentries );
+                    sts2 = pentries.getDirectoryIndex().findMatch( name, dreq, result );
                     // try again after rescanning directory
                     if ( sts2 != DownloadResponse.STS_00_OK )
                     {
                         // Throw the most specific error code
-                        throw new ErrorResponseException(
-                                DownloadResponse.getJnlpErrorResponse( Math.max( sts1, sts2 ) ) );
+                        int error = Math.max( sts1, sts2 );
+                        if ( misses != null )
+                        {
+                            // The modification time read before the rescan, so that a change
+                            // during the rescan is not missed
+                            misses.put( missKey, new Miss( error, pentries.getLastModified(), dirLastModified,
+                                                           System.currentTimeMillis() + _missTtl ) );
+                        }
+                        throw new ErrorResponseException( DownloadResponse.getJnlpErrorResponse( error ) );
                     }
                 }
             }
@@ -192,6 +412,191 @@ public class ResourceCatalog
         return result[0];
     }
 
+    /**
+     * Returns the current entries of a directory, reading the directory and its
+     * version.xml file first if they have not been read yet or changed.
+     * Concurrent requests for the same directory wait for a single read.
+     * <p>
+     * The entries of a watched directory are current as long as the watcher reports
+     * no change, and are returned without accessing the file system. Otherwise they are
+     * current as long as version.xml is not modified.
+     */
+    private PathEntries getPathEntries( String dir, DownloadRequest dreq )
+    {
+        String key = getKey( dir );
+        PathEntries pentries = _entries.get( key );
+        if ( pentries != null && isWatchedAndCurrent( key, pentries ) )
+        {
+            return pentries;
+        }
+        JnlpResource xmlVersionResPath = new JnlpResource( _servletContext, dir + VERSION_XML_FILENAME );
+        if ( pentries != null && pentries.getStamp() < 0 && !isStale( pentries, xmlVersionResPath ) )
+        {
+            return pentries;
+        }
+        synchronized ( getScanLock( key ) )
+        {
+            // Another thread may have read the directory while we were waiting
+            pentries = _entries.get( key );
+            if ( pentries != null && ( isWatchedAndCurrent( key, pentries ) ||
+                    pentries.getStamp() < 0 && !isStale( pentries, xmlVersionResPath ) ) )
+            {
+                return pentries;
+            }
+            // Watch before reading, so that a change while reading is not missed
+            long stamp = watch( dir );
+            xmlVersionResPath = new JnlpResource( _servletContext, dir + VERSION_XML_FILENAME );
+            _log.addInformational( "servlet.log.scandir", dir );
+            List dirList = scanDirectory( dir, dreq );
+            // Scan XML file
+            List versionList = new ArrayList();
+            List platformList = new ArrayList();
+            if ( !readVersionIndex( versionList, platformList, dir, xmlVersionResPath ) )
+            {
+                parseVersionXML( versionList, platformList, dir, xmlVersionResPath );
+            }
+            pentries = new PathEntries( this, versionList, dirList, platformList,
+                                        xmlVersionResPath.getLastModified(), stamp );
+            _entries.put( key, pentries );
+            fireEntriesChanged( dir, pentries );
+            return pentries;
+        }
+    }
+
+    /**
+     * Reads the entries of a directory before it is requested, e.g. at startup, so that
+     * the first request does not wait for its version.xml file to be read. Only directories
+     * available on disk can be read without a request.
+     *
+     * @param dir directory, e.g. <code>/lib/</code>
+     */
+    public void preload( String dir )
+    {
+        if ( !dir.endsWith( "/" ) )
+        {
+            dir += "/";
+        }
+        if ( _servletContext.getRealPath( dir ) == null )
+        {
+            _log.addDebug( "Cannot preload directory which is not on disk: ", dir );
+            return;
+        }
+        getPathEntries( dir, null );
+    }
+
+    /**
+     * Reads the files of a directory again, keeping its version.xml entries.
+     *
+     * @param dir      directory to read
+     * @param dreq     request which could not be matched
+     * @param pentries snapshot the request was matched against
+     * @return the new snapshot
+     */
+    private PathEntries rescanDirectory( String dir, DownloadRequest dreq, PathEntries pentries )
+    {
+        String key = getKey( dir );
+        synchronized ( getScanLock( key ) )
+        {
+            // Reuse the snapshot of a concurrent rescan, unless the directory list is built from
+            // the request because the directory is not available on disk (see scanDirectory)
+            PathEntries current = _entries.get( key );
+            if ( current != null && current != pentries && _servletContext.getRealPath( dir ) != null )
+            {
+                return current;
+            }
+            current = ( current != null ? current : pentries ).withDirectoryList( this, scanDirectory( dir, dreq ) );
+            _entries.put( key, current );
+            fireEntriesChanged( dir, current );
+            return current;
+        }
+    }
+
+    /**
+     * Starts watching a directory if there is a watcher and the directory is on disk.
+     *
+     * @return the current stamp of the directory, or -1 if it is not watched
+     */
+    private long watch( String dir )
+    {
+        DirectoryWatcher watcher = _watcher;
+        String realPath = watcher == null ? null : _servletContext.getRealPath( dir );
+        return realPath == null ? -1 : watcher.register( getKey( dir ), new File( realPath ) );
+    }
+
+    /**
+     * @return true if the directory of the entries is watched, and did not change since it was read
+     */
+    private boolean isWatchedAndCurrent( String key, PathEntries pentries )
+    {
+        DirectoryWatcher watcher = _watcher;
+        return watcher != null && pentries.getStamp() >= 0 && pentries.getStamp() == watcher.getStamp( key );
+    }
+
+    /**
+     * @return the modification time of the directory, which changes when files are added,
+     * removed or renamed, or 0 if it is not available on disk
+     */
+    private long getDirectoryLastModified( String dir )
+    {
+        String realPath = _servletContext.getRealPath( dir );
+        return realPath == null ? 0 : new File( realPath ).lastModified();
+    }
+
+    private static boolean isStale( PathEntries pentries, JnlpResource xmlVersionResPath )
+    {
+        return xmlVersionResPath.exists() && xmlVersionResPath.getLastModified() > pentries.getLastModified();
+    }
+
+    private static String getKey( String dir )
+    {
+        // Requests without a directory are stored under the empty path
+        return dir == null ? "" : dir;
+    }
+
+    private Object getScanLock( String key )
+    {
+        Object lock = _scanLocks.get( key );
+        if ( lock == null )
+        {
+            Object created = new Object();
+            lock = _scanLocks.putIfAbsent( key, created );
+            if ( lock == null )
+            {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    private void fireEntriesChanged( String dir, PathEntries pentries )
+    {
+        if ( _listeners.isEmpty() )
+        {
+            return;
+        }
+        List<JnlpResource> entries = new ArrayList<>();
+        if ( pentries.getVersionXmlList() != null )
+        {
+            entries.addAll( pentries.getVersionXmlList() );
+        }
+        if ( pentries.getDirectoryList() != null )
+        {
+            entries.addAll( pentries.getDirectoryList() );
+        }
+        for ( Listener listener : _listeners )
+        {
+            try
+            {
+                listener.entriesChanged( dir, entries );
+            }
+            catch ( RuntimeException e )
+            {
+                // The directory has been read, a listener must not fail the lookup
+                _log.addWarning( "servlet.log.warning.listener", dir, e );
+            }
+        }
+    }
+
     /**
      * This method finds the best match, or return the best error code. The
      * result parameter must be an array with room for one element.
@@ -203,6 +608,9 @@ public class ResourceCatalog
      * If a match is not found, it returns an error code, either: ERR_10_NO_RESOURCE,
      * ERR_11_NO_VERSION, ERR_20_UNSUP_OS, ERR_21_UNSUP_ARCH, ERR_22_UNSUP_LOCALE,
      * ERR_23_UNSUP_JRE.
+     * <p>
+     * The lookups of the catalog use a {@link ResourceIndex} of the list, which gives the
+     * same result without scanning the whole list.
      *
      * @param list   TODO
      * @param name   TODO
@@ -224,7 +632,7 @@ public class ResourceCatalog
         for ( Object aList : list )
         {
             JnlpResource respath = (JnlpResource) aList;
-            VersionID vid = new VersionID( respath.getVersionId() );
+            VersionID vid = VersionID.valueOf( respath.getVersionId() );
             int sts = matchEntry( name, vs, dreq, respath, vid );
             if ( sts == DownloadResponse.STS_00_OK )
             {
@@ -425,7 +833,7 @@ public class ResourceCatalog
             return list;
         }
         File dir = new File( _servletContext.getRealPath( dirPath ) );
-        _log.addDebug( "File directory: " + dir );
+        _log.addDebug( "File directory: ", dir );
         if ( dir.exists() && dir.isDirectory() )
         {
             File[] entries = dir.listFiles();
@@ -527,142 +935,420 @@ public class ResourceCatalog
         return (String[]) list.toArray( new String[list.size()] );
     }
 
-    // Returns false if parsing failed
-    private void parseVersionXML( final List versionList, final List platformList, final String dir,
-                                  final JnlpResource versionRes )
+    /**
+     * Reads the entries of version.xml from the index the webstart-maven-plugin generates
+     * next to it, which takes a single pass over a line-oriented file instead of building
+     * a DOM. The index is only used if it was generated with the current version.xml:
+     * it must not be older, and must record the length version.xml has.
+     * <p>
+     * The index starts with a <code>jnlp-versions-index 1 &lt;length of version.xml&gt;</code>
+     * header, followed by a line per entry with tab-separated fields:
+     * <code>resource name version-id os arch locale file</code> or
+     * <code>platform name version-id os arch locale file product-version-id</code>.
+     * Lists of values are separated by spaces, and backslashes, tabs, spaces and line breaks
+     * within a value are escaped.
+     *
+     * @return false if there is no current index, and version.xml must be parsed instead
+     */
+    private boolean readVersionIndex( List versionList, List platformList, String dir, JnlpResource versionRes )
     {
         if ( !versionRes.exists() )
         {
-            return;
+            return false;
+        }
+        JnlpResource indexRes = new JnlpResource( _servletContext, dir + VERSION_INDEX_FILENAME );
+        if ( !indexRes.exists() || indexRes.getLastModified() < versionRes.getLastModified() )
+        {
+            return false;
         }
 
-        // Parse XML into a more understandable format
-        XMLNode root = null;
+        List resources = new ArrayList();
+        List platforms = new ArrayList();
+        BufferedReader reader = null;
         try
         {
-            DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-            Document doc = docBuilder.parse( new BufferedInputStream( versionRes.getResource().openStream() ) );
-            doc.getDocumentElement().normalize();
+            reader = new BufferedReader( new InputStreamReader( indexRes.getResource().openStream(), "UTF-8" ) );
+            String line = reader.readLine();
+            String[] header = line == null ? null : line.split( " " );
+            if ( header == null || header.length != 3 || !header[0].equals( VERSION_INDEX_HEADER ) ||
+                    !header[1].equals( VERSION_INDEX_FORMAT ) ||
+                    versionRes.getContentLength() >= 0 && Long.parseLong( header[2] ) != versionRes.getContentLength() )
+            {
+                _log.addDebug( "Ignoring index which does not match ", versionRes.getPath() );
+                return false;
+            }
+            int lineNumber = 1;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                lineNumber++;
+                if ( line.length() == 0 )
+                {
+                    continue;
+                }
+                String[] fields = line.split( "\t", -1 );
+                boolean platform = fields[0].equals( "platform" );
+                if ( !( fields.length == 7 && fields[0].equals( "resource" ) || fields.length == 8 && platform ) )
+                {
+                    _log.addWarning( "servlet.log.warning.index.parsing", indexRes.getPath(),
+                                     Integer.toString( lineNumber ) );
+                    return false;
+                }
+                String name = unescape( fields[1] );
+                String versionId = unescape( fields[2] );
+                String file = unescape( fields[6] );
+                JnlpResource res = new JnlpResource( _servletContext, name, versionId, splitIndexList( fields[3] ),
+                                                     splitIndexList( fields[4] ), splitIndexList( fields[5] ),
+                                                     dir + file, platform ? unescape( fields[7] ) : versionId );
+                if ( res.exists() )
+                {
+                    ( platform ? platforms : resources ).add( res );
+                    if ( _log.isDebugLevel() )
+                    {
+                        _log.addDebug( "Read " + ( platform ? "platform " : "" ) + "resource: " + res );
+                    }
+                }
+                else
+                {
+                    _log.addWarning( "servlet.log.warning.missing-file", file, indexRes.getPath() );
+                }
+            }
+        }
+        catch ( IOException | NumberFormatException e )
+        {
+            _log.addWarning( "servlet.log.warning.index.reading", indexRes.getPath(), e );
+            return false;
+        }
+        finally
+        {
+            if ( reader != null )
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch ( IOException e )
+                {
+                    // Ignore
+                }
+            }
+        }
+        versionList.addAll( resources );
+        platformList.addAll( platforms );
+        return true;
+    }
 
-            // Convert document into an XMLNode structure, since we already got utility methods
-            //  to handle these. We should really use the data-binding stuff here - but that will come
-            //  later
-            //
-            root = XMLParsing.convert( doc.getDocumentElement() );
+    /* Returns null for an empty list, like version.xml elements which are not present */
+    private static String[] splitIndexList( String field )
+    {
+        if ( field.length() == 0 )
+        {
+            return null;
         }
-        catch ( SAXParseException err )
+        String[] values = field.split( " " );
+        for ( int i = 0; i < values.length; i++ )
         {
-            _log.addWarning( "servlet.log.warning.xml.parsing", versionRes.getPath(),
-                             Integer.toString( err.getLineNumber() ), err.getMessage() );
-            return;
+            values[i] = unescape( values[i] );
         }
-        catch ( Throwable t )
+        return values;
+    }
+
+    private static String unescape( String value )
+    {
+        if ( value.indexOf( '\\' ) == -1 )
         {
-            _log.addWarning( "servlet.log.warning.xml.reading", versionRes.getPath(), t );
-            return;
+            return value;
         }
+        StringBuilder sb = new StringBuilder( value.length() );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char ch = value.charAt( i );
+            if ( ch == '\\' && i + 1 < value.length() )
+            {
+                ch = value.charAt( ++i );
+                switch ( ch )
+                {
+                    case 't':
+                        ch = '\t';
+                        break;
+                    case 's':
+                        ch = ' ';
+                        break;
+                    case 'n':
+                        ch = '\n';
+                        break;
+                    case 'r':
+                        ch = '\r';
+                        break;
+                    default:
+                        // An escaped backslash
+                }
+            }
+            sb.append( ch );
+        }
+        return sb.toString();
+    }
 
-        // Check that root element is a <jnlp> tag
-        if ( !root.getName().equals( "jnlp-versions" ) )
+    /**
+     * Reads the <code>&lt;resource&gt;</code> and <code>&lt;platform&gt;</code> elements of a
+     * version.xml file with a streaming parser, creating the entries as the elements are read.
+     * Only direct children are considered and the first element is used where one is expected,
+     * e.g. the first <code>&lt;pattern&gt;</code> of a resource. Nothing is added if the file is
+     * not well-formed.
+     */
+    void parseVersionXML( List versionList, List platformList, String dir, JnlpResource versionRes )
+    {
+        if ( !versionRes.exists() )
         {
-            _log.addWarning( "servlet.log.warning.xml.missing-jnlp", versionRes.getPath() );
             return;
         }
 
-        // Visit all <resource> elements
-        XMLParsing.visitElements( root, "<resource>", new XMLParsing.ElementVisitor()
+        List resources = new ArrayList();
+        List platforms = new ArrayList();
+        InputStream in = null;
+        XMLStreamReader reader = null;
+        try
         {
-            public void visitElement( XMLNode node )
+            in = new BufferedInputStream( versionRes.getResource().openStream() );
+            reader = XML_INPUT_FACTORY.createXMLStreamReader( in );
+            while ( reader.next() != XMLStreamConstants.START_ELEMENT )
+            {
+                // Skip the prolog
+            }
+
+            // Check that root element is a <jnlp-versions> tag
+            if ( !reader.getLocalName().equals( "jnlp-versions" ) )
             {
-                XMLNode pattern = XMLParsing.findElementPath( node, "<pattern>" );
-                if ( pattern == null )
+                _log.addWarning( "servlet.log.warning.xml.missing-jnlp", versionRes.getPath() );
+                return;
+            }
+
+            while ( nextChildElement( reader ) )
+            {
+                String tag = reader.getLocalName();
+                if ( tag.equals( "resource" ) )
                 {
-                    _log.addWarning( "servlet.log.warning.xml.missing-pattern", versionRes.getPath() );
+                    readVersionXmlEntry( reader, false, dir, versionRes, resources );
+                }
+                else if ( tag.equals( "platform" ) )
+                {
+                    readVersionXmlEntry( reader, true, dir, versionRes, platforms );
                 }
                 else
                 {
-                    // Parse pattern
-                    String name = XMLParsing.getElementContent( pattern, "<name>", "" );
-                    String versionId = XMLParsing.getElementContent( pattern, "<version-id>" );
-                    String[] os = XMLParsing.getMultiElementContent( pattern, "<os>" );
-                    String[] arch = XMLParsing.getMultiElementContent( pattern, "<arch>" );
-                    String[] locale = XMLParsing.getMultiElementContent( pattern, "<locale>" );
-                    // Get return request
-                    String file = XMLParsing.getElementContent( node, "<file>" );
-                    if ( versionId == null || file == null )
-                    {
-                        _log.addWarning( "servlet.log.warning.xml.missing-elems", versionRes.getPath() );
-                    }
-                    else
-                    {
-                        JnlpResource res =
-                                new JnlpResource( _servletContext, name, versionId, os, arch, locale, dir + file,
-                                                  versionId );
-                        if ( res.exists() )
-                        {
-                            versionList.add( res );
-                            if ( _log.isDebugLevel() )
-                            {
-                                _log.addDebug( "Read resource: " + res );
-                            }
-                        }
-                        else
-                        {
-                            _log.addWarning( "servlet.log.warning.missing-file", file, versionRes.getPath() );
-                        }
-                    }
+                    skipElement( reader );
                 }
             }
-        } );
+        }
+        catch ( XMLStreamException err )
+        {
+            int lineNumber = err.getLocation() == null ? -1 : err.getLocation().getLineNumber();
+            _log.addWarning( "servlet.log.warning.xml.parsing", versionRes.getPath(), Integer.toString( lineNumber ),
+                             err.getMessage() );
+            return;
+        }
+        catch ( Throwable t )
+        {
+            _log.addWarning( "servlet.log.warning.xml.reading", versionRes.getPath(), t );
+            return;
+        }
+        finally
+        {
+            close( reader, in );
+        }
+        versionList.addAll( resources );
+        platformList.addAll( platforms );
+    }
 
-        // Visit all <resource> elements
-        XMLParsing.visitElements( root, "<platform>", new XMLParsing.ElementVisitor()
+    /**
+     * Reads a <code>&lt;resource&gt;</code> or <code>&lt;platform&gt;</code> element, the reader
+     * being on its start tag, and adds its entry to the list if the file exists.
+     */
+    private void readVersionXmlEntry( XMLStreamReader reader, boolean platform, String dir,
+                                      JnlpResource versionRes, List list )
+            throws XMLStreamException
+    {
+        // Like the DOM lookups of the first child element with a tag, later ones are ignored
+        boolean hasPattern = false;
+        boolean hasName = false;
+        boolean hasVersionId = false;
+        boolean hasFile = false;
+        boolean hasProductId = false;
+        String name = "";
+        String versionId = null;
+        List<String> os = new ArrayList<>();
+        List<String> arch = new ArrayList<>();
+        List<String> locale = new ArrayList<>();
+        String file = null;
+        String productId = null;
+        while ( nextChildElement( reader ) )
         {
-            public void visitElement( XMLNode node )
+            String tag = reader.getLocalName();
+            if ( tag.equals( "pattern" ) && !hasPattern )
             {
-                XMLNode pattern = XMLParsing.findElementPath( node, "<pattern>" );
-                if ( pattern == null )
+                hasPattern = true;
+                while ( nextChildElement( reader ) )
                 {
-                    _log.addWarning( "servlet.log.warning.xml.missing-pattern", versionRes.getPath() );
-                }
-                else
-                {
-                    // Parse pattern
-                    String name = XMLParsing.getElementContent( pattern, "<name>", "" );
-                    String versionId = XMLParsing.getElementContent( pattern, "<version-id>" );
-                    String[] os = XMLParsing.getMultiElementContent( pattern, "<os>" );
-                    String[] arch = XMLParsing.getMultiElementContent( pattern, "<arch>" );
-                    String[] locale = XMLParsing.getMultiElementContent( pattern, "<locale>" );
-                    // Get return request
-                    String file = XMLParsing.getElementContent( node, "<file>" );
-                    String productId = XMLParsing.getElementContent( node, "<product-version-id>" );
-
-                    if ( versionId == null || file == null || productId == null )
+                    String patternTag = reader.getLocalName();
+                    String text = readElementText( reader );
+                    if ( patternTag.equals( "name" ) && !hasName )
                     {
-                        _log.addWarning( "servlet.log.warning.xml.missing-elems2", versionRes.getPath() );
+                        hasName = true;
+                        name = text == null ? "" : text;
                     }
-                    else
+                    else if ( patternTag.equals( "version-id" ) && !hasVersionId )
                     {
-                        JnlpResource res =
-                                new JnlpResource( _servletContext, name, versionId, os, arch, locale, dir + file,
-                                                  productId );
-                        if ( res.exists() )
-                        {
-                            platformList.add( res );
-                            if ( _log.isDebugLevel() )
-                            {
-                                _log.addDebug( "Read platform resource: " + res );
-                            }
-                        }
-                        else
+                        hasVersionId = true;
+                        versionId = text;
+                    }
+                    else if ( text != null )
+                    {
+                        List<String> values =
+                                patternTag.equals( "os" ) ? os : patternTag.equals( "arch" ) ? arch :
+                                        patternTag.equals( "locale" ) ? locale : null;
+                        if ( values != null )
                         {
-                            _log.addWarning( "servlet.log.warning.missing-file", file, versionRes.getPath() );
+                            values.add( text );
                         }
                     }
                 }
             }
-        } );
+            else if ( tag.equals( "file" ) && !hasFile )
+            {
+                hasFile = true;
+                file = readElementText( reader );
+            }
+            else if ( tag.equals( "product-version-id" ) && !hasProductId )
+            {
+                hasProductId = true;
+                productId = readElementText( reader );
+            }
+            else
+            {
+                skipElement( reader );
+            }
+        }
+
+        if ( !hasPattern )
+        {
+            _log.addWarning( "servlet.log.warning.xml.missing-pattern", versionRes.getPath() );
+            return;
+        }
+        if ( versionId == null || file == null || platform && productId == null )
+        {
+            _log.addWarning( platform ? "servlet.log.warning.xml.missing-elems2"
+                                     : "servlet.log.warning.xml.missing-elems", versionRes.getPath() );
+            return;
+        }
+        JnlpResource res = new JnlpResource( _servletContext, name, versionId,
+                                             listToStrings( os ), listToStrings( arch ), listToStrings( locale ),
+                                             dir + file, platform ? productId : versionId );
+        if ( res.exists() )
+        {
+            list.add( res );
+            if ( _log.isDebugLevel() )
+            {
+                _log.addDebug( "Read " + ( platform ? "platform " : "" ) + "resource: " + res );
+            }
+        }
+        else
+        {
+            _log.addWarning( "servlet.log.warning.missing-file", file, versionRes.getPath() );
+        }
+    }
+
+    /**
+     * Moves to the next child element of the current element.
+     *
+     * @return false if the end tag of the current element was reached instead
+     */
+    private static boolean nextChildElement( XMLStreamReader reader )
+            throws XMLStreamException
+    {
+        while ( true )
+        {
+            int event = reader.next();
+            if ( event == XMLStreamConstants.START_ELEMENT )
+            {
+                return true;
+            }
+            if ( event == XMLStreamConstants.END_ELEMENT )
+            {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Reads up to the end tag of the current element.
+     *
+     * @return the text of the element before its first child element, or null if there is none
+     */
+    private static String readElementText( XMLStreamReader reader )
+            throws XMLStreamException
+    {
+        StringBuilder text = null;
+        boolean nested = false;
+        int depth = 1;
+        while ( depth > 0 )
+        {
+            int event = reader.next();
+            if ( event == XMLStreamConstants.START_ELEMENT )
+            {
+                nested = true;
+                depth++;
+            }
+            else if ( event == XMLStreamConstants.END_ELEMENT )
+            {
+                depth--;
+            }
+            else if ( !nested && ( event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA ||
+                    event == XMLStreamConstants.SPACE ) )
+            {
+                if ( text == null )
+                {
+                    text = new StringBuilder();
+                }
+                text.append( reader.getText() );
+            }
+        }
+        return text == null || text.length() == 0 ? null : text.toString();
+    }
+
+    private static void skipElement( XMLStreamReader reader )
+            throws XMLStreamException
+    {
+        int depth = 1;
+        while ( depth > 0 )
+        {
+            int event = reader.next();
+            if ( event == XMLStreamConstants.START_ELEMENT )
+            {
+                depth++;
+            }
+            else if ( event == XMLStreamConstants.END_ELEMENT )
+            {
+                depth--;
+            }
+        }
+    }
+
+    private static void close( XMLStreamReader reader, InputStream in )
+    {
+        try
+        {
+            if ( reader != null )
+            {
+                reader.close();
+            }
+            if ( in != null )
+            {
+                in.close();
+            }
+        }
+        catch ( XMLStreamException | IOException e )
+        {
+            // Ignore
+        }
     }
 }
 
@@ -0,0 +1,267 @@
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.VersionID;
+import jnlp.sample.util.VersionString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of version-based resources, from resource name to the versions of the
+ * resource sorted in descending order.
+ * <p>
+ * It finds the same resource, or returns the same error code, as
+ * {@link ResourceCatalog#findMatch(List, String, DownloadRequest, JnlpResource[])},
+ * but only looks at the versions of the requested name. The version-ids of the
+ * resources are parsed once, when the index is built. A request for an exact
+ * version-id finds the candidates by binary search, and a request for a range of
+ * versions stops at the highest version which matches. Resources with non-numeric
+ * version-ids are not sorted, and all versions of their name are compared.
+ */
+class ResourceIndex
+{
+    private static final Comparator<Candidate> DESCENDING = new Comparator<Candidate>()
+    {
+        public int compare( Candidate c1, Candidate c2 )
+        {
+            if ( c1._versionId.isGreaterThan( c2._versionId ) )
+            {
+                return -1;
+            }
+            return c2._versionId.isGreaterThan( c1._versionId ) ? 1 : 0;
+        }
+    };
+
+    private static class Candidate
+    {
+        private final JnlpResource _resource;
+
+        private final VersionID _versionId;
+
+        Candidate( JnlpResource resource )
+        {
+            _resource = resource;
+            _versionId = VersionID.valueOf( resource.getVersionId() );
+        }
+    }
+
+    private static class Versions
+    {
+        /* Highest version first, resources with equal versions in the order of the list */
+        private final Candidate[] _candidates;
+
+        /* False if the version-ids are not all numeric, the candidates are then in the order of the list */
+        private final boolean _sorted;
+
+        Versions( Candidate[] candidates, boolean sorted )
+        {
+            _candidates = candidates;
+            _sorted = sorted;
+        }
+    }
+
+    private final ResourceCatalog _catalog;
+
+    private final Map<String, Versions> _versions = new HashMap<>();
+
+    /**
+     * @param catalog   catalog matching the os, arch and locale of the resources
+     * @param resources list of JnlpResource, or <code>null</code>
+     */
+    ResourceIndex( ResourceCatalog catalog, List resources )
+    {
+        _catalog = catalog;
+        if ( resources == null )
+        {
+            return;
+        }
+        Map<String, List<Candidate>> byName = new HashMap<>();
+        for ( Object resource : resources )
+        {
+            JnlpResource jnlpres = (JnlpResource) resource;
+            List<Candidate> candidates = byName.get( jnlpres.getName() );
+            if ( candidates == null )
+            {
+                candidates = new ArrayList<>();
+                byName.put( jnlpres.getName(), candidates );
+            }
+            candidates.add( new Candidate( jnlpres ) );
+        }
+        for ( Map.Entry<String, List<Candidate>> e : byName.entrySet() )
+        {
+            Candidate[] candidates = e.getValue().toArray( new Candidate[e.getValue().size()] );
+            boolean sorted = sortDescending( candidates );
+            _versions.put( e.getKey(), new Versions( candidates, sorted ) );
+        }
+    }
+
+    /**
+     * Finds the best match, or returns the best error code, like
+     * {@link ResourceCatalog#findMatch(List, String, DownloadRequest, JnlpResource[])}.
+     *
+     * @param name   name of the resource
+     * @param dreq   request to match
+     * @param result array with room for one element, receiving the match
+     * @return DownloadResponse.STS_00_OK if a match was found, otherwise the error code
+     */
+    int findMatch( String name, DownloadRequest dreq, JnlpResource[] result )
+    {
+        Versions versions = _versions.get( name );
+        if ( versions == null )
+        {
+            return DownloadResponse.ERR_10_NO_RESOURCE;
+        }
+        Candidate[] candidates = versions._candidates;
+        VersionString vs = new VersionString( dreq.getVersion() );
+        if ( !versions._sorted )
+        {
+            return findBestMatch( name, vs, dreq, candidates, result );
+        }
+
+        int from = 0;
+        int to = candidates.length;
+        int error = DownloadResponse.ERR_10_NO_RESOURCE;
+        if ( isNumericVersion( dreq.getVersion() ) )
+        {
+            // Only the candidates equal to the requested version can match
+            VersionID requested = new VersionID( dreq.getVersion().trim() );
+            from = lowerBound( candidates, requested );
+            to = upperBound( candidates, requested, from );
+            if ( from > 0 || to < candidates.length )
+            {
+                error = DownloadResponse.ERR_11_NO_VERSION;
+            }
+        }
+        for ( int i = from; i < to; i++ )
+        {
+            Candidate c = candidates[i];
+            int sts = _catalog.matchEntry( name, vs, dreq, c._resource, c._versionId );
+            if ( sts == DownloadResponse.STS_00_OK )
+            {
+                // The first match has the highest version
+                result[0] = c._resource;
+                return sts;
+            }
+            error = Math.max( error, sts );
+        }
+        return error;
+    }
+
+    private int findBestMatch( String name, VersionString vs, DownloadRequest dreq, Candidate[] candidates,
+                               JnlpResource[] result )
+    {
+        VersionID bestVersionId = null;
+        int error = DownloadResponse.ERR_10_NO_RESOURCE;
+        for ( Candidate c : candidates )
+        {
+            int sts = _catalog.matchEntry( name, vs, dreq, c._resource, c._versionId );
+            if ( sts == DownloadResponse.STS_00_OK )
+            {
+                if ( result[0] == null || c._versionId.isGreaterThan( bestVersionId ) )
+                {
+                    result[0] = c._resource;
+                    bestVersionId = c._versionId;
+                }
+            }
+            else
+            {
+                error = Math.max( error, sts );
+            }
+        }
+        return ( result[0] != null ) ? DownloadResponse.STS_00_OK : error;
+    }
+
+    /**
+     * Sorts the candidates by descending version, keeping the order of equal versions.
+     * <p>
+     * Only numeric version-ids are sorted: VersionID compares a numeric element with a
+     * non-numeric one as strings, so mixing them does not give a consistent order
+     * (e.g. 10 &gt; 9 &gt; 1a &gt; 10).
+     *
+     * @return false if the candidates were left in the order of the list
+     */
+    private static boolean sortDescending( Candidate[] candidates )
+    {
+        for ( Candidate c : candidates )
+        {
+            if ( !isNumericVersion( c._resource.getVersionId() ) )
+            {
+                return false;
+            }
+        }
+        Arrays.sort( candidates, DESCENDING );
+        return true;
+    }
+
+    /* A single version-id made of numbers only, without a '+', '*' or '&' modifier */
+    static boolean isNumericVersion( String version )
+    {
+        if ( version == null )
+        {
+            return false;
+        }
+        version = version.trim();
+        int digits = 0;
+        for ( int i = 0; i < version.length(); i++ )
+        {
+            char ch = version.charAt( i );
+            if ( ".-_".indexOf( ch ) != -1 )
+            {
+                digits = 0;
+            }
+            else if ( ch >= '0' && ch <= '9' && ++digits < 10 )
+            {
+                // Parsed as an Integer by VersionID
+            }
+            else
+            {
+                return false;
+            }
+        }
+        return version.length() > 0;
+    }
+
+    /* Index of the first candidate which is not greater than the version */
+    private static int lowerBound( Candidate[] candidates, VersionID version )
+    {
+        int low = 0;
+        int high = candidates.length;
+        while ( low < high )
+        {
+            int mid = ( low + high ) >>> 1;
+            if ( candidates[mid]._versionId.isGreaterThan( version ) )
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /* Index of the first candidate, from the given one, which is lower than the version */
+    private static int upperBound( Candidate[] candidates, VersionID version, int from )
+    {
+        int low = from;
+        int high = candidates.length;
+        while ( low < high )
+        {
+            int mid = ( low + high ) >>> 1;
+            if ( version.isGreaterThan( candidates[mid]._versionId ) )
+            {
+                high = mid;
+            }
+            else
+            {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+}
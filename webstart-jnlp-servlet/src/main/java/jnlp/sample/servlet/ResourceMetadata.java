@@ -0,0 +1,178 @@
+package jnlp.sample.servlet;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * What is known about a path of the web application: the URL of the resource, if it
+ * exists, its file on disk, mime type, length and last modification time.
+ * <p>
+ * Instances are immutable. They are kept by a {@link ResourceMetadataCache}, if the
+ * servlet context has one, so that looking a path up again does not access the
+ * resource.
+ */
+class ResourceMetadata
+{
+    private final String _path;
+
+    private final URL _url;
+
+    private final File _file;
+
+    private final String _mimeType;
+
+    private final long _lastModified;
+
+    private final long _length;
+
+    /* Real path the metadata was read from, or null if the web application is not on disk */
+    private final String _realPath;
+
+    /* Modification time of the real path when the metadata was read, 0 if it did not exist */
+    private final long _realLastModified;
+
+    /* Stamp of the watched directory when the metadata was read, or -1 */
+    private final long _stamp;
+
+    private ResourceMetadata( String path, URL url, File file, String mimeType, long lastModified, long length,
+                              String realPath, long realLastModified, long stamp )
+    {
+        _path = path;
+        _url = url;
+        _file = file;
+        _mimeType = mimeType;
+        _lastModified = lastModified;
+        _length = length;
+        _realPath = realPath;
+        _realLastModified = realLastModified;
+        _stamp = stamp;
+    }
+
+    /**
+     * Returns the metadata of a path, from the cache of the servlet context if it has one.
+     *
+     * @param context servlet context of the web application
+     * @param path    path of the resource in the web application
+     * @return the metadata of the path
+     */
+    static ResourceMetadata get( ServletContext context, String path )
+    {
+        ResourceMetadataCache cache = ResourceMetadataCache.getInstance( context );
+        return cache == null ? read( context, path, -1 ) : cache.get( path );
+    }
+
+    /**
+     * Reads the metadata of a path.
+     *
+     * @param context servlet context of the web application
+     * @param path    path of the resource in the web application
+     * @param stamp   stamp of the directory of the path, or -1 if it is not watched
+     * @return the metadata of the path
+     */
+    static ResourceMetadata read( ServletContext context, String path, long stamp )
+    {
+        String mimeType = context.getMimeType( path );
+        String realPath = context.getRealPath( path );
+        File file = realPath == null ? null : new File( realPath );
+        long realLastModified = file == null ? 0 : file.lastModified();
+        URL url = null;
+        try
+        {
+            url = context.getResource( path );
+        }
+        catch ( IOException e )
+        {
+            // Treated as missing
+        }
+        if ( url == null )
+        {
+            return new ResourceMetadata( path, null, null, mimeType, 0, -1, realPath, realLastModified, stamp );
+        }
+
+        if ( file != null && file.isFile() )
+        {
+            return new ResourceMetadata( path, url, file, mimeType, realLastModified, file.length(), realPath,
+                                         realLastModified, stamp );
+        }
+        long lastModified = 0;
+        long length = -1;
+        try
+        {
+            URLConnection conn = url.openConnection();
+            lastModified = conn.getLastModified();
+            length = conn.getContentLength();
+        }
+        catch ( Exception e )
+        {
+            // do nothing
+        }
+        if ( lastModified == 0 )
+        {
+            // Arguably a bug in the JRE will not set the lastModified for file URLs, and
+            // always return 0. This is a workaround for that problem.
+            lastModified = realLastModified;
+        }
+        return new ResourceMetadata( path, url, null, mimeType, lastModified, length, realPath, realLastModified,
+                                     stamp );
+    }
+
+    String getPath()
+    {
+        return _path;
+    }
+
+    /**
+     * @return the URL of the resource, or <code>null</code> if it does not exist
+     */
+    URL getResource()
+    {
+        return _url;
+    }
+
+    /**
+     * @return the regular file of the resource, or <code>null</code> if it is not on disk
+     */
+    File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * @return the mime type the container associates with the path, or <code>null</code>
+     */
+    String getMimeType()
+    {
+        return _mimeType;
+    }
+
+    long getLastModified()
+    {
+        return _lastModified;
+    }
+
+    /**
+     * @return the length of the resource, or -1 if it is not known
+     */
+    long getLength()
+    {
+        return _length;
+    }
+
+    String getRealPath()
+    {
+        return _realPath;
+    }
+
+    long getRealLastModified()
+    {
+        return _realLastModified;
+    }
+
+    long getStamp()
+    {
+        return _stamp;
+    }
+}
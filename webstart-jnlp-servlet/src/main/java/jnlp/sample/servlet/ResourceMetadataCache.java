@@ -0,0 +1,125 @@
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.BoundedCache;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+
+/**
+ * Cache of the {@link ResourceMetadata} of the paths of a web application, shared
+ * through an attribute of the servlet context.
+ * <p>
+ * Cached metadata is checked before it is used. If the directory of the path is watched
+ * by the {@link DirectoryWatcher}, it is current as long as the directory did not change,
+ * which needs no file system access. Otherwise, if the path is on disk, it is current as
+ * long as the modification time of the file is the same. Resources of a web application
+ * which is not expanded on disk cannot change while it is deployed.
+ */
+class ResourceMetadataCache
+{
+    private static final String ATTRIBUTE = ResourceMetadataCache.class.getName();
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final ServletContext _context;
+
+    private final BoundedCache<String, ResourceMetadata> _entries;
+
+    private volatile DirectoryWatcher _watcher = null;
+
+    /**
+     * @param context    servlet context of the web application
+     * @param maxEntries maximum number of paths in the cache
+     */
+    ResourceMetadataCache( ServletContext context, int maxEntries )
+    {
+        _context = context;
+        _entries = new BoundedCache<>( maxEntries, 0, null, null );
+    }
+
+    /**
+     * @param context servlet context of the web application
+     * @return the cache of the web application, or <code>null</code> if there is none
+     */
+    static ResourceMetadataCache getInstance( ServletContext context )
+    {
+        Object cache = context.getAttribute( ATTRIBUTE );
+        return cache instanceof ResourceMetadataCache ? (ResourceMetadataCache) cache : null;
+    }
+
+    /**
+     * Makes this cache the one of its web application.
+     */
+    void install()
+    {
+        _context.setAttribute( ATTRIBUTE, this );
+    }
+
+    /**
+     * Removes this cache from its web application.
+     */
+    void uninstall()
+    {
+        _context.removeAttribute( ATTRIBUTE );
+    }
+
+    /**
+     * @param watcher watcher of the directories of the web application, or null
+     */
+    void setWatcher( DirectoryWatcher watcher )
+    {
+        _watcher = watcher;
+    }
+
+    /**
+     * @param path path of the resource in the web application
+     * @return the current metadata of the path
+     */
+    ResourceMetadata get( String path )
+    {
+        ResourceMetadata metadata = _entries.getIfPresent( path );
+        if ( metadata != null && isCurrent( metadata ) )
+        {
+            return metadata;
+        }
+        // Watch before reading, so that a change while reading is not missed
+        metadata = ResourceMetadata.read( _context, path, watch( path ) );
+        _entries.put( path, metadata );
+        return metadata;
+    }
+
+    private boolean isCurrent( ResourceMetadata metadata )
+    {
+        if ( metadata.getStamp() >= 0 )
+        {
+            DirectoryWatcher watcher = _watcher;
+            return watcher != null && watcher.getStamp( getDirectory( metadata.getPath() ) ) == metadata.getStamp();
+        }
+        if ( metadata.getRealPath() == null )
+        {
+            return true;
+        }
+        return new File( metadata.getRealPath() ).lastModified() == metadata.getRealLastModified();
+    }
+
+    /**
+     * @return the current stamp of the directory of the path, or -1 if it is not watched
+     */
+    private long watch( String path )
+    {
+        DirectoryWatcher watcher = _watcher;
+        if ( watcher == null )
+        {
+            return -1;
+        }
+        String dir = getDirectory( path );
+        String realPath = _context.getRealPath( dir );
+        return realPath == null ? -1 : watcher.register( dir, new File( realPath ) );
+    }
+
+    private static String getDirectory( String path )
+    {
+        // Same directories as the ResourceCatalog
+        return path.substring( 0, path.lastIndexOf( '/' ) + 1 );
+    }
+}
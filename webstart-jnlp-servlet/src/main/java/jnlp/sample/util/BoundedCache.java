@@ -0,0 +1,536 @@
+package jnlp.sample.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent cache bounded by number of entries and by total weight.
+ * <p>
+ * Lookups never block on each other. A miss computes its value in the calling
+ * thread, and concurrent requests for the same key wait for that single
+ * computation instead of starting their own. When a bound is exceeded the least
+ * recently used entries are evicted, and the removal listener is notified so
+ * that resources held by the value (e.g. temporary files) can be released.
+ * Entries may also expire a fixed time after they were computed.
+ * <p>
+ * The computed entries are kept in access order in a linked list, which a hit and an
+ * eviction update in constant time under a short lock; the map itself is not locked.
+ * <p>
+ * The cache counts its hits, misses and evictions, expired entries counting as
+ * evictions.
+ *
+ * @param <K> type of keys
+ * @param <V> type of values, <code>null</code> values are allowed
+ */
+public class BoundedCache<K, V>
+{
+    /**
+     * Computes the value of a missing entry.
+     */
+    public interface Loader<K, V>
+    {
+        V load( K key )
+                throws Exception;
+    }
+
+    /**
+     * Computes the weight of a value, e.g. the size in bytes of a file.
+     */
+    public interface Weigher<V>
+    {
+        long weigh( V value );
+    }
+
+    /**
+     * Callback invoked when an entry has been evicted from the cache.
+     */
+    public interface RemovalListener<K, V>
+    {
+        void removed( K key, V value );
+    }
+
+    private static class Node<K, V>
+    {
+        private final K _key;
+
+        private final FutureTask<V> _future;
+
+        private volatile long _weight = -1; // -1 while loading
+
+        private volatile long _expires = Long.MAX_VALUE;
+
+        private boolean _removed; // guarded by this
+
+        /* Neighbours in the access order, guarded by the LRU lock */
+        private Node<K, V> _prev;
+
+        private Node<K, V> _next;
+
+        private boolean _linked;
+
+        Node( K key, FutureTask<V> future )
+        {
+            _key = key;
+            _future = future;
+        }
+
+        boolean isLoaded()
+        {
+            return _weight >= 0;
+        }
+
+        boolean isExpired( long now )
+        {
+            return _expires <= now && isLoaded();
+        }
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> _map = new ConcurrentHashMap<>();
+
+    /* Guards the access order list, from the least recently used entry to the most recently used one */
+    private final Object _lruLock = new Object();
+
+    private Node<K, V> _head;
+
+    private Node<K, V> _tail;
+
+    private final AtomicLong _totalWeight = new AtomicLong();
+
+    private final Object _evictionLock = new Object();
+
+    private final int _maxEntries;
+
+    private final long _maxWeight;
+
+    private final Weigher<? super V> _weigher;
+
+    private final RemovalListener<? super K, ? super V> _removalListener;
+
+    private final long _timeToLive;
+
+    private final AtomicLong _hits = new AtomicLong();
+
+    private final AtomicLong _misses = new AtomicLong();
+
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * @param maxEntries      maximum number of entries, or 0 for no limit
+     * @param maxWeight       maximum total weight of the entries, or 0 for no limit
+     * @param weigher         computes the weight of a value, or <code>null</code> if values weigh nothing
+     * @param removalListener notified on eviction, or <code>null</code>
+     */
+    public BoundedCache( int maxEntries, long maxWeight, Weigher<? super V> weigher,
+                         RemovalListener<? super K, ? super V> removalListener )
+    {
+        this( maxEntries, maxWeight, weigher, removalListener, 0 );
+    }
+
+    /**
+     * @param maxEntries      maximum number of entries, or 0 for no limit
+     * @param maxWeight       maximum total weight of the entries, or 0 for no limit
+     * @param weigher         computes the weight of a value, or <code>null</code> if values weigh nothing
+     * @param removalListener notified on eviction, or <code>null</code>
+     * @param timeToLive      time in milliseconds an entry is kept after it was computed, or 0 for no limit
+     */
+    public BoundedCache( int maxEntries, long maxWeight, Weigher<? super V> weigher,
+                         RemovalListener<? super K, ? super V> removalListener, long timeToLive )
+    {
+        _maxEntries = maxEntries;
+        _maxWeight = maxWeight;
+        _weigher = weigher;
+        _removalListener = removalListener;
+        _timeToLive = timeToLive;
+    }
+
+    /**
+     * Returns the value for <code>key</code>, computing it with <code>loader</code> if it is not cached yet.
+     * If the computation fails, nothing is cached and the exception is propagated to every waiting caller.
+     *
+     * @param key    key of the entry
+     * @param loader computes the value on a miss
+     * @return the cached or computed value
+     * @throws ExecutionException   if the loader failed
+     * @throws InterruptedException if the thread was interrupted while waiting for another thread's computation
+     */
+    public V get( final K key, final Loader<? super K, ? extends V> loader )
+            throws ExecutionException, InterruptedException
+    {
+        Node<K, V> node = getUnexpired( key );
+        if ( node != null )
+        {
+            _hits.incrementAndGet();
+        }
+        else
+        {
+            Node<K, V> created = new Node<>( key, new FutureTask<>( new Callable<V>()
+            {
+                public V call()
+                        throws Exception
+                {
+                    return loader.load( key );
+                }
+            } ) );
+            node = _map.putIfAbsent( key, created );
+            if ( node == null )
+            {
+                _misses.incrementAndGet();
+                load( key, created );
+                return created._future.get();
+            }
+            // Computed by another thread
+            _hits.incrementAndGet();
+        }
+        touch( node );
+        return node._future.get();
+    }
+
+    /**
+     * Stores a value which is already known, replacing the current entry if any.
+     *
+     * @param key   key of the entry
+     * @param value value of the entry
+     */
+    public void put( K key, final V value )
+    {
+        Node<K, V> node = new Node<>( key, new FutureTask<>( new Callable<V>()
+        {
+            public V call()
+            {
+                return value;
+            }
+        } ) );
+        Node<K, V> previous = _map.put( key, node );
+        if ( previous != null )
+        {
+            release( key, previous );
+        }
+        try
+        {
+            load( key, node );
+        }
+        catch ( Exception e )
+        {
+            // Cannot happen, there is nothing to compute
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * @param key key of the entry
+     * @return the value if it is cached and fully computed, otherwise <code>null</code>
+     */
+    public V getIfPresent( K key )
+    {
+        Node<K, V> node = getUnexpired( key );
+        if ( node == null || !node.isLoaded() )
+        {
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        touch( node );
+        try
+        {
+            return node._future.get();
+        }
+        catch ( Exception e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Tells whether a value is cached or being computed, without counting as a lookup.
+     *
+     * @param key key of the entry
+     * @return true if the entry is cached, computed or not yet
+     */
+    public boolean containsKey( K key )
+    {
+        return getUnexpired( key ) != null;
+    }
+
+    /**
+     * Removes an entry and notifies the removal listener.
+     *
+     * @param key key of the entry
+     */
+    public void invalidate( K key )
+    {
+        Node<K, V> node = _map.remove( key );
+        if ( node != null )
+        {
+            release( key, node );
+        }
+    }
+
+    /**
+     * Removes an entry if its value is the given one, e.g. a value found to be out
+     * of date, so that a more recent value stored meanwhile is kept.
+     *
+     * @param key   key of the entry
+     * @param value value to remove
+     */
+    public void invalidate( K key, V value )
+    {
+        Node<K, V> node = _map.get( key );
+        if ( node != null && node.isLoaded() && getValue( node ) == value && _map.remove( key, node ) )
+        {
+            release( key, node );
+        }
+    }
+
+    /**
+     * @return number of entries, including the ones being computed
+     */
+    public int size()
+    {
+        return _map.size();
+    }
+
+    /**
+     * @return total weight of the computed entries
+     */
+    public long weight()
+    {
+        return _totalWeight.get();
+    }
+
+    /**
+     * @return number of lookups which found their entry, computed or being computed
+     */
+    public long getHitCount()
+    {
+        return _hits.get();
+    }
+
+    /**
+     * @return number of lookups which did not find their entry
+     */
+    public long getMissCount()
+    {
+        return _misses.get();
+    }
+
+    /**
+     * @return number of entries evicted because a bound was exceeded or because they expired
+     */
+    public long getEvictionCount()
+    {
+        return _evictions.get();
+    }
+
+    /**
+     * @return the node of the key, or <code>null</code> if there is none or it expired
+     */
+    private Node<K, V> getUnexpired( K key )
+    {
+        Node<K, V> node = _map.get( key );
+        if ( node != null && _timeToLive > 0 && node.isExpired( System.currentTimeMillis() ) )
+        {
+            if ( _map.remove( key, node ) )
+            {
+                _evictions.incrementAndGet();
+                release( key, node );
+            }
+            return null;
+        }
+        return node;
+    }
+
+    private V getValue( Node<K, V> node )
+    {
+        try
+        {
+            return node._future.get();
+        }
+        catch ( Exception e )
+        {
+            return null;
+        }
+    }
+
+    private void load( K key, Node<K, V> node )
+            throws ExecutionException, InterruptedException
+    {
+        node._future.run();
+        V value;
+        try
+        {
+            value = node._future.get();
+        }
+        catch ( ExecutionException e )
+        {
+            // Do not cache failures, the next request will try again
+            _map.remove( key, node );
+            throw e;
+        }
+        long weight = ( _weigher == null || value == null ) ? 0 : Math.max( 0, _weigher.weigh( value ) );
+        boolean removed;
+        if ( _timeToLive > 0 )
+        {
+            node._expires = System.currentTimeMillis() + _timeToLive;
+        }
+        synchronized ( node )
+        {
+            node._weight = weight;
+            removed = node._removed;
+            if ( !removed )
+            {
+                _totalWeight.addAndGet( weight );
+                // Most recently used, so that the eviction below keeps it
+                synchronized ( _lruLock )
+                {
+                    link( node );
+                }
+            }
+        }
+        if ( removed )
+        {
+            // Invalidated while it was computed
+            notifyRemoval( key, node );
+        }
+        else
+        {
+            evictIfNeeded();
+        }
+    }
+
+    private void release( K key, Node<K, V> node )
+    {
+        synchronized ( node )
+        {
+            if ( node._removed )
+            {
+                return;
+            }
+            node._removed = true;
+            if ( !node.isLoaded() )
+            {
+                // The loading thread takes care of notifying
+                return;
+            }
+            _totalWeight.addAndGet( -node._weight );
+            synchronized ( _lruLock )
+            {
+                unlink( node );
+            }
+        }
+        notifyRemoval( key, node );
+    }
+
+    // Make a computed entry the most recently used one
+    private void touch( Node<K, V> node )
+    {
+        synchronized ( _lruLock )
+        {
+            if ( node._linked && node != _tail )
+            {
+                unlink( node );
+                link( node );
+            }
+        }
+    }
+
+    // Append to the access order list, the LRU lock being held
+    private void link( Node<K, V> node )
+    {
+        node._prev = _tail;
+        node._next = null;
+        if ( _tail == null )
+        {
+            _head = node;
+        }
+        else
+        {
+            _tail._next = node;
+        }
+        _tail = node;
+        node._linked = true;
+    }
+
+    // Remove from the access order list if it is there, the LRU lock being held
+    private void unlink( Node<K, V> node )
+    {
+        if ( !node._linked )
+        {
+            return;
+        }
+        if ( node._prev == null )
+        {
+            _head = node._next;
+        }
+        else
+        {
+            node._prev._next = node._next;
+        }
+        if ( node._next == null )
+        {
+            _tail = node._prev;
+        }
+        else
+        {
+            node._next._prev = node._prev;
+        }
+        node._prev = null;
+        node._next = null;
+        node._linked = false;
+    }
+
+    private boolean isOverflowing()
+    {
+        return ( _maxEntries > 0 && _map.size() > _maxEntries ) ||
+                ( _maxWeight > 0 && _totalWeight.get() > _maxWeight );
+    }
+
+    private void evictIfNeeded()
+    {
+        if ( !isOverflowing() )
+        {
+            return;
+        }
+        synchronized ( _evictionLock )
+        {
+            while ( isOverflowing() )
+            {
+                // Least recently used entry among those which are computed
+                Node<K, V> victim;
+                synchronized ( _lruLock )
+                {
+                    victim = _head;
+                    if ( victim == null )
+                    {
+                        // Only entries being computed are left
+                        return;
+                    }
+                    unlink( victim );
+                }
+                if ( _map.remove( victim._key, victim ) )
+                {
+                    _evictions.incrementAndGet();
+                    release( victim._key, victim );
+                }
+            }
+        }
+    }
+
+    private void notifyRemoval( K key, Node<K, V> node )
+    {
+        if ( _removalListener == null )
+        {
+            return;
+        }
+        try
+        {
+            _removalListener.removed( key, node._future.get() );
+        }
+        catch ( Exception e )
+        {
+            // Failed computations are never kept in the cache
+        }
+    }
+}
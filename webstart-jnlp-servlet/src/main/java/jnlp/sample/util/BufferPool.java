@@ -0,0 +1,62 @@
+package jnlp.sample.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of buffers shared by the threads copying data at the same
+ * time. A buffer is owned by one thread between {@link #acquire()} and
+ * {@link #release(byte[])}, so concurrent copies never share a buffer.
+ */
+public class BufferPool
+{
+    private final int _bufferSize;
+
+    // Maximum number of idle buffers kept for reuse
+    private final int _maxIdle;
+
+    private final ConcurrentLinkedQueue<byte[]> _idle = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger _idleCount = new AtomicInteger();
+
+    /**
+     * @param bufferSize size of the buffers
+     * @param maxIdle    maximum number of idle buffers kept for reuse
+     */
+    public BufferPool( int bufferSize, int maxIdle )
+    {
+        _bufferSize = bufferSize;
+        _maxIdle = maxIdle;
+    }
+
+    /**
+     * @return a buffer for exclusive use by the caller
+     */
+    public byte[] acquire()
+    {
+        byte[] buf = _idle.poll();
+        if ( buf == null )
+        {
+            return new byte[_bufferSize];
+        }
+        _idleCount.decrementAndGet();
+        return buf;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The caller must not use it afterwards.
+     *
+     * @param buf buffer obtained from {@link #acquire()}
+     */
+    public void release( byte[] buf )
+    {
+        if ( buf != null && _idleCount.incrementAndGet() <= _maxIdle )
+        {
+            _idle.offer( buf );
+        }
+        else if ( buf != null )
+        {
+            _idleCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package jnlp.sample.util;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file which is deleted once nobody uses it anymore.
+ * <p>
+ * The owner of the file, e.g. a cache, holds the first reference and releases it when
+ * it drops the file. Readers acquire a reference before they open the file and release
+ * it once they are done, so a file dropped by its owner while it is sent to a client is
+ * only deleted after the last reader finished. Once all references are released the
+ * file cannot be acquired anymore.
+ */
+public class SharedFile
+{
+    private final File _file;
+
+    private final AtomicInteger _references = new AtomicInteger( 1 );
+
+    /**
+     * @param file the file, referenced by the caller
+     */
+    public SharedFile( File file )
+    {
+        _file = file;
+    }
+
+    /**
+     * @return the file
+     */
+    public File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * Acquires a reference, to be released with {@link #release()}.
+     *
+     * @return false if the file is deleted or about to be
+     */
+    public boolean acquire()
+    {
+        while ( true )
+        {
+            int references = _references.get();
+            if ( references == 0 )
+            {
+                return false;
+            }
+            if ( _references.compareAndSet( references, references + 1 ) )
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases a reference, and deletes the file if it was the last one.
+     */
+    public void release()
+    {
+        if ( _references.decrementAndGet() == 0 )
+        {
+            _file.delete();
+        }
+    }
+
+    /**
+     * @return true if all references were released
+     */
+    public boolean isReleased()
+    {
+        return _references.get() == 0;
+    }
+
+    public String toString()
+    {
+        return _file.toString();
+    }
+}
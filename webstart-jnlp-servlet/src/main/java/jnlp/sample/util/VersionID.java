@@ -37,7 +37,6 @@
 package jnlp.sample.util;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -45,19 +44,40 @@ import java.util.List;
  * <p>
  * The VersionID also contains a prefix indicator that can
  * be used when stored with a VersionString
+ * <p>
+ * Instances are immutable. The numeric value of each element is computed once, when
+ * the version-id is parsed, so comparisons do not parse or allocate anything.
+ * {@link #valueOf(String)} shares the parsed instances of the version-ids used most
+ * recently.
  */
 public class VersionID
         implements Comparable
 {
-    private String[] _tuple;   // Array of Integer or String objects
+    /**
+     * Maximum number of parsed version-ids shared by {@link #valueOf(String)}.
+     */
+    public static final int CACHE_MAX_ENTRIES = 4096;
+
+    private static final BoundedCache<String, VersionID> CACHE =
+            new BoundedCache<>( CACHE_MAX_ENTRIES, 0, null, null );
+
+    private static final String[] NO_ELEMENTS = new String[0];
 
-    private boolean _usePrefixMatch;   // star (*) prefix
+    private static final VersionID EMPTY = new VersionID( null );
 
-    private boolean _useGreaterThan;  // plus (+) greather-than
+    private final String[] _tuple;   // Array of elements
 
-    private boolean _isCompound;       // and (&) operator
+    private final boolean[] _numeric; // true if the element is a number
 
-    private VersionID _rest;            // remaining part after the &
+    private final int[] _numbers;     // value of the numeric elements
+
+    private final boolean _usePrefixMatch;   // star (*) prefix
+
+    private final boolean _useGreaterThan;  // plus (+) greather-than
+
+    private final boolean _isCompound;       // and (&) operator
+
+    private final VersionID _rest;            // remaining part after the &
 
     /**
      * Creates a VersionID object
@@ -66,62 +86,137 @@ public class VersionID
      */
     public VersionID( String str )
     {
-        _usePrefixMatch = false;
-        _useGreaterThan = false;
-        _isCompound = false;
+        boolean usePrefixMatch = false;
+        boolean useGreaterThan = false;
+        boolean isCompound = false;
+        VersionID rest = null;
+        String[] tuple;
         if ( str == null || str.length() == 0 )
         {
-            _tuple = new String[0];
-            return;
-        }
-
-        // Check for compound
-        int amp = str.indexOf( "&" );
-        if ( amp >= 0 )
-        {
-            _isCompound = true;
-            VersionID firstPart = new VersionID( str.substring( 0, amp ) );
-            _rest = new VersionID( str.substring( amp + 1 ) );
-            _tuple = firstPart._tuple;
-            _usePrefixMatch = firstPart._usePrefixMatch;
-            _useGreaterThan = firstPart._useGreaterThan;
+            tuple = NO_ELEMENTS;
         }
         else
         {
-            // Check for postfix
-            if ( str.endsWith( "+" ) )
+            // Check for compound
+            int amp = str.indexOf( "&" );
+            if ( amp >= 0 )
             {
-                _useGreaterThan = true;
-                str = str.substring( 0, str.length() - 1 );
+                isCompound = true;
+                VersionID firstPart = new VersionID( str.substring( 0, amp ) );
+                rest = new VersionID( str.substring( amp + 1 ) );
+                tuple = firstPart._tuple;
+                usePrefixMatch = firstPart._usePrefixMatch;
+                useGreaterThan = firstPart._useGreaterThan;
             }
-            else if ( str.endsWith( "*" ) )
+            else
             {
-                _usePrefixMatch = true;
-                str = str.substring( 0, str.length() - 1 );
-            }
+                // Check for postfix
+                if ( str.endsWith( "+" ) )
+                {
+                    useGreaterThan = true;
+                    str = str.substring( 0, str.length() - 1 );
+                }
+                else if ( str.endsWith( "*" ) )
+                {
+                    usePrefixMatch = true;
+                    str = str.substring( 0, str.length() - 1 );
+                }
 
-            List<String> list = new ArrayList<>();
-            int start = 0;
-            for ( int i = 0; i < str.length(); i++ )
-            {
-                // Split at each separator character
-                if ( ".-_".indexOf( str.charAt( i ) ) != -1 )
+                List<String> list = new ArrayList<>();
+                int start = 0;
+                for ( int i = 0; i < str.length(); i++ )
                 {
-                    if ( start < i )
+                    // Split at each separator character
+                    if ( ".-_".indexOf( str.charAt( i ) ) != -1 )
                     {
-                        String value = str.substring( start, i );
-                        list.add( value );
+                        if ( start < i )
+                        {
+                            String value = str.substring( start, i );
+                            list.add( value );
+                        }
+                        start = i + 1;
                     }
-                    start = i + 1;
                 }
+                if ( start < str.length() )
+                {
+                    list.add( str.substring( start, str.length() ) );
+                }
+                tuple = list.toArray( new String[list.size()] );
             }
-            if ( start < str.length() )
+        }
+        _tuple = tuple;
+        _numeric = new boolean[tuple.length];
+        _numbers = new int[tuple.length];
+        for ( int i = 0; i < tuple.length; i++ )
+        {
+            parseNumber( tuple[i], i );
+        }
+        _usePrefixMatch = usePrefixMatch;
+        _useGreaterThan = useGreaterThan;
+        _isCompound = isCompound;
+        _rest = rest;
+    }
+
+    /**
+     * Returns the VersionID of a string, shared with the other callers which
+     * asked for the same string recently.
+     *
+     * @param str version-id
+     * @return the parsed version-id
+     */
+    public static VersionID valueOf( String str )
+    {
+        if ( str == null )
+        {
+            return EMPTY;
+        }
+        VersionID vid = CACHE.getIfPresent( str );
+        if ( vid == null )
+        {
+            vid = new VersionID( str );
+            CACHE.put( str, vid );
+        }
+        return vid;
+    }
+
+    /**
+     * Elements are numbers if <code>Integer.valueOf</code> accepts them.
+     */
+    private void parseNumber( String value, int index )
+    {
+        int length = value.length();
+        if ( length == 0 || value.charAt( 0 ) == '-' )
+        {
+            return;
+        }
+        if ( length < 10 )
+        {
+            int number = 0;
+            int i = 0;
+            for ( ; i < length; i++ )
+            {
+                char ch = value.charAt( i );
+                if ( ch < '0' || ch > '9' )
+                {
+                    break;
+                }
+                number = number * 10 + ( ch - '0' );
+            }
+            if ( i == length )
             {
-                list.add( str.substring( start, str.length() ) );
+                _numeric[index] = true;
+                _numbers[index] = number;
+                return;
             }
-            _tuple = new String[list.size()];
-            _tuple = list.toArray( _tuple );
         }
+        // Signs, other digits and large numbers
+        try
+        {
+            _numbers[index] = Integer.parseInt( value );
+            _numeric[index] = true;
+        }
+        catch ( NumberFormatException nfe )
+        { /* not a number */ }
     }
 
     /**
@@ -192,16 +287,11 @@ public class VersionID
         }
         VersionID vid = (VersionID) o;
 
-        // Normalize arrays
-        String[] t1 = normalize( _tuple, vid._tuple.length );
-        String[] t2 = normalize( vid._tuple, _tuple.length );
-
-        // Check contents
-        for ( int i = 0; i < t1.length; i++ )
+        // The shorter tuple is padded with zeros
+        int length = Math.max( _tuple.length, vid._tuple.length );
+        for ( int i = 0; i < length; i++ )
         {
-            Object o1 = getValueAsObject( t1[i] );
-            Object o2 = getValueAsObject( t2[i] );
-            if ( !o1.equals( o2 ) )
+            if ( !elementEquals( vid, i ) )
             {
                 return false;
             }
@@ -209,18 +299,34 @@ public class VersionID
         return true;
     }
 
-    private Object getValueAsObject( String value )
+    /**
+     * Numbers are equal if they have the same value, other elements if they are the
+     * same string. A number is never equal to another element.
+     */
+    private boolean elementEquals( VersionID vid, int i )
     {
-        if ( value.length() > 0 && value.charAt( 0 ) != '-' )
+        boolean numeric = isNumeric( i );
+        if ( numeric != vid.isNumeric( i ) )
         {
-            try
-            {
-                return Integer.valueOf( value );
-            }
-            catch ( NumberFormatException nfe )
-            { /* fall through */ }
+            return false;
         }
-        return value;
+        return numeric ? getNumber( i ) == vid.getNumber( i ) : getElement( i ).equals( vid.getElement( i ) );
+    }
+
+    /* Elements past the end of the tuple are "0" */
+    private String getElement( int i )
+    {
+        return i < _tuple.length ? _tuple[i] : "0";
+    }
+
+    private boolean isNumeric( int i )
+    {
+        return i >= _tuple.length || _numeric[i];
+    }
+
+    private int getNumber( int i )
+    {
+        return i < _tuple.length ? _numbers[i] : 0;
     }
 
     public boolean isGreaterThan( VersionID vid )
@@ -250,30 +356,24 @@ public class VersionID
                 return false;
             }
         }
-        // Normalize the two strings
-        String[] t1 = normalize( _tuple, vid._tuple.length );
-        String[] t2 = normalize( vid._tuple, _tuple.length );
-
-        for ( int i = 0; i < t1.length; i++ )
+        // The shorter tuple is padded with zeros
+        int length = Math.max( _tuple.length, vid._tuple.length );
+        for ( int i = 0; i < length; i++ )
         {
             // Compare current element
-            Object e1 = getValueAsObject( t1[i] );
-            Object e2 = getValueAsObject( t2[i] );
-            if ( e1.equals( e2 ) )
+            if ( elementEquals( vid, i ) )
             {
                 // So far so good
             }
             else
             {
-                if ( e1 instanceof Integer && e2 instanceof Integer )
+                if ( isNumeric( i ) && vid.isNumeric( i ) )
                 {
-                    return (Integer) e1 > (Integer) e2;
+                    return getNumber( i ) > vid.getNumber( i );
                 }
                 else
                 {
-                    String s1 = t1[i];
-                    String s2 = t2[i];
-                    return s1.compareTo( s2 ) > 0;
+                    return getElement( i ).compareTo( vid.getElement( i ) ) > 0;
                 }
 
             }
@@ -298,14 +398,10 @@ public class VersionID
                 return false;
             }
         }
-        // Make sure that vid is at least as long as the prefix
-        String[] t2 = normalize( vid._tuple, _tuple.length );
-
+        // vid is padded with zeros to be at least as long as the prefix
         for ( int i = 0; i < _tuple.length; i++ )
         {
-            Object e1 = _tuple[i];
-            Object e2 = t2[i];
-            if ( e1.equals( e2 ) )
+            if ( _tuple[i].equals( vid.getElement( i ) ) )
             {
                 // So far so good
             }
@@ -318,29 +414,6 @@ public class VersionID
         return true;
     }
 
-    /**
-     * Normalize an array to a certain length
-     *
-     * @param list      TODO
-     * @param minlength TODO
-     * @return TODO
-     */
-    private String[] normalize( String[] list, int minlength )
-    {
-        if ( list.length < minlength )
-        {
-            // Need to do padding
-            String[] newlist = new String[minlength];
-            System.arraycopy( list, 0, newlist, 0, list.length );
-            Arrays.fill( newlist, list.length, newlist.length, "0" );
-            return newlist;
-        }
-        else
-        {
-            return list;
-        }
-    }
-
     @Override
     public int compareTo( Object o )
     {
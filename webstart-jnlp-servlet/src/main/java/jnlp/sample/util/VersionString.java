@@ -37,6 +37,7 @@
 package jnlp.sample.util;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -46,10 +47,12 @@ import java.util.StringTokenizer;
  *
  *  (version-id ('+'?) ' ') *
  *
+ * Instances are immutable. They are parsed from the version strings of requests,
+ * which are not shared, so that clients cannot fill the cache of VersionID.
  */
 public class VersionString
 {
-    private List<VersionID> _versionIds;
+    private final List<VersionID> _versionIds;
 
     /**
      * Constructs a VersionString object from string
@@ -58,16 +61,17 @@ public class VersionString
      */
     public VersionString( String vs )
     {
-        _versionIds = new ArrayList<>();
+        List<VersionID> versionIds = new ArrayList<>();
         if ( vs != null )
         {
             StringTokenizer st = new StringTokenizer( vs, " ", false );
             while ( st.hasMoreElements() )
             {
                 // Note: The VersionID class takes care of a postfixed '+'
-                _versionIds.add( new VersionID( st.nextToken() ) );
+                versionIds.add( new VersionID( st.nextToken() ) );
             }
         }
+        _versionIds = Collections.unmodifiableList( versionIds );
     }
 
     /**
@@ -78,9 +82,10 @@ public class VersionString
      */
     public boolean contains( VersionID m )
     {
-        for ( Object _versionId : _versionIds )
+        // Indexed, to not allocate an iterator per request
+        for ( int i = 0; i < _versionIds.size(); i++ )
         {
-            VersionID vi = (VersionID) _versionId;
+            VersionID vi = _versionIds.get( i );
             boolean check = vi.match( m );
             if ( check )
             {
@@ -98,7 +103,7 @@ public class VersionString
      */
     public boolean contains( String versionid )
     {
-        return contains( new VersionID( versionid ) );
+        return contains( VersionID.valueOf( versionid ) );
     }
 
     /**
@@ -109,9 +114,9 @@ public class VersionString
      */
     public boolean containsGreaterThan( VersionID m )
     {
-        for ( Object _versionId : _versionIds )
+        for ( int i = 0; i < _versionIds.size(); i++ )
         {
-            VersionID vi = (VersionID) _versionId;
+            VersionID vi = _versionIds.get( i );
             boolean check = vi.isGreaterThan( m );
             if ( check )
             {
@@ -129,7 +134,7 @@ public class VersionString
      */
     public boolean containsGreaterThan( String versionid )
     {
-        return containsGreaterThan( new VersionID( versionid ) );
+        return containsGreaterThan( VersionID.valueOf( versionid ) );
     }
 
     /**
@@ -141,7 +146,7 @@ public class VersionString
      */
     static public boolean contains( String vs, String vi )
     {
-        return ( new VersionString( vs ) ).contains( vi );
+        return new VersionString( vs ).contains( vi );
     }
 
     @Override
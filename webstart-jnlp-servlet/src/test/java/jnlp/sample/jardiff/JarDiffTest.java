@@ -0,0 +1,404 @@
+package jnlp.sample.jardiff;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Tests the {@link JarDiff} and {@link JarDiffPatcher} classes.
+ */
+public class JarDiffTest
+        extends TestCase
+{
+    private File workDir;
+
+    public void setUp()
+            throws IOException
+    {
+        workDir = File.createTempFile( "jardiff", "test" );
+        workDir.delete();
+        workDir.mkdirs();
+    }
+
+    public void tearDown()
+    {
+        File[] files = workDir.listFiles();
+        if ( files != null )
+        {
+            for ( File f : files )
+            {
+                f.delete();
+            }
+        }
+        workDir.delete();
+    }
+
+    public void testCreatePatch()
+            throws Exception
+    {
+        checkPatch( 0, true );
+        checkPatch( 1, false );
+    }
+
+    public void testCreatePatchConcurrently()
+            throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool( 8 );
+        try
+        {
+            List<Future<Object>> results = new ArrayList<>();
+            for ( int i = 0; i < 16; i++ )
+            {
+                final int seed = i;
+                results.add( executor.submit( new Callable<Object>()
+                {
+                    public Object call()
+                            throws Exception
+                    {
+                        checkPatch( seed, seed % 2 == 0 );
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<Object> result : results )
+            {
+                // Rethrows the failure of a single diff
+                result.get();
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testParallelPatchIsSameAsSequential()
+            throws Exception
+    {
+        Random random = new Random( 42 );
+        Map<String, byte[]> oldEntries = new TreeMap<>();
+        Map<String, byte[]> newEntries = new TreeMap<>();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            // Many duplicates, so that move sources are shared
+            byte[] content = randomBytes( new Random( i % 50 ), 500 );
+            oldEntries.put( "pkg" + i % 7 + "/Entry" + i + ".class", content );
+            if ( i % 13 == 0 )
+            {
+                newEntries.put( "moved/Entry" + i + ".class", content );
+            }
+            else if ( i % 17 != 0 )
+            {
+                newEntries.put( "pkg" + i % 7 + "/Entry" + i + ".class",
+                                i % 5 == 0 ? randomBytes( random, 500 ) : content );
+            }
+        }
+        File oldJar = writeJar( "old.jar", oldEntries );
+        File newJar = writeJar( "new.jar", newEntries );
+        // An even number of seconds, as kept by the DOS time of jar entries
+        long newJarTime = new GregorianCalendar( 2020, Calendar.JANUARY, 1, 12, 0, 0 ).getTimeInMillis();
+        assertTrue( newJar.setLastModified( newJarTime ) );
+
+        ForkJoinPool pool = new ForkJoinPool( 4 );
+        try
+        {
+            for ( boolean minimal : new boolean[]{ true, false } )
+            {
+                assertParallelPatchIsSameAsSequential( oldJar, newJar, newJarTime, minimal, pool );
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private void assertParallelPatchIsSameAsSequential( File oldJar, File newJar, long newJarTime, boolean minimal,
+                                                        ForkJoinPool pool )
+            throws IOException
+    {
+        File sequential = new File( workDir, "sequential.jardiff" );
+        File parallel = new File( workDir, "parallel.jardiff" );
+        createPatch( oldJar, newJar, sequential, minimal, null );
+        createPatch( oldJar, newJar, parallel, minimal, pool );
+
+        Map<String, byte[]> expected = readJar( sequential );
+        Map<String, byte[]> actual = readJar( parallel );
+        assertEquals( new ArrayList<>( expected.keySet() ), new ArrayList<>( actual.keySet() ) );
+        assertEntriesEqual( expected, actual );
+
+        // Byte for byte, the index entry taking the time of the new jar rather than the current time
+        assertTrue( Arrays.equals( Files.readAllBytes( sequential.toPath() ),
+                                   Files.readAllBytes( parallel.toPath() ) ) );
+        JarFile jar = new JarFile( parallel );
+        try
+        {
+            assertEquals( newJarTime, jar.getEntry( JarDiffConstants.INDEX_NAME ).getTime() );
+        }
+        finally
+        {
+            jar.close();
+        }
+    }
+
+    public void testPatchKeepsCompressedData()
+            throws Exception
+    {
+        Random random = new Random( 7 );
+        Map<String, byte[]> oldEntries = new TreeMap<>();
+        for ( int i = 0; i < 20; i++ )
+        {
+            oldEntries.put( "pkg/Entry" + i + ".class", randomBytes( random, 2000 ) );
+        }
+        Map<String, byte[]> newEntries = new TreeMap<>( oldEntries );
+        newEntries.put( "moved/Entry1.class", newEntries.remove( "pkg/Entry1.class" ) );
+        newEntries.put( "pkg/Entry2.class", randomBytes( random, 2000 ) );
+
+        // Stored entries must be copied as they are, not deflated
+        File oldJar = writeStoredJar( "old.jar", oldEntries );
+        File newJar = writeStoredJar( "new.jar", newEntries );
+        File patch = new File( workDir, "patch.jardiff" );
+        File patched = new File( workDir, "patched.jar" );
+        createPatch( oldJar, newJar, patch, true, null );
+        OutputStream os = new FileOutputStream( patched );
+        try
+        {
+            new JarDiffPatcher().applyPatch( null, oldJar.getPath(), patch.getPath(), os );
+        }
+        finally
+        {
+            os.close();
+        }
+
+        assertEntriesEqual( newEntries, readJar( patched ) );
+        JarFile jar = new JarFile( patched );
+        try
+        {
+            for ( String name : newEntries.keySet() )
+            {
+                assertEquals( name, JarEntry.STORED, jar.getJarEntry( name ).getMethod() );
+            }
+        }
+        finally
+        {
+            jar.close();
+        }
+    }
+
+    private File writeStoredJar( String name, Map<String, byte[]> entries )
+            throws IOException
+    {
+        File file = new File( workDir, name );
+        JarOutputStream jos = new JarOutputStream( new FileOutputStream( file ) );
+        try
+        {
+            for ( Map.Entry<String, byte[]> e : entries.entrySet() )
+            {
+                JarEntry entry = new JarEntry( e.getKey() );
+                CRC32 crc = new CRC32();
+                crc.update( e.getValue() );
+                entry.setMethod( JarEntry.STORED );
+                entry.setSize( e.getValue().length );
+                entry.setCrc( crc.getValue() );
+                jos.putNextEntry( entry );
+                jos.write( e.getValue() );
+            }
+        }
+        finally
+        {
+            jos.close();
+        }
+        return file;
+    }
+
+    private static void createPatch( File oldJar, File newJar, File patch, boolean minimal, ForkJoinPool pool )
+            throws IOException
+    {
+        OutputStream os = new FileOutputStream( patch );
+        try
+        {
+            JarDiff.createPatch( oldJar.getPath(), newJar.getPath(), os, minimal, pool );
+        }
+        finally
+        {
+            os.close();
+        }
+    }
+
+    /**
+     * Creates two versions of a jar, diffs them and checks that applying the
+     * patch to the old version gives the entries of the new version.
+     */
+    private void checkPatch( int seed, boolean minimal )
+            throws IOException
+    {
+        Random random = new Random( seed );
+        Map<String, byte[]> oldEntries = new TreeMap<>();
+        for ( int i = 0; i < 60; i++ )
+        {
+            // Large entries span several read buffers
+            oldEntries.put( "pkg/Entry" + i + ".class", randomBytes( random, i % 10 == 0 ? 100000 : 3000 ) );
+        }
+        oldEntries.put( "pkg/package-info.class", new byte[0] );
+        oldEntries.put( "pkg/a/package-info.class", new byte[0] );
+
+        Map<String, byte[]> newEntries = new TreeMap<>( oldEntries );
+        for ( int i = 0; i < 60; i += 7 )
+        {
+            // Modified
+            byte[] content = newEntries.get( "pkg/Entry" + i + ".class" ).clone();
+            content[random.nextInt( content.length )]++;
+            newEntries.put( "pkg/Entry" + i + ".class", content );
+        }
+        for ( int i = 1; i < 60; i += 11 )
+        {
+            // Moved
+            newEntries.put( "moved/Entry" + i + ".class", newEntries.remove( "pkg/Entry" + i + ".class" ) );
+        }
+        // Removed, added and copied
+        newEntries.remove( "pkg/Entry2.class" );
+        newEntries.put( "pkg/Added.class", randomBytes( random, 5000 ) );
+        newEntries.put( "pkg/Copy3.class", oldEntries.get( "pkg/Entry3.class" ) );
+        newEntries.put( "pkg/b/package-info.class", new byte[0] );
+
+        File oldJar = writeJar( "old" + seed + ".jar", oldEntries );
+        File newJar = writeJar( "new" + seed + ".jar", newEntries );
+        File patch = new File( workDir, "patch" + seed + ".jardiff" );
+        File patched = new File( workDir, "patched" + seed + ".jar" );
+
+        OutputStream os = new FileOutputStream( patch );
+        try
+        {
+            JarDiff.createPatch( oldJar.getPath(), newJar.getPath(), os, minimal );
+        }
+        finally
+        {
+            os.close();
+        }
+        assertTrue( "patch should be smaller than the new jar", patch.length() < newJar.length() );
+
+        // The size is known before the patch is written
+        JarDiff.Patch prepared = JarDiff.preparePatch( oldJar.getPath(), newJar.getPath(), minimal, null );
+        try
+        {
+            assertEquals( patch.length(), prepared.getSize() );
+        }
+        finally
+        {
+            prepared.close();
+        }
+
+        os = new FileOutputStream( patched );
+        try
+        {
+            new JarDiffPatcher().applyPatch( null, oldJar.getPath(), patch.getPath(), os );
+        }
+        finally
+        {
+            os.close();
+        }
+        assertEntriesEqual( newEntries, readJar( patched ) );
+    }
+
+    private static byte[] randomBytes( Random random, int size )
+    {
+        byte[] bytes = new byte[size];
+        // Compressible content, like class files
+        for ( int i = 0; i < size; i++ )
+        {
+            bytes[i] = (byte) ( i % 16 == 0 ? random.nextInt() : 'a' + i % 26 );
+        }
+        return bytes;
+    }
+
+    private File writeJar( String name, Map<String, byte[]> entries )
+            throws IOException
+    {
+        File file = new File( workDir, name );
+        JarOutputStream jos = new JarOutputStream( new FileOutputStream( file ) );
+        try
+        {
+            for ( Map.Entry<String, byte[]> e : entries.entrySet() )
+            {
+                jos.putNextEntry( new JarEntry( e.getKey() ) );
+                jos.write( e.getValue() );
+            }
+        }
+        finally
+        {
+            jos.close();
+        }
+        return file;
+    }
+
+    private static Map<String, byte[]> readJar( File file )
+            throws IOException
+    {
+        // In the order of the jar
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        JarFile jar = new JarFile( file );
+        try
+        {
+            Enumeration<JarEntry> e = jar.entries();
+            while ( e.hasMoreElements() )
+            {
+                JarEntry entry = e.nextElement();
+                InputStream in = jar.getInputStream( entry );
+                try
+                {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    byte[] buf = new byte[4096];
+                    int read;
+                    while ( ( read = in.read( buf ) ) != -1 )
+                    {
+                        bos.write( buf, 0, read );
+                    }
+                    entries.put( entry.getName(), bos.toByteArray() );
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+        }
+        finally
+        {
+            jar.close();
+        }
+        return entries;
+    }
+
+    private static void assertEntriesEqual( Map<String, byte[]> expected, Map<String, byte[]> actual )
+    {
+        assertEquals( expected.keySet(), actual.keySet() );
+        for ( Map.Entry<String, byte[]> e : expected.entrySet() )
+        {
+            assertTrue( "content differs for " + e.getKey(), Arrays.equals( e.getValue(), actual.get( e.getKey() ) ) );
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a large jar with many slow clients at once from an embedded container, with
+ * blocking and with asynchronous downloads, and compares how many worker threads of the
+ * container are busy.
+ * <p>
+ * The measurement takes several seconds and depends on the machine, so it only runs when
+ * the system property <code>jnlp.benchmark</code> is true. {@link AsyncDownloadTest} checks
+ * the content of asynchronous downloads.
+ */
+public class AsyncDownloadLoadTest
+        extends TestCase
+{
+    private static final String BENCHMARK_PROPERTY = "jnlp.benchmark";
+
+    private static final int CLIENTS = 32;
+
+    private static final int FILE_LENGTH = 16 * 1024 * 1024;
+
+    // Each client reads this many bytes, then pauses
+    private static final int READ_CHUNK = 64 * 1024;
+
+    private static final long READ_PAUSE_MILLIS = 10;
+
+    private File dir;
+
+    public void setUp()
+            throws IOException
+    {
+        dir = File.createTempFile( "webapp", "" );
+        dir.delete();
+        dir.mkdirs();
+        byte[] content = new byte[FILE_LENGTH];
+        new Random( 1 ).nextBytes( content );
+        OutputStream out = new FileOutputStream( new File( dir, "app.jar" ) );
+        try
+        {
+            out.write( content );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    public void tearDown()
+    {
+        new File( dir, "app.jar" ).delete();
+        dir.delete();
+    }
+
+    public void testWorkerThreadsWithSlowClients()
+            throws Exception
+    {
+        if ( !Boolean.getBoolean( BENCHMARK_PROPERTY ) )
+        {
+            return;
+        }
+        double blocking = download( false );
+        double async = download( true );
+        System.out.println( String.format( "%d slow clients downloading %d MB, average busy worker threads: " +
+                                                   "blocking %.1f, async %.1f", CLIENTS, FILE_LENGTH / 1024 / 1024,
+                                           blocking, async ) );
+        assertTrue( "blocking " + blocking + ", async " + async, async < blocking );
+        assertTrue( "async " + async, async <= CLIENTS / 4 );
+    }
+
+    /**
+     * @return the average number of busy worker threads while the clients were downloading
+     */
+    private double download( boolean async )
+            throws Exception
+    {
+        QueuedThreadPool pool = new QueuedThreadPool( 2 * CLIENTS, 4 );
+        Server server = new Server( pool );
+        ServerConnector connector = new ServerConnector( server, 1, 1 );
+        // Small socket buffers, so that the slow clients really hold back the server
+        connector.setAcceptedSendBufferSize( 64 * 1024 );
+        server.addConnector( connector );
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath( "/" );
+        context.setResourceBase( dir.getAbsolutePath() );
+        ServletHolder holder = new ServletHolder( new JnlpDownloadServlet() );
+        holder.setInitParameter( "async-downloads", String.valueOf( async ) );
+        holder.setAsyncSupported( true );
+        holder.setInitOrder( 0 );
+        context.addServlet( holder, "*.jar" );
+        server.setHandler( context );
+        server.start();
+        try
+        {
+            final int port = connector.getLocalPort();
+            final AtomicInteger completed = new AtomicInteger();
+            final List<Throwable> failures = new ArrayList<>();
+            List<Thread> clients = new ArrayList<>();
+            for ( int i = 0; i < CLIENTS; i++ )
+            {
+                Thread client = new Thread( new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            assertEquals( FILE_LENGTH, slowDownload( port ) );
+                            completed.incrementAndGet();
+                        }
+                        catch ( Throwable t )
+                        {
+                            synchronized ( failures )
+                            {
+                                failures.add( t );
+                            }
+                        }
+                    }
+                } );
+                client.start();
+                clients.add( client );
+            }
+
+            long busy = 0;
+            long samples = 0;
+            while ( completed.get() + failures.size() < CLIENTS )
+            {
+                busy += pool.getBusyThreads();
+                samples++;
+                Thread.sleep( 5 );
+            }
+            for ( Thread client : clients )
+            {
+                client.join();
+            }
+            assertTrue( failures.toString(), failures.isEmpty() );
+            return (double) busy / samples;
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    /**
+     * @return the length of the content received
+     */
+    private static long slowDownload( int port )
+            throws IOException, InterruptedException
+    {
+        Socket socket = new Socket();
+        try
+        {
+            socket.setReceiveBufferSize( 16 * 1024 );
+            socket.connect( new InetSocketAddress( "localhost", port ) );
+            OutputStream out = socket.getOutputStream();
+            out.write( "GET /app.jar HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(
+                    StandardCharsets.US_ASCII ) );
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            StringBuilder headers = new StringBuilder();
+            while ( !headers.toString().endsWith( "\r\n\r\n" ) )
+            {
+                int c = in.read();
+                if ( c == -1 )
+                {
+                    throw new IOException( "no response: " + headers );
+                }
+                headers.append( (char) c );
+            }
+            assertTrue( headers.toString(), headers.toString().startsWith( "HTTP/1.1 200" ) );
+
+            byte[] buffer = new byte[READ_CHUNK];
+            long length = 0;
+            while ( true )
+            {
+                int chunk = 0;
+                int read = 0;
+                while ( chunk < READ_CHUNK && ( read = in.read( buffer, chunk, READ_CHUNK - chunk ) ) != -1 )
+                {
+                    chunk += read;
+                }
+                length += chunk;
+                if ( read == -1 )
+                {
+                    return length;
+                }
+                Thread.sleep( READ_PAUSE_MILLIS );
+            }
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.SharedFile;
+import junit.framework.TestCase;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that an asynchronous download sends exactly the content or the range asked for,
+ * and releases the content once it is sent.
+ */
+public class AsyncDownloadTest
+        extends TestCase
+{
+    private static final int FILE_LENGTH = 1024 * 1024 + 17;
+
+    private File dir;
+
+    private File jar;
+
+    private byte[] content;
+
+    private Server server;
+
+    private int port;
+
+    /* Content of each response, released once sent */
+    private final List<SharedFile> sent = new ArrayList<>();
+
+    private final AtomicInteger asyncStarted = new AtomicInteger();
+
+    public void setUp()
+            throws Exception
+    {
+        dir = File.createTempFile( "webapp", "" );
+        dir.delete();
+        dir.mkdirs();
+        content = new byte[FILE_LENGTH];
+        new Random( 1 ).nextBytes( content );
+        jar = new File( dir, "app.jar" );
+        Files.write( jar.toPath(), content );
+
+        DownloadResponse.setAsync( 1, 0 );
+        server = new Server();
+        ServerConnector connector = new ServerConnector( server );
+        server.addConnector( connector );
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath( "/" );
+        ServletHolder holder = new ServletHolder( new HttpServlet()
+        {
+            protected void doGet( HttpServletRequest request, HttpServletResponse response )
+                    throws IOException
+            {
+                // A copy per response, deleted once released like a JarDiff
+                File copy = File.createTempFile( "download", ".jar", dir );
+                Files.copy( jar.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING );
+                SharedFile file = new SharedFile( copy );
+                synchronized ( sent )
+                {
+                    sent.add( file );
+                }
+                DownloadResponse.getFileDownloadResponse( file, "application/java-archive", jar.lastModified(),
+                                                          null ).sendRespond( request, response );
+                if ( request.isAsyncStarted() )
+                {
+                    asyncStarted.incrementAndGet();
+                }
+            }
+        } );
+        holder.setAsyncSupported( true );
+        context.addServlet( holder, "*.jar" );
+        server.setHandler( context );
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    public void tearDown()
+            throws Exception
+    {
+        server.stop();
+        DownloadResponse.setAsync( 0, 0 );
+        for ( File file : dir.listFiles() )
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testContentAndRanges()
+            throws Exception
+    {
+        HttpURLConnection connection = get( null );
+        assertEquals( 200, connection.getResponseCode() );
+        assertTrue( Arrays.equals( content, read( connection ) ) );
+
+        connection = get( "bytes=1000-1999" );
+        assertEquals( 206, connection.getResponseCode() );
+        assertEquals( "bytes 1000-1999/" + FILE_LENGTH, connection.getHeaderField( "Content-Range" ) );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( content, 1000, 2000 ), read( connection ) ) );
+
+        connection = get( "bytes=-100" );
+        assertEquals( 206, connection.getResponseCode() );
+        assertTrue( Arrays.equals( Arrays.copyOfRange( content, FILE_LENGTH - 100, FILE_LENGTH ),
+                                   read( connection ) ) );
+
+        assertEquals( 3, asyncStarted.get() );
+
+        // Released once sent, which is after the client got the last byte
+        long deadline = System.currentTimeMillis() + 10000;
+        synchronized ( sent )
+        {
+            assertEquals( 3, sent.size() );
+            for ( SharedFile file : sent )
+            {
+                while ( !file.isReleased() && System.currentTimeMillis() < deadline )
+                {
+                    sent.wait( 10 );
+                }
+                assertTrue( file.isReleased() );
+                assertFalse( file.getFile().exists() );
+            }
+        }
+    }
+
+    private HttpURLConnection get( String range )
+            throws IOException
+    {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL( "http://localhost:" + port + "/app.jar" ).openConnection();
+        if ( range != null )
+        {
+            connection.setRequestProperty( "Range", range );
+        }
+        return connection;
+    }
+
+    private static byte[] read( HttpURLConnection connection )
+            throws IOException
+    {
+        InputStream in = connection.getInputStream();
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ( ( n = in.read( buffer ) ) != -1 )
+            {
+                out.write( buffer, 0, n );
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that {@link AsyncLogWriter} drops or waits when its queue is full, rotates the
+ * log file, and writes every queued event when it is closed.
+ */
+public class AsyncLogWriterTest
+        extends TestCase
+{
+    private File dir;
+
+    private File file;
+
+    private final ServletContext context =
+            ServletStubs.newProxy( ServletContext.class, new HashMap<String, String>() );
+
+    public void setUp()
+            throws IOException
+    {
+        dir = File.createTempFile( "log", "" );
+        dir.delete();
+        dir.mkdirs();
+        file = new File( dir, "jnlp.log" );
+    }
+
+    public void tearDown()
+    {
+        for ( File f : dir.listFiles() )
+        {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    public void testDropWhenFull()
+            throws Exception
+    {
+        AsyncLogWriter writer = new AsyncLogWriter( context, "test", file, 2, true, 0, 1 );
+        Stall stall = new Stall();
+        assertTrue( writer.add( Logger.WARNING, "stalled", stall ) );
+        stall.await();
+
+        // Two are queued, the others are dropped without waiting
+        for ( int i = 0; i < 5; i++ )
+        {
+            assertTrue( writer.add( Logger.WARNING, "event " + i, null ) );
+        }
+        stall.release();
+        writer.close();
+
+        List<String> lines = readLines( file );
+        assertEquals( "test(" + Logger.WARNING + "): event 0", lines.get( 2 ) );
+        assertEquals( "test(" + Logger.WARNING + "): event 1", lines.get( 3 ) );
+        assertEquals( "test(" + Logger.WARNING + "): 3 log events dropped, the log queue was full", lines.get( 4 ) );
+        assertEquals( 5, lines.size() );
+    }
+
+    public void testWaitWhenFull()
+            throws Exception
+    {
+        final AsyncLogWriter writer = new AsyncLogWriter( context, "test", file, 1, false, 0, 1 );
+        Stall stall = new Stall();
+        assertTrue( writer.add( Logger.WARNING, "stalled", stall ) );
+        stall.await();
+        assertTrue( writer.add( Logger.WARNING, "event 0", null ) );
+
+        Thread logging = new Thread()
+        {
+            public void run()
+            {
+                writer.add( Logger.WARNING, "event 1", null );
+            }
+        };
+        logging.start();
+        logging.join( 200 );
+        assertTrue( logging.isAlive() );
+
+        stall.release();
+        logging.join( 10000 );
+        assertFalse( logging.isAlive() );
+        writer.close();
+
+        List<String> lines = readLines( file );
+        assertEquals( "test(" + Logger.WARNING + "): event 0", lines.get( 2 ) );
+        assertEquals( "test(" + Logger.WARNING + "): event 1", lines.get( 3 ) );
+        assertEquals( 4, lines.size() );
+    }
+
+    public void testRotation()
+            throws IOException
+    {
+        // Two events fill a file, which is rotated before the 32 KB buffer is flushed
+        AsyncLogWriter writer = new AsyncLogWriter( context, "test", file, 100, false, 100, 2 );
+        for ( int i = 1; i <= 7; i++ )
+        {
+            assertTrue( writer.add( Logger.WARNING, "event " + i + new String( new char[40] ).replace( '\0', '.' ),
+                                    null ) );
+        }
+        writer.close();
+
+        assertEquals( 1, readLines( file ).size() );
+        assertTrue( readLines( file ).get( 0 ).contains( "event 7" ) );
+        List<String> first = readLines( new File( dir, "jnlp.log.1" ) );
+        assertEquals( 2, first.size() );
+        assertTrue( first.get( 0 ).contains( "event 5" ) );
+        assertTrue( first.get( 1 ).contains( "event 6" ) );
+        List<String> second = readLines( new File( dir, "jnlp.log.2" ) );
+        assertTrue( second.get( 0 ).contains( "event 3" ) );
+        assertFalse( new File( dir, "jnlp.log.3" ).exists() );
+    }
+
+    public void testCloseWritesQueuedEvents()
+            throws IOException
+    {
+        AsyncLogWriter writer = new AsyncLogWriter( context, "test", file, 10000, false, 0, 1 );
+        for ( int i = 0; i < 1000; i++ )
+        {
+            assertTrue( writer.add( Logger.WARNING, "event " + i, null ) );
+        }
+        writer.close();
+        assertFalse( writer.add( Logger.WARNING, "closed", null ) );
+
+        List<String> lines = readLines( file );
+        assertEquals( 1000, lines.size() );
+        assertEquals( "test(" + Logger.WARNING + "): event 999", lines.get( 999 ) );
+    }
+
+    private static List<String> readLines( File file )
+            throws IOException
+    {
+        return Files.readAllLines( file.toPath(), StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * Holds the writer thread while it prints the stack trace, which takes a single line.
+     */
+    private static class Stall
+            extends Throwable
+    {
+        private final CountDownLatch _printing = new CountDownLatch( 1 );
+
+        private final CountDownLatch _released = new CountDownLatch( 1 );
+
+        public void printStackTrace( PrintWriter s )
+        {
+            _printing.countDown();
+            try
+            {
+                _released.await( 10, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            s.println( "stack trace" );
+        }
+
+        void await()
+                throws InterruptedException
+        {
+            assertTrue( _printing.await( 10, TimeUnit.SECONDS ) );
+        }
+
+        void release()
+        {
+            _released.countDown();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Tests which clients get the gzip variant of a resource, and that the responses tell
+ * caches that they depend on the Accept-Encoding header.
+ */
+public class CompressedVariantTest
+        extends TestCase
+{
+    private File dir;
+
+    private Server server;
+
+    private int port;
+
+    public void setUp()
+            throws Exception
+    {
+        dir = File.createTempFile( "webapp", "" );
+        dir.delete();
+        dir.mkdirs();
+        write( "app.jar", new byte[100] );
+        write( "app.jar.gz", new byte[10] );
+        write( "plain.jar", new byte[100] );
+
+        server = new Server();
+        ServerConnector connector = new ServerConnector( server );
+        server.addConnector( connector );
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath( "/" );
+        context.setResourceBase( dir.getAbsolutePath() );
+        context.addServlet( new ServletHolder( new JnlpDownloadServlet() ), "*.jar" );
+        server.setHandler( context );
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    public void tearDown()
+            throws Exception
+    {
+        server.stop();
+        for ( File file : dir.listFiles() )
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testGzipVariant()
+            throws IOException
+    {
+        HttpURLConnection gzip = get( "app.jar", "gzip, deflate", null );
+        assertEquals( 200, gzip.getResponseCode() );
+        assertEquals( "gzip", gzip.getHeaderField( "Content-Encoding" ) );
+        assertEquals( 10, gzip.getContentLength() );
+        assertEquals( "Accept-Encoding", gzip.getHeaderField( "Vary" ) );
+
+        HttpURLConnection identity = get( "app.jar", null, null );
+        assertEquals( 200, identity.getResponseCode() );
+        assertNull( identity.getHeaderField( "Content-Encoding" ) );
+        assertEquals( 100, identity.getContentLength() );
+        assertEquals( "Accept-Encoding", identity.getHeaderField( "Vary" ) );
+
+        // Not modified, the cache keeps a variant per encoding
+        HttpURLConnection notModified = get( "app.jar", "gzip", gzip.getHeaderField( "ETag" ) );
+        assertEquals( 304, notModified.getResponseCode() );
+        assertEquals( "Accept-Encoding", notModified.getHeaderField( "Vary" ) );
+    }
+
+    public void testRefusedEncodings()
+            throws IOException
+    {
+        for ( String acceptEncoding : new String[]{ "gzip;q=0", "gzip; q=0.0, deflate", "pack200-gzip", "x-gzip2" } )
+        {
+            HttpURLConnection connection = get( "app.jar", acceptEncoding, null );
+            assertEquals( acceptEncoding, 200, connection.getResponseCode() );
+            assertNull( acceptEncoding, connection.getHeaderField( "Content-Encoding" ) );
+            assertEquals( acceptEncoding, 100, connection.getContentLength() );
+        }
+        HttpURLConnection connection = get( "app.jar", "deflate, GZIP;q=0.5", null );
+        assertEquals( "gzip", connection.getHeaderField( "Content-Encoding" ) );
+    }
+
+    public void testNoVaryWithoutVariant()
+            throws IOException
+    {
+        HttpURLConnection connection = get( "plain.jar", "gzip", null );
+        assertEquals( 200, connection.getResponseCode() );
+        assertNull( connection.getHeaderField( "Vary" ) );
+    }
+
+    private HttpURLConnection get( String path, String acceptEncoding, String ifNoneMatch )
+            throws IOException
+    {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL( "http://localhost:" + port + "/" + path ).openConnection();
+        if ( acceptEncoding != null )
+        {
+            connection.setRequestProperty( "Accept-Encoding", acceptEncoding );
+        }
+        if ( ifNoneMatch != null )
+        {
+            connection.setRequestProperty( "If-None-Match", ifNoneMatch );
+        }
+        connection.getResponseCode();
+        connection.disconnect();
+        return connection;
+    }
+
+    private void write( String name, byte[] content )
+            throws IOException
+    {
+        OutputStream out = new FileOutputStream( new File( dir, name ) );
+        try
+        {
+            out.write( content );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
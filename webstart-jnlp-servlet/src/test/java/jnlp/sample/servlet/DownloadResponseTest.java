@@ -0,0 +1,351 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Tests the byte ranges sent by {@link DownloadResponse}, when the If-Range header of
+ * a request lets a range be sent, and when If-None-Match leaves the content out.
+ */
+public class DownloadResponseTest
+        extends TestCase
+{
+    private static final byte[] CONTENT = "0123456789".getBytes( StandardCharsets.UTF_8 );
+
+    private static final long LAST_MODIFIED = 1500000000123L;
+
+    public void testRange()
+            throws IOException
+    {
+        Response response = send( getResponse(), "bytes=2-5", null );
+        assertEquals( HttpServletResponse.SC_PARTIAL_CONTENT, response.status );
+        assertEquals( "bytes 2-5/10", response.headers.get( "Content-Range" ) );
+        assertEquals( "4", response.headers.get( "Content-Length" ) );
+        assertEquals( "2345", response.getContent() );
+
+        // Past the end of the content
+        response = send( getResponse(), "bytes=2-100", null );
+        assertEquals( "bytes 2-9/10", response.headers.get( "Content-Range" ) );
+        assertEquals( "23456789", response.getContent() );
+    }
+
+    public void testSuffixRange()
+            throws IOException
+    {
+        Response response = send( getResponse(), "bytes=-4", null );
+        assertEquals( HttpServletResponse.SC_PARTIAL_CONTENT, response.status );
+        assertEquals( "bytes 6-9/10", response.headers.get( "Content-Range" ) );
+        assertEquals( "6789", response.getContent() );
+
+        // Longer than the content
+        response = send( getResponse(), "bytes=-20", null );
+        assertEquals( "bytes 0-9/10", response.headers.get( "Content-Range" ) );
+        assertEquals( "0123456789", response.getContent() );
+    }
+
+    public void testOpenEndedRange()
+            throws IOException
+    {
+        Response response = send( getResponse(), "bytes=7-", null );
+        assertEquals( HttpServletResponse.SC_PARTIAL_CONTENT, response.status );
+        assertEquals( "bytes 7-9/10", response.headers.get( "Content-Range" ) );
+        assertEquals( "789", response.getContent() );
+    }
+
+    public void testWholeContentSent()
+            throws IOException
+    {
+        // Several ranges, another unit and a syntactically invalid range
+        for ( String range : new String[]{ "bytes=0-1,4-5", "items=0-1", "bytes=5-2", "bytes=x-" } )
+        {
+            Response response = send( getResponse(), range, null );
+            assertEquals( range, HttpServletResponse.SC_OK, response.status );
+            assertNull( range, response.headers.get( "Content-Range" ) );
+            assertEquals( range, "bytes", response.headers.get( "Accept-Ranges" ) );
+            assertEquals( range, "0123456789", response.getContent() );
+        }
+    }
+
+    public void testUnsatisfiableRange()
+            throws IOException
+    {
+        for ( String range : new String[]{ "bytes=10-", "bytes=20-30", "bytes=-0" } )
+        {
+            Response response = send( getResponse(), range, null );
+            assertEquals( range, HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.status );
+            assertEquals( range, "bytes */10", response.headers.get( "Content-Range" ) );
+            assertEquals( range, "", response.getContent() );
+        }
+    }
+
+    public void testIfRangeETag()
+            throws IOException
+    {
+        String etag = send( getResponse(), null, null ).headers.get( "ETag" );
+        assertNotNull( etag );
+
+        Response response = send( getResponse(), "bytes=0-1", etag );
+        assertEquals( HttpServletResponse.SC_PARTIAL_CONTENT, response.status );
+        assertEquals( "01", response.getContent() );
+
+        // Another content, and weak entity tags which never match
+        for ( String ifRange : new String[]{ "\"other\"", "W/" + etag } )
+        {
+            response = send( getResponse(), "bytes=0-1", ifRange );
+            assertEquals( ifRange, HttpServletResponse.SC_OK, response.status );
+            assertEquals( ifRange, "0123456789", response.getContent() );
+        }
+    }
+
+    public void testIfRangeDate()
+            throws IOException
+    {
+        // Within the same second as the timestamp
+        Response response = send( getResponse(), "bytes=0-1", formatDate( LAST_MODIFIED ) );
+        assertEquals( HttpServletResponse.SC_PARTIAL_CONTENT, response.status );
+        assertEquals( "01", response.getContent() );
+
+        for ( String ifRange : new String[]{ formatDate( LAST_MODIFIED - 1000 ), "not a date" } )
+        {
+            response = send( getResponse(), "bytes=0-1", ifRange );
+            assertEquals( ifRange, HttpServletResponse.SC_OK, response.status );
+            assertEquals( ifRange, "0123456789", response.getContent() );
+        }
+    }
+
+    public void testRangeOfPack200Variant()
+            throws IOException
+    {
+        File file = File.createTempFile( "app", ".jar.pack.gz" );
+        try
+        {
+            OutputStream out = new FileOutputStream( file );
+            try
+            {
+                out.write( CONTENT );
+            }
+            finally
+            {
+                out.close();
+            }
+            DownloadResponse download =
+                    DownloadResponse.getFileDownloadResponse( file, "application/java-archive", LAST_MODIFIED, "1.0" );
+            String etag = send( download, null, null ).headers.get( "ETag" );
+            assertTrue( etag, etag.endsWith( "-pack\"" ) );
+
+            // The range is of the encoded content
+            download = DownloadResponse.getFileDownloadResponse( file, "application/java-archive", LAST_MODIFIED,
+                                                                 "1.0" );
+            Response response = send( download, "bytes=4-", etag );
+            assertEquals( HttpServletResponse.SC_PARTIAL_CONTENT, response.status );
+            assertEquals( DownloadResponse.PACK200_GZIP_ENCODING,
+                          response.headers.get( DownloadResponse.CONTENT_ENCODING ) );
+            assertEquals( "bytes 4-9/10", response.headers.get( "Content-Range" ) );
+            assertEquals( "456789", response.getContent() );
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    public void testIfNoneMatch()
+            throws IOException
+    {
+        String etag = send( getResponse(), null, null ).headers.get( "ETag" );
+        Map<String, String> headers = new HashMap<>();
+
+        // Listed, with or without spaces, any entity tag, and compared weakly
+        for ( String ifNoneMatch : new String[]{ etag, "\"a\", " + etag + ", \"b\"", "\"a\"," + etag, "*",
+                "W/" + etag } )
+        {
+            headers.put( "If-None-Match", ifNoneMatch );
+            Response response = send( getResponse(), headers );
+            assertEquals( ifNoneMatch, HttpServletResponse.SC_NOT_MODIFIED, response.status );
+            assertEquals( ifNoneMatch, etag, response.headers.get( "ETag" ) );
+            assertEquals( ifNoneMatch, "", response.getContent() );
+        }
+
+        for ( String ifNoneMatch : new String[]{ "\"a\", \"b\"", "W/\"a\"", "" } )
+        {
+            headers.put( "If-None-Match", ifNoneMatch );
+            Response response = send( getResponse(), headers );
+            assertEquals( ifNoneMatch, HttpServletResponse.SC_OK, response.status );
+            assertEquals( ifNoneMatch, "0123456789", response.getContent() );
+        }
+    }
+
+    private static DownloadResponse getResponse()
+    {
+        return DownloadResponse.getFileDownloadResponse( CONTENT, "text/plain", LAST_MODIFIED, null );
+    }
+
+    private static Response send( DownloadResponse download, String range, String ifRange )
+            throws IOException
+    {
+        Map<String, String> headers = new HashMap<>();
+        if ( range != null )
+        {
+            headers.put( "Range", range );
+        }
+        if ( ifRange != null )
+        {
+            headers.put( "If-Range", ifRange );
+        }
+        return send( download, headers );
+    }
+
+    static Response send( DownloadResponse download, Map<String, String> headers )
+            throws IOException
+    {
+        Response response = new Response();
+        download.sendRespond( newRequest( headers ), response.proxy );
+        return response;
+    }
+
+    private static String formatDate( long time )
+    {
+        return getDateFormat().format( new Date( time ) );
+    }
+
+    private static SimpleDateFormat getDateFormat()
+    {
+        SimpleDateFormat format = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US );
+        format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        return format;
+    }
+
+    /**
+     * Creates a request with the given headers, which parses dates as a container does.
+     */
+    static HttpServletRequest newRequest( final Map<String, String> headers )
+    {
+        return ServletStubs.newProxy( HttpServletRequest.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                String name = method.getName();
+                if ( name.equals( "getHeader" ) )
+                {
+                    return headers.get( (String) args[0] );
+                }
+                if ( name.equals( "getHeaders" ) )
+                {
+                    String value = headers.get( (String) args[0] );
+                    return Collections.enumeration(
+                            value == null ? Collections.<String>emptyList() : Collections.singletonList( value ) );
+                }
+                if ( name.equals( "getDateHeader" ) )
+                {
+                    String value = headers.get( (String) args[0] );
+                    if ( value == null )
+                    {
+                        return -1L;
+                    }
+                    try
+                    {
+                        return getDateFormat().parse( value ).getTime();
+                    }
+                    catch ( ParseException e )
+                    {
+                        throw new IllegalArgumentException( value );
+                    }
+                }
+                if ( name.equals( "isAsyncSupported" ) )
+                {
+                    return false;
+                }
+                return null;
+            }
+        } );
+    }
+
+    /**
+     * Records the status, headers and content of a response.
+     */
+    static class Response
+    {
+        int status = HttpServletResponse.SC_OK;
+
+        final Map<String, String> headers = new TreeMap<>( String.CASE_INSENSITIVE_ORDER );
+
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        final HttpServletResponse proxy = ServletStubs.newProxy( HttpServletResponse.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                String name = method.getName();
+                if ( name.equals( "setStatus" ) || name.equals( "sendError" ) )
+                {
+                    status = (Integer) args[0];
+                }
+                else if ( name.equals( "setHeader" ) || name.equals( "setDateHeader" ) )
+                {
+                    if ( args[1] == null )
+                    {
+                        headers.remove( (String) args[0] );
+                    }
+                    else
+                    {
+                        headers.put( (String) args[0], String.valueOf( args[1] ) );
+                    }
+                }
+                else if ( name.equals( "setContentLength" ) )
+                {
+                    headers.put( "Content-Length", String.valueOf( args[0] ) );
+                }
+                else if ( name.equals( "setContentType" ) )
+                {
+                    headers.put( "Content-Type", (String) args[0] );
+                }
+                else if ( name.equals( "getOutputStream" ) )
+                {
+                    return new ServletOutputStream()
+                    {
+                        public void write( int b )
+                        {
+                            content.write( b );
+                        }
+
+                        public boolean isReady()
+                        {
+                            return true;
+                        }
+
+                        public void setWriteListener( WriteListener listener )
+                        {
+                        }
+                    };
+                }
+                return null;
+            }
+        } );
+
+        String getContent()
+        {
+            return new String( content.toByteArray(), StandardCharsets.UTF_8 );
+        }
+    }
+}
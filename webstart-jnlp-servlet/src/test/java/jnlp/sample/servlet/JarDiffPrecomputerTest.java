@@ -0,0 +1,121 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests which JarDiffs {@link JarDiffPrecomputer} generates, for numeric and other versions,
+ * and that a resource is scheduled again once its JarDiffs are done.
+ */
+public class JarDiffPrecomputerTest
+        extends TestCase
+{
+    private File dir;
+
+    private ServletContext context;
+
+    private final List<String> precomputed = new ArrayList<>();
+
+    private JarDiffPrecomputer precomputer;
+
+    public void setUp()
+            throws IOException
+    {
+        dir = File.createTempFile( "precompute", "" );
+        dir.delete();
+        dir.mkdirs();
+        context = ServletStubs.newServletContext( dir );
+        Logger log = new Logger( ServletStubs.newServletConfig( context ), JnlpDownloadServlet.getResourceBundle() );
+        JarDiffHandler handler = new JarDiffHandler( context, log )
+        {
+            void precomputeJarDiff( JnlpResource fromRes, JnlpResource res )
+            {
+                synchronized ( precomputed )
+                {
+                    precomputed.add( fromRes.getVersionId() + "->" + res.getVersionId() );
+                    precomputed.notifyAll();
+                }
+            }
+        };
+        precomputer = new JarDiffPrecomputer( handler, log, 2, 1, 0 );
+    }
+
+    public void tearDown()
+    {
+        precomputer.shutdown();
+        File[] files = dir.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testNumericVersionsNewestFirst()
+            throws Exception
+    {
+        precomputer.entriesChanged( "/", getResources( "1.9", "1.10", "1.2", "2" ) );
+        assertEquals( Arrays.asList( "1.10->2", "1.9->2" ), await( 2 ) );
+    }
+
+    public void testOtherVersionsInCatalogOrder()
+            throws Exception
+    {
+        // Not sorted, the newest one is still the highest version
+        precomputer.entriesChanged( "/", getResources( "1.0", "1.5-beta", "2.0", "1.5" ) );
+        assertEquals( Arrays.asList( "1.0->2.0", "1.5-beta->2.0" ), await( 2 ) );
+    }
+
+    public void testScheduledAgainWhenDone()
+            throws Exception
+    {
+        List<JnlpResource> resources = getResources( "1", "2" );
+        precomputer.entriesChanged( "/", resources );
+        await( 1 );
+
+        // Skipped until the first task has removed its signature
+        long deadline = System.currentTimeMillis() + 10000;
+        while ( await( 0 ).size() < 2 && System.currentTimeMillis() < deadline )
+        {
+            precomputer.entriesChanged( "/", resources );
+            Thread.sleep( 10 );
+        }
+        assertEquals( Arrays.asList( "1->2", "1->2" ), await( 2 ) );
+    }
+
+    private List<String> await( int count )
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 10000;
+        synchronized ( precomputed )
+        {
+            while ( precomputed.size() < count && System.currentTimeMillis() < deadline )
+            {
+                precomputed.wait( 100 );
+            }
+            return new ArrayList<>( precomputed );
+        }
+    }
+
+    private List<JnlpResource> getResources( String... versions )
+            throws IOException
+    {
+        List<JnlpResource> resources = new ArrayList<>();
+        for ( String version : versions )
+        {
+            String path = "/app__V" + version + ".jar";
+            new File( dir, path ).createNewFile();
+            resources.add( new JnlpResource( context, "/app.jar", version, null, null, null, path, version ) );
+        }
+        return resources;
+    }
+}
@@ -0,0 +1,224 @@
+package jnlp.sample.servlet;
+
+import jnlp.sample.util.SharedFile;
+import junit.framework.TestCase;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Tests that {@link JarDiffStore} appends to its index rather than rewriting it, that the
+ * index read again gives the same JarDiffs, that files left in the store directory
+ * are deleted after the quota is enforced, and that the JarDiffs of removed or changed
+ * jars are dropped.
+ */
+public class JarDiffStoreTest
+        extends TestCase
+{
+    private File webapp;
+
+    private File storeDir;
+
+    private ServletContext context;
+
+    private Logger log;
+
+    public void setUp()
+            throws IOException
+    {
+        webapp = createDir( "webapp" );
+        storeDir = createDir( "store" );
+        write( new File( webapp, "app__V1.jar" ), "one" );
+        write( new File( webapp, "app__V2.jar" ), "two" );
+        write( new File( webapp, "app__V3.jar" ), "three" );
+        context = ServletStubs.newServletContext( webapp );
+        log = new Logger( ServletStubs.newServletConfig( context ), JnlpDownloadServlet.getResourceBundle() );
+    }
+
+    public void tearDown()
+    {
+        delete( webapp );
+        delete( storeDir );
+    }
+
+    public void testIndexOnlyWrittenWhenLocationChanges()
+            throws IOException
+    {
+        JarDiffStore store = new JarDiffStore( context, log, storeDir, 0 );
+        JnlpResource oldRes = getResource( "1" );
+        JnlpResource newRes = getResource( "2" );
+        String hash = put( store, oldRes, newRes, 100 );
+        List<String> lines = readIndex();
+
+        // Same location, nothing to write
+        for ( int i = 0; i < 3; i++ )
+        {
+            assertNotNull( store.lookup( hash, oldRes, newRes, false ) );
+            assertNotNull( store.lookup( oldRes, newRes, false ) );
+        }
+        assertEquals( lines, readIndex() );
+
+        // The new jar was touched, but has the same content: the new location is appended
+        File newJar = new File( webapp, newRes.getPath() );
+        assertTrue( newJar.setLastModified( newJar.lastModified() - 10000 ) );
+        JnlpResource touched = getResource( "2" );
+        assertNull( store.lookup( oldRes, touched, false ) );
+        assertNotNull( store.lookup( hash, oldRes, touched, false ) );
+        assertEquals( lines.size() + 1, readIndex().size() );
+        assertNotNull( store.lookup( hash, oldRes, touched, false ) );
+        assertEquals( lines.size() + 1, readIndex().size() );
+
+        // The fast path after a restart, the index being rewritten with one line per JarDiff
+        JarDiffStore reloaded = new JarDiffStore( context, log, storeDir, 0 );
+        assertNotNull( reloaded.lookup( oldRes, touched, false ) );
+        assertEquals( 2, readIndex().size() );
+    }
+
+    public void testRemovalsAreKeptAcrossRestarts()
+            throws IOException
+    {
+        JarDiffStore store = new JarDiffStore( context, log, storeDir, 150 );
+        JnlpResource res1 = getResource( "1" );
+        JnlpResource res2 = getResource( "2" );
+        JnlpResource res3 = getResource( "3" );
+        String first = put( store, res1, res2, 100 );
+        String second = put( store, res2, res3, 100 );
+
+        // The first one was evicted, and its removal appended
+        assertNull( store.lookup( first, res1, res2, false ) );
+        assertEquals( 4, readIndex().size() );
+        assertFalse( new File( storeDir, first + ".jardiff" ).exists() );
+
+        JarDiffStore reloaded = new JarDiffStore( context, log, storeDir, 150 );
+        assertNull( reloaded.lookup( res1, res2, false ) );
+        assertNotNull( reloaded.lookup( res2, res3, false ) );
+        assertNotNull( reloaded.lookup( second, res2, res3, false ) );
+        assertEquals( 2, readIndex().size() );
+    }
+
+    public void testOrphansDeletedAfterEviction()
+            throws IOException
+    {
+        JarDiffStore store = new JarDiffStore( context, log, storeDir, 150 );
+        JnlpResource res1 = getResource( "1" );
+        JnlpResource res2 = getResource( "2" );
+        JnlpResource res3 = getResource( "3" );
+        String first = put( store, res1, res2, 100 );
+        SharedFile sent = store.lookup( first, res1, res2, false );
+        assertTrue( sent.acquire() );
+
+        // Left over, e.g. by a removal which could not delete its file, and a JarDiff being generated
+        File orphan = new File( storeDir, "0123456789abcdef.jardiff" );
+        write( orphan, "orphan" );
+        File generating = store.createTempFile();
+
+        put( store, res2, res3, 100 );
+        assertFalse( orphan.exists() );
+        assertTrue( generating.exists() );
+
+        // Still sent to a client
+        assertTrue( sent.getFile().exists() );
+        sent.release();
+        assertFalse( sent.getFile().exists() );
+    }
+
+    public void testCleanupRemovesJarDiffsOfChangedJars()
+            throws IOException
+    {
+        JarDiffStore store = new JarDiffStore( context, log, storeDir, 0 );
+        JnlpResource res1 = getResource( "1" );
+        JnlpResource res2 = getResource( "2" );
+        JnlpResource res3 = getResource( "3" );
+        String first = put( store, res1, res2, 100 );
+        String second = put( store, res2, res3, 100 );
+
+        // Another directory, nothing checked
+        assertTrue( new File( webapp, res1.getPath() ).delete() );
+        store.cleanup( "/other/" );
+        assertNotNull( store.lookup( res1, res2, false ) );
+
+        store.cleanup( "/" );
+        assertNull( store.lookup( res1, res2, false ) );
+        assertNull( store.lookup( first, res1, res2, false ) );
+        assertFalse( new File( storeDir, first + ".jardiff" ).exists() );
+        assertNotNull( store.lookup( second, res2, res3, false ) );
+
+        // A replaced jar
+        File newJar = new File( webapp, res3.getPath() );
+        assertTrue( newJar.setLastModified( newJar.lastModified() - 10000 ) );
+        store.cleanup( "/" );
+        assertNull( store.lookup( second, res2, res3, false ) );
+
+        // Also removed from the index
+        assertNull( new JarDiffStore( context, log, storeDir, 0 ).lookup( res2, res3, false ) );
+    }
+
+    private String put( JarDiffStore store, JnlpResource oldRes, JnlpResource newRes, int size )
+            throws IOException
+    {
+        String oldPath = new File( webapp, oldRes.getPath() ).getPath();
+        String newPath = new File( webapp, newRes.getPath() ).getPath();
+        String hash = store.getHash( oldRes, oldPath, newRes, newPath, false );
+        File jarDiff = store.createTempFile();
+        write( jarDiff, new String( new char[size] ) );
+        SharedFile stored = store.put( hash, oldRes, oldPath, newRes, newPath, false, jarDiff );
+        assertNotNull( stored );
+        // Not sent to any client
+        assertTrue( stored.getFile().exists() );
+        return hash;
+    }
+
+    private JnlpResource getResource( String version )
+    {
+        return new JnlpResource( context, "/app.jar", version, null, null, null, "/app__V" + version + ".jar",
+                                 version );
+    }
+
+    private List<String> readIndex()
+            throws IOException
+    {
+        return Files.readAllLines( new File( storeDir, "index.txt" ).toPath(), StandardCharsets.UTF_8 );
+    }
+
+    private static File createDir( String prefix )
+            throws IOException
+    {
+        File dir = File.createTempFile( prefix, "" );
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void delete( File dir )
+    {
+        File[] files = dir.listFiles();
+        if ( files != null )
+        {
+            for ( File file : files )
+            {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static void write( File file, String content )
+            throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( content.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
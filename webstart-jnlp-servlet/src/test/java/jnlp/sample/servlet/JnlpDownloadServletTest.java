@@ -0,0 +1,117 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests the conditional requests answered by {@link JnlpDownloadServlet}, and the
+ * Cache-Control header configured by mime type.
+ */
+public class JnlpDownloadServletTest
+        extends TestCase
+{
+    private File dir;
+
+    private Server server;
+
+    private int port;
+
+    public void setUp()
+            throws Exception
+    {
+        dir = File.createTempFile( "webapp", "" );
+        dir.delete();
+        dir.mkdirs();
+        write( "app.jar", new byte[100] );
+        write( "app.jnlp", "<jnlp codebase=\"$$codebase\"/>".getBytes( StandardCharsets.UTF_8 ) );
+
+        server = new Server();
+        ServerConnector connector = new ServerConnector( server );
+        server.addConnector( connector );
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath( "/" );
+        context.setResourceBase( dir.getAbsolutePath() );
+        ServletHolder holder = new ServletHolder( new JnlpDownloadServlet() );
+        holder.setInitParameter( "cache-control", "no-cache" );
+        holder.setInitParameter( "cache-control.application/java-archive", "max-age=3600" );
+        context.addServlet( holder, "*.jar" );
+        context.addServlet( holder, "*.jnlp" );
+        server.setHandler( context );
+        server.start();
+        port = connector.getLocalPort();
+    }
+
+    public void tearDown()
+            throws Exception
+    {
+        server.stop();
+        for ( File file : dir.listFiles() )
+        {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    public void testIfNoneMatchTakesPrecedence()
+            throws IOException
+    {
+        long future = System.currentTimeMillis() + 3600000;
+        HttpURLConnection modifiedSince = get( "app.jar", future, null );
+        assertEquals( 304, modifiedSince.getResponseCode() );
+
+        // Another entity tag, the If-Modified-Since header is not looked at
+        HttpURLConnection other = get( "app.jar", future, "\"other\"" );
+        assertEquals( 200, other.getResponseCode() );
+        assertEquals( 100, other.getContentLength() );
+
+        HttpURLConnection same = get( "app.jar", 0, "\"other\", " + other.getHeaderField( "ETag" ) );
+        assertEquals( 304, same.getResponseCode() );
+    }
+
+    public void testCacheControlByMimeType()
+            throws IOException
+    {
+        assertEquals( "max-age=3600", get( "app.jar", 0, null ).getHeaderField( "Cache-Control" ) );
+        assertEquals( "no-cache", get( "app.jnlp", 0, null ).getHeaderField( "Cache-Control" ) );
+    }
+
+    private HttpURLConnection get( String path, long ifModifiedSince, String ifNoneMatch )
+            throws IOException
+    {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL( "http://localhost:" + port + "/" + path ).openConnection();
+        connection.setIfModifiedSince( ifModifiedSince );
+        if ( ifNoneMatch != null )
+        {
+            connection.setRequestProperty( "If-None-Match", ifNoneMatch );
+        }
+        connection.getResponseCode();
+        connection.disconnect();
+        return connection;
+    }
+
+    private void write( String name, byte[] content )
+            throws IOException
+    {
+        OutputStream out = new FileOutputStream( new File( dir, name ) );
+        try
+        {
+            out.write( content );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
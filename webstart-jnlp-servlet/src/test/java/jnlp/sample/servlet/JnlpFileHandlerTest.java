@@ -0,0 +1,190 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Tests the cache of generated JNLP files of {@link JnlpFileHandler}: the least recently
+ * used files are evicted, files expire, a modified file is generated again, and a file
+ * generated again with the same content keeps its entity tag.
+ */
+public class JnlpFileHandlerTest
+        extends TestCase
+{
+    private static final String PATH = "/app.jnlp";
+
+    private File dir;
+
+    private ServletContext context;
+
+    private Logger log;
+
+    public void setUp()
+            throws IOException
+    {
+        dir = File.createTempFile( "webapp", "" );
+        dir.delete();
+        dir.mkdirs();
+        writeJnlp( "<jnlp codebase=\"$$codebase\"/>" );
+        context = ServletStubs.newServletContext( dir );
+        log = new Logger( ServletStubs.newServletConfig( context ), JnlpDownloadServlet.getResourceBundle() );
+    }
+
+    public void tearDown()
+    {
+        new File( dir, PATH ).delete();
+        dir.delete();
+    }
+
+    public void testEvictsLeastRecentlyUsed()
+            throws IOException
+    {
+        JnlpFileHandler handler = new JnlpFileHandler( context, null, log, 2, 0, 0 );
+        DownloadResponse a = getJnlpFile( handler, "a" );
+        DownloadResponse b = getJnlpFile( handler, "b" );
+        assertSame( a, getJnlpFile( handler, "a" ) );
+
+        // The cache is full: b is the least recently used file, the new one is kept
+        DownloadResponse c = getJnlpFile( handler, "c" );
+        assertEquals( 1, handler.getCacheEvictionCount() );
+        assertSame( c, getJnlpFile( handler, "c" ) );
+        assertSame( a, getJnlpFile( handler, "a" ) );
+        assertNotSame( b, getJnlpFile( handler, "b" ) );
+        assertEquals( 2, handler.getCacheEvictionCount() );
+
+        assertEquals( 4, handler.getCacheMissCount() );
+        assertEquals( 3, handler.getCacheHitCount() );
+    }
+
+    public void testBoundedBySize()
+            throws IOException
+    {
+        // Room for two generated files, which all have the length of a one letter host name
+        long length = "<jnlp codebase=\"http://a/\"/>".length();
+        JnlpFileHandler handler = new JnlpFileHandler( context, null, log, 0, 2 * length, 0 );
+        DownloadResponse a = getJnlpFile( handler, "a" );
+        getJnlpFile( handler, "b" );
+        assertEquals( 0, handler.getCacheEvictionCount() );
+        DownloadResponse c = getJnlpFile( handler, "c" );
+        assertEquals( 1, handler.getCacheEvictionCount() );
+        assertSame( c, getJnlpFile( handler, "c" ) );
+        assertNotSame( a, getJnlpFile( handler, "a" ) );
+    }
+
+    public void testExpiry()
+            throws Exception
+    {
+        JnlpFileHandler handler = new JnlpFileHandler( context, null, log, 0, 0, 50 );
+        DownloadResponse a = getJnlpFile( handler, "a" );
+        assertSame( a, getJnlpFile( handler, "a" ) );
+        Thread.sleep( 100 );
+        assertNotSame( a, getJnlpFile( handler, "a" ) );
+        assertEquals( 1, handler.getCacheEvictionCount() );
+        assertEquals( 2, handler.getCacheMissCount() );
+        assertEquals( 1, handler.getCacheHitCount() );
+    }
+
+    public void testModifiedFileIsGeneratedAgain()
+            throws IOException
+    {
+        JnlpFileHandler handler = new JnlpFileHandler( context, null, log, 0, 0, 0 );
+        DownloadResponse a = getJnlpFile( handler, "a" );
+        File file = new File( dir, PATH );
+        assertTrue( file.setLastModified( file.lastModified() - 10000 ) );
+        DownloadResponse modified = getJnlpFile( handler, "a" );
+        assertNotSame( a, modified );
+        assertSame( modified, getJnlpFile( handler, "a" ) );
+
+        // Replaced, which does not count as an eviction
+        assertEquals( 0, handler.getCacheEvictionCount() );
+    }
+
+    public void testETagOfSameContentIsStable()
+            throws IOException
+    {
+        JnlpFileHandler handler = new JnlpFileHandler( context, null, log, 1, 0, 0 );
+        String etag = getETag( getJnlpFile( handler, "a" ) );
+
+        // Generated again, at another time
+        getJnlpFile( handler, "b" );
+        DownloadResponse again = getJnlpFile( handler, "a" );
+        assertEquals( 2, handler.getCacheEvictionCount() );
+        assertEquals( etag, getETag( again ) );
+        assertEquals( etag, getETag( new JnlpFileHandler( context, null, log, 0, 0, 0 ).getJnlpFile(
+                new JnlpResource( context, PATH ), new DownloadRequest( context, newRequest( "a" ) ) ) ) );
+
+        // Another codebase
+        assertFalse( etag.equals( getETag( getJnlpFile( handler, "b" ) ) ) );
+    }
+
+    private static String getETag( DownloadResponse response )
+            throws IOException
+    {
+        String etag = DownloadResponseTest.send( response, new HashMap<String, String>() ).headers.get( "ETag" );
+        assertNotNull( etag );
+        return etag;
+    }
+
+    private DownloadResponse getJnlpFile( JnlpFileHandler handler, String host )
+            throws IOException
+    {
+        HttpServletRequest request = newRequest( host );
+        return handler.getJnlpFile( new JnlpResource( context, PATH ), new DownloadRequest( context, request ) );
+    }
+
+    private void writeJnlp( String content )
+            throws IOException
+    {
+        OutputStream out = new FileOutputStream( new File( dir, PATH ) );
+        try
+        {
+            out.write( content.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    static HttpServletRequest newRequest( final String host )
+    {
+        return ServletStubs.newProxy( HttpServletRequest.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                String name = method.getName();
+                if ( name.equals( "getRequestURI" ) )
+                {
+                    return PATH;
+                }
+                if ( name.equals( "getContextPath" ) )
+                {
+                    return "";
+                }
+                if ( name.equals( "getScheme" ) )
+                {
+                    return "http";
+                }
+                if ( name.equals( "getServerName" ) )
+                {
+                    return host;
+                }
+                if ( name.equals( "getServerPort" ) )
+                {
+                    return 80;
+                }
+                return null;
+            }
+        } );
+    }
+}
@@ -0,0 +1,147 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+/**
+ * Tests that {@link JnlpTemplate} renders a JNLP file as the macros were substituted one
+ * after the other before, and how {@link JnlpFileHandler} reads the <code>TS:</code> line.
+ */
+public class JnlpTemplateTest
+        extends TestCase
+{
+    private static final String[] MACROS = { "$$name", "$$hostname", "$$codebase", "$$context", "$$site" };
+
+    private static final String[] VALUES =
+            { "app.jnlp", "host", "http://host/ctx/", "http://host/ctx", "http://host" };
+
+    public void testSameAsSubstitute()
+    {
+        String[] templates = { "", "no macro", "$$name", "<jnlp href=\"$$name\" codebase=\"$$codebase\"/>",
+                // Adjacent and repeated
+                "$$name$$hostname$$codebase$$context$$site", "$$site$$site/$$site", "$$codebase$$name",
+                // Unknown, incomplete and nested in dollars
+                "$$foo $$ $ $$$name $$$$site $$nam", "$$context$$contextual", "end with $$" };
+        for ( String template : templates )
+        {
+            assertEquals( template, substituteAll( template, VALUES ), render( template, VALUES ) );
+        }
+    }
+
+    public void testNonAscii()
+    {
+        String[] values = { "été.jnlp", "hôte", "http://hôte/€/", "http://hôte/€", "http://hôte" };
+        String template = "<title>Été 𝄞 €</title>$$name|$$hostname|$$codebaseé$$site";
+        assertEquals( substituteAll( template, values ), render( template, values ) );
+    }
+
+    public void testNewlinesKept()
+    {
+        // The lines used to be joined without their terminators
+        String template = "<jnlp codebase=\"$$codebase\">\n  <information/>\r\n</jnlp>\n";
+        assertEquals( "<jnlp codebase=\"http://host/ctx/\">\n  <information/>\r\n</jnlp>\n",
+                      render( template, VALUES ) );
+    }
+
+    public void testTimeStampLine()
+            throws IOException
+    {
+        long timeStamp = getTime( 2001, 12, 19, 12, 0, 30 );
+        for ( String eol : new String[]{ "\n", "\r\n", "\r" } )
+        {
+            DownloadResponseTest.Response response =
+                    getJnlpFile( "TS: 2001-12-19 12:00:30Z" + eol + "<jnlp codebase=\"$$codebase\"/>" + eol );
+            assertEquals( "<jnlp codebase=\"http://host/\"/>" + eol, response.getContent() );
+            // The time stamp is read to the second
+            assertEquals( timeStamp / 1000, Long.parseLong( response.headers.get( "Last-Modified" ) ) / 1000 );
+        }
+
+        // Only a TS: line, up to the end of the file
+        DownloadResponseTest.Response response = getJnlpFile( "TS: 2001-12-19 12:00:30Z" );
+        assertEquals( "", response.getContent() );
+        assertEquals( timeStamp / 1000, Long.parseLong( response.headers.get( "Last-Modified" ) ) / 1000 );
+    }
+
+    private static String render( String template, String[] values )
+    {
+        return new String( JnlpTemplate.compile( template, 0, 0 ).render( values ), StandardCharsets.UTF_8 );
+    }
+
+    private static String substituteAll( String template, String[] values )
+    {
+        for ( int i = 0; i < MACROS.length; i++ )
+        {
+            template = substitute( template, MACROS[i], values[i] );
+        }
+        return template;
+    }
+
+    /**
+     * The former JnlpFileHandler.substitute, run once per macro.
+     */
+    private static String substitute( String target, String key, String value )
+    {
+        int start = 0;
+        do
+        {
+            int idx = target.indexOf( key, start );
+            if ( idx == -1 )
+            {
+                return target;
+            }
+            target = target.substring( 0, idx ) + value + target.substring( idx + key.length() );
+            start = idx + value.length();
+        }
+        while ( true );
+    }
+
+    private static long getTime( int year, int month, int day, int hour, int minute, int second )
+    {
+        Calendar cal = Calendar.getInstance( TimeZone.getTimeZone( "GMT" ) );
+        cal.clear();
+        cal.set( year, month - 1, day, hour, minute, second );
+        return cal.getTimeInMillis();
+    }
+
+    private static DownloadResponseTest.Response getJnlpFile( String content )
+            throws IOException
+    {
+        File dir = File.createTempFile( "webapp", "" );
+        dir.delete();
+        dir.mkdirs();
+        File file = new File( dir, "app.jnlp" );
+        try
+        {
+            OutputStream out = new FileOutputStream( file );
+            try
+            {
+                out.write( content.getBytes( StandardCharsets.UTF_8 ) );
+            }
+            finally
+            {
+                out.close();
+            }
+            ServletContext context = ServletStubs.newServletContext( dir );
+            Logger log = new Logger( ServletStubs.newServletConfig( context ),
+                                     JnlpDownloadServlet.getResourceBundle() );
+            JnlpFileHandler handler = new JnlpFileHandler( context, null, log, 0, 0, 0 );
+            DownloadResponse download = handler.getJnlpFile( new JnlpResource( context, "/app.jnlp" ),
+                    new DownloadRequest( context, JnlpFileHandlerTest.newRequest( "host" ) ) );
+            return DownloadResponseTest.send( download, new HashMap<String, String>() );
+        }
+        finally
+        {
+            file.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests that {@link ResourceIndex} finds the same resources and error codes as
+ * the linear scan of {@link ResourceCatalog#findMatch}.
+ */
+public class ResourceIndexTest
+        extends TestCase
+{
+    private static final String[] NAMES = { "app.jar", "lib.jar", "native.jar", "missing.jar" };
+
+    private static final String[] VERSIONS = { "1", "1.0", "1.0.0", "1.0.1", "1.1", "1.2", "1.10", "2.0", "2.0.1",
+            "10.0" };
+
+    private static final String[] REQUESTED_VERSIONS = { null, "", "1.0", "1.0.0", "1.0.1", "1.3", "2.0", "10",
+            "1.0+", "1.1+", "11+", "1.0*", "2*", "1.0 2.0", "1.1 1.0.1 3.0", "1.0+&1.1*", "1.0&1.0.0" };
+
+    private static final String[][] OS = { null, { "Windows" }, { "Linux" }, { "Win", "Mac" } };
+
+    private static final String[][] REQUESTED_OS = { null, { "Windows 10" }, { "Linux" }, { "Mac OS X" } };
+
+    private static final String[][] ARCH = { null, { "x86" }, { "amd64" } };
+
+    private static final String[][] REQUESTED_ARCH = { null, { "x86" }, { "amd64" }, { "sparc" } };
+
+    private static final String[][] LOCALE = { null, { "en" }, { "fr" } };
+
+    private static final String[][] REQUESTED_LOCALE = { null, { "en_US" }, { "fr_FR" }, { "de" } };
+
+    private ServletContext context;
+
+    private ResourceCatalog catalog;
+
+    public void setUp()
+    {
+        context = ServletStubs.newProxy( ServletContext.class, new HashMap<String, String>() );
+        catalog = new ResourceCatalog( context, null );
+    }
+
+    public void testSameMatchAsLinearScan()
+    {
+        Random random = new Random( 42 );
+        for ( int round = 0; round < 50; round++ )
+        {
+            List<JnlpResource> resources = new ArrayList<>();
+            int count = random.nextInt( 40 );
+            for ( int i = 0; i < count; i++ )
+            {
+                resources.add( newResource( NAMES[random.nextInt( NAMES.length - 1 )],
+                                            VERSIONS[random.nextInt( VERSIONS.length )],
+                                            OS[random.nextInt( OS.length )], ARCH[random.nextInt( ARCH.length )],
+                                            LOCALE[random.nextInt( LOCALE.length )] ) );
+            }
+            ResourceIndex index = new ResourceIndex( catalog, resources );
+            for ( int i = 0; i < 200; i++ )
+            {
+                String name = NAMES[random.nextInt( NAMES.length )];
+                DownloadRequest dreq = newRequest( name, REQUESTED_VERSIONS[random.nextInt( REQUESTED_VERSIONS.length )],
+                                                   REQUESTED_OS[random.nextInt( REQUESTED_OS.length )],
+                                                   REQUESTED_ARCH[random.nextInt( REQUESTED_ARCH.length )],
+                                                   REQUESTED_LOCALE[random.nextInt( REQUESTED_LOCALE.length )] );
+                assertSameMatch( resources, index, name, dreq );
+            }
+        }
+    }
+
+    public void testUnorderedVersions()
+    {
+        // Numeric and non-numeric elements compare inconsistently: 10 > 9 > 1a > 10
+        List<JnlpResource> resources = new ArrayList<>();
+        for ( String version : new String[]{ "10", "9", "1a", "9", "10" } )
+        {
+            resources.add( newResource( "app.jar", version, null, null, null ) );
+        }
+        ResourceIndex index = new ResourceIndex( catalog, resources );
+        for ( String version : new String[]{ "1+", "9", "1a", "10", "1*", "2+", "11" } )
+        {
+            assertSameMatch( resources, index, "app.jar", newRequest( "app.jar", version, null, null, null ) );
+        }
+    }
+
+    public void testNullList()
+    {
+        ResourceIndex index = new ResourceIndex( catalog, null );
+        JnlpResource[] result = new JnlpResource[1];
+        assertEquals( DownloadResponse.ERR_10_NO_RESOURCE,
+                      index.findMatch( "app.jar", newRequest( "app.jar", "1.0", null, null, null ), result ) );
+        assertNull( result[0] );
+    }
+
+    private void assertSameMatch( List<JnlpResource> resources, ResourceIndex index, String name,
+                                  DownloadRequest dreq )
+    {
+        JnlpResource[] expected = new JnlpResource[1];
+        JnlpResource[] actual = new JnlpResource[1];
+        int expectedSts = catalog.findMatch( resources, name, dreq, expected );
+        int actualSts = index.findMatch( name, dreq, actual );
+        String message = name + " " + dreq.getVersion() + " in " + resources;
+        assertEquals( message, expectedSts, actualSts );
+        assertSame( message, expected[0], actual[0] );
+    }
+
+    private JnlpResource newResource( String name, String versionId, String[] os, String[] arch, String[] locale )
+    {
+        return new JnlpResource( context, name, versionId, os, arch, locale, "/lib/" + name, versionId );
+    }
+
+    private static DownloadRequest newRequest( String name, String version, String[] os, String[] arch,
+                                               String[] locale )
+    {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put( "getRequestURI", "/lib/" + name );
+        parameters.put( "version-id", version );
+        parameters.put( "os", join( os ) );
+        parameters.put( "arch", join( arch ) );
+        parameters.put( "locale", join( locale ) );
+        return new DownloadRequest( ServletStubs.newProxy( HttpServletRequest.class, parameters ) );
+    }
+
+    private static String join( String[] values )
+    {
+        if ( values == null )
+        {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for ( String value : values )
+        {
+            // Spaces within a value are escaped
+            sb.append( value.replace( " ", "\\ " ) ).append( ' ' );
+        }
+        return sb.toString();
+    }
+}
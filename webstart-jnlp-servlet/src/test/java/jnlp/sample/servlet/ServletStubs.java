@@ -0,0 +1,88 @@
+package jnlp.sample.servlet;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Implementations of the servlet interfaces for the tests, answering <code>null</code> to
+ * every method they do not handle.
+ */
+final class ServletStubs
+{
+    private ServletStubs()
+    {
+    }
+
+    /**
+     * Creates a servlet context serving the files of the given directory.
+     */
+    static ServletContext newServletContext( final File dir )
+    {
+        return newProxy( ServletContext.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+                    throws Throwable
+            {
+                String name = method.getName();
+                if ( name.equals( "getRealPath" ) )
+                {
+                    return new File( dir, (String) args[0] ).getPath();
+                }
+                if ( name.equals( "getResource" ) )
+                {
+                    File file = new File( dir, (String) args[0] );
+                    return file.exists() ? file.toURI().toURL() : null;
+                }
+                return null;
+            }
+        } );
+    }
+
+    static ServletConfig newServletConfig( final ServletContext context )
+    {
+        return newProxy( ServletConfig.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                if ( method.getName().equals( "getServletContext" ) )
+                {
+                    return context;
+                }
+                if ( method.getName().equals( "getServletName" ) )
+                {
+                    return "test";
+                }
+                return null;
+            }
+        } );
+    }
+
+    /**
+     * Creates an implementation of a servlet interface answering getParameter and
+     * other methods from a map.
+     */
+    static <T> T newProxy( Class<T> type, final Map<String, String> values )
+    {
+        return newProxy( type, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+            {
+                if ( method.getName().equals( "getParameter" ) )
+                {
+                    return values.get( (String) args[0] );
+                }
+                return values.get( method.getName() );
+            }
+        } );
+    }
+
+    static <T> T newProxy( Class<T> type, InvocationHandler handler )
+    {
+        return type.cast( Proxy.newProxyInstance( type.getClassLoader(), new Class[]{ type }, handler ) );
+    }
+}
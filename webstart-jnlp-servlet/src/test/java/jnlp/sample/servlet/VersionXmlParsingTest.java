@@ -0,0 +1,342 @@
+package jnlp.sample.servlet;
+
+import junit.framework.TestCase;
+import org.w3c.dom.Document;
+
+import javax.servlet.ServletContext;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that the streaming parser of version.xml in {@link ResourceCatalog} reads the same
+ * entries as the former DOM and {@link XMLNode} based parser.
+ * <p>
+ * Their parse time and allocations on a 10k-entry file are only compared when the system
+ * property <code>jnlp.benchmark</code> is true, e.g. with <code>mvn test -Djnlp.benchmark=true</code>.
+ */
+public class VersionXmlParsingTest
+        extends TestCase
+{
+    private static final String BENCHMARK_PROPERTY = "jnlp.benchmark";
+
+    private static final int ENTRIES = 1000;
+
+    private static final int BENCHMARK_ENTRIES = 10000;
+
+    private static final int BENCHMARK_ROUNDS = 3;
+
+    private File versionXml;
+
+    private ServletContext context;
+
+    private ResourceCatalog catalog;
+
+    public void setUp()
+            throws IOException
+    {
+        versionXml = File.createTempFile( "version", ".xml" );
+        context = newContext( versionXml );
+        Logger log = new Logger( ServletStubs.newServletConfig( context ), JnlpDownloadServlet.getResourceBundle() );
+        catalog = new ResourceCatalog( context, log );
+    }
+
+    public void tearDown()
+    {
+        versionXml.delete();
+    }
+
+    public void testSameEntriesAsDom()
+            throws Exception
+    {
+        // Comments within elements are not tested, they made the DOM conversion fail
+        write( "<?xml version=\"1.0\"?>\n" +
+                       "<!-- resources of the application -->\n" +
+                       "<jnlp-versions>\n" +
+                       "  <resource>\n" +
+                       "    <pattern><name>app.jar</name><version-id>1.0</version-id></pattern>\n" +
+                       "    <file>app-1.0.jar</file>\n" +
+                       "  </resource>\n" +
+                       "  <resource>\n" +
+                       "    <pattern>\n" +
+                       "      <name> lib &amp; more.jar </name><version-id><![CDATA[2.0]]></version-id>\n" +
+                       "      <os>Windows</os><os>Mac OS X</os><os/><arch>x86</arch><locale>fr</locale>\n" +
+                       "      <unknown>ignored</unknown>\n" +
+                       "    </pattern>\n" +
+                       "    <pattern><name>second.jar</name><version-id>3.0</version-id></pattern>\n" +
+                       "    <file>lib-2.0.jar</file><file>second.jar</file>\n" +
+                       "  </resource>\n" +
+                       "  <resource><pattern><version-id>1.1</version-id></pattern><file>noname.jar</file></resource>\n" +
+                       "  <resource><pattern><name>a.jar</name><version-id/></pattern><file>a.jar</file></resource>\n" +
+                       "  <resource><pattern><name>a.jar</name><version-id>1.0</version-id></pattern></resource>\n" +
+                       "  <resource><file>nopattern.jar</file></resource>\n" +
+                       "  <resource><pattern><name>m.jar</name><version-id>1.0</version-id></pattern>" +
+                       "<file>missing-1.0.jar</file></resource>\n" +
+                       "  <platform>\n" +
+                       "    <pattern><name>JRE</name><version-id>1.8</version-id><os>Linux</os></pattern>\n" +
+                       "    <file>jre-1.8.jar</file><product-version-id>1.8.0_202</product-version-id>\n" +
+                       "  </platform>\n" +
+                       "  <platform><pattern><name>JRE</name><version-id>9</version-id></pattern>" +
+                       "<file>jre-9.jar</file></platform>\n" +
+                       "  <other><resource><pattern><name>nested.jar</name><version-id>1.0</version-id></pattern>" +
+                       "<file>nested.jar</file></resource></other>\n" +
+                       "  <resource><pattern><name>text<b>bold</b>more</name><version-id>1.0</version-id></pattern>" +
+                       "<file>text.jar</file></resource>\n" +
+                       "</jnlp-versions>\n" );
+        List[] entries = assertSameEntries();
+        assertEquals( 4, entries[0].size() );
+        assertEquals( 1, entries[1].size() );
+    }
+
+    public void testOtherRootElement()
+            throws Exception
+    {
+        write( "<?xml version=\"1.0\"?><jnlp><resource><pattern><name>app.jar</name><version-id>1.0</version-id>" +
+                       "</pattern><file>app-1.0.jar</file></resource></jnlp>" );
+        assertSameEntries();
+    }
+
+    public void testNotWellFormed()
+            throws Exception
+    {
+        write( "<?xml version=\"1.0\"?><jnlp-versions><resource><pattern><name>app.jar</name>" +
+                       "<version-id>1.0</version-id></pattern><file>app-1.0.jar</file></resource><resource>" );
+        assertSameEntries();
+    }
+
+    public void testManyEntries()
+            throws Exception
+    {
+        writeEntries( ENTRIES );
+        List[] entries = assertSameEntries();
+        assertEquals( ENTRIES, entries[0].size() + entries[1].size() );
+    }
+
+    public void testParseTimeAndAllocations()
+            throws Exception
+    {
+        if ( !Boolean.getBoolean( BENCHMARK_PROPERTY ) )
+        {
+            return;
+        }
+        writeEntries( BENCHMARK_ENTRIES );
+        List[] expected = assertSameEntries();
+        assertEquals( BENCHMARK_ENTRIES, expected[0].size() + expected[1].size() );
+
+        JnlpResource versionRes = new JnlpResource( context, "/lib/version.xml" );
+        long[] dom = new long[2];
+        long[] stax = new long[2];
+        for ( int round = 0; round < BENCHMARK_ROUNDS; round++ )
+        {
+            measure( dom, true, versionRes );
+            measure( stax, false, versionRes );
+        }
+        System.out.println( "version.xml with " + BENCHMARK_ENTRIES + " entries, average of " + BENCHMARK_ROUNDS +
+                                    " parses" );
+        print( "DOM + XMLNode", dom );
+        print( "StAX", stax );
+    }
+
+    private List[] assertSameEntries()
+            throws Exception
+    {
+        JnlpResource versionRes = new JnlpResource( context, "/lib/version.xml" );
+        List[] expected = parseWithDom( versionRes );
+        List[] actual = parseWithStax( versionRes );
+        assertEquals( toStrings( expected[0] ), toStrings( actual[0] ) );
+        assertEquals( toStrings( expected[1] ), toStrings( actual[1] ) );
+        return actual;
+    }
+
+    private void measure( long[] totals, boolean dom, JnlpResource versionRes )
+            throws Exception
+    {
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        List[] lists = dom ? parseWithDom( versionRes ) : parseWithStax( versionRes );
+        totals[0] += System.nanoTime() - start;
+        totals[1] += getAllocatedBytes() - allocated;
+        assertEquals( BENCHMARK_ENTRIES, lists[0].size() + lists[1].size() );
+    }
+
+    private static void print( String parser, long[] totals )
+    {
+        long allocated = totals[1] / BENCHMARK_ROUNDS;
+        System.out.println( "  " + parser + ": " + totals[0] / BENCHMARK_ROUNDS / 1000000 + " ms, " +
+                                    ( allocated < 0 ? "unknown" : allocated / 1024 + " KB" ) + " allocated" );
+    }
+
+    private static long getAllocatedBytes()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if ( bean instanceof com.sun.management.ThreadMXBean )
+        {
+            return ( (com.sun.management.ThreadMXBean) bean ).getThreadAllocatedBytes(
+                    Thread.currentThread().getId() );
+        }
+        return -1;
+    }
+
+    private List[] parseWithStax( JnlpResource versionRes )
+    {
+        List versionList = new ArrayList();
+        List platformList = new ArrayList();
+        catalog.parseVersionXML( versionList, platformList, "/lib/", versionRes );
+        return new List[]{ versionList, platformList };
+    }
+
+    /**
+     * The parser version.xml had before, without its logging.
+     */
+    private List[] parseWithDom( JnlpResource versionRes )
+            throws IOException
+    {
+        final List versionList = new ArrayList();
+        final List platformList = new ArrayList();
+        XMLNode root;
+        InputStream in = new BufferedInputStream( versionRes.getResource().openStream() );
+        try
+        {
+            Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse( in );
+            doc.getDocumentElement().normalize();
+            root = XMLParsing.convert( doc.getDocumentElement() );
+        }
+        catch ( Exception e )
+        {
+            return new List[]{ versionList, platformList };
+        }
+        finally
+        {
+            in.close();
+        }
+        if ( !root.getName().equals( "jnlp-versions" ) )
+        {
+            return new List[]{ versionList, platformList };
+        }
+        visit( root, "<resource>", false, versionList );
+        visit( root, "<platform>", true, platformList );
+        return new List[]{ versionList, platformList };
+    }
+
+    private void visit( XMLNode root, String path, final boolean platform, final List list )
+    {
+        XMLParsing.visitElements( root, path, new XMLParsing.ElementVisitor()
+        {
+            public void visitElement( XMLNode node )
+            {
+                XMLNode pattern = XMLParsing.findElementPath( node, "<pattern>" );
+                if ( pattern == null )
+                {
+                    return;
+                }
+                String name = XMLParsing.getElementContent( pattern, "<name>", "" );
+                String versionId = XMLParsing.getElementContent( pattern, "<version-id>" );
+                String[] os = XMLParsing.getMultiElementContent( pattern, "<os>" );
+                String[] arch = XMLParsing.getMultiElementContent( pattern, "<arch>" );
+                String[] locale = XMLParsing.getMultiElementContent( pattern, "<locale>" );
+                String file = XMLParsing.getElementContent( node, "<file>" );
+                String productId = XMLParsing.getElementContent( node, "<product-version-id>" );
+                if ( versionId == null || file == null || platform && productId == null )
+                {
+                    return;
+                }
+                JnlpResource res = new JnlpResource( context, name, versionId, os, arch, locale, "/lib/" + file,
+                                                     platform ? productId : versionId );
+                if ( res.exists() )
+                {
+                    list.add( res );
+                }
+            }
+        } );
+    }
+
+    private static List<String> toStrings( List resources )
+    {
+        List<String> strings = new ArrayList<>();
+        for ( Object resource : resources )
+        {
+            strings.add( resource.toString() );
+        }
+        return strings;
+    }
+
+    private void writeEntries( int count )
+            throws IOException
+    {
+        String[] os = { "", "<os>Windows</os>", "<os>Linux</os><os>SunOS</os>" };
+        String[] arch = { "", "<arch>x86</arch>", "<arch>amd64</arch>" };
+        String[] locale = { "", "<locale>en</locale>", "<locale>fr</locale><locale>de</locale>" };
+        Random random = new Random( 42 );
+        StringBuilder xml = new StringBuilder( "<?xml version=\"1.0\"?>\n<jnlp-versions>\n" );
+        for ( int i = 0; i < count; i++ )
+        {
+            boolean platform = i % 100 == 0;
+            String version = ( i / 100 ) + "." + ( i % 100 );
+            xml.append( platform ? "  <platform>\n" : "  <resource>\n" );
+            xml.append( "    <pattern>\n      <name>lib" ).append( i % 500 ).append( ".jar</name>\n" );
+            xml.append( "      <version-id>" ).append( version ).append( "</version-id>\n      " );
+            xml.append( os[random.nextInt( os.length )] ).append( arch[random.nextInt( arch.length )] );
+            xml.append( locale[random.nextInt( locale.length )] ).append( "\n    </pattern>\n" );
+            xml.append( "    <file>lib" ).append( i % 500 ).append( '-' ).append( version ).append( ".jar</file>\n" );
+            if ( platform )
+            {
+                xml.append( "    <product-version-id>" ).append( version ).append( "_1</product-version-id>\n" );
+            }
+            xml.append( platform ? "  </platform>\n" : "  </resource>\n" );
+        }
+        write( xml.append( "</jnlp-versions>\n" ).toString() );
+    }
+
+    private void write( String xml )
+            throws IOException
+    {
+        Writer writer = new OutputStreamWriter( new FileOutputStream( versionXml ), "UTF-8" );
+        try
+        {
+            writer.write( xml );
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Creates a servlet context with the given version.xml in <code>/lib/</code>, where
+     * every other jar file exists, except <code>missing-*.jar</code>.
+     */
+    private static ServletContext newContext( final File versionXml )
+    {
+        return ServletStubs.newProxy( ServletContext.class, new InvocationHandler()
+        {
+            public Object invoke( Object proxy, Method method, Object[] args )
+                    throws IOException
+            {
+                if ( !method.getName().equals( "getResource" ) )
+                {
+                    return null;
+                }
+                String path = (String) args[0];
+                if ( path.equals( "/lib/version.xml" ) ||
+                        path.endsWith( ".jar" ) && !path.startsWith( "/lib/missing-" ) )
+                {
+                    // Jar files are not opened, any existing file does
+                    return versionXml.toURI().toURL();
+                }
+                return null;
+            }
+        } );
+    }
+}
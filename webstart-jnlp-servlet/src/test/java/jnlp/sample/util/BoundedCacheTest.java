@@ -0,0 +1,269 @@
+package jnlp.sample.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tests the eviction order, the bounds, the expiry and the counters of {@link BoundedCache}.
+ */
+public class BoundedCacheTest
+        extends TestCase
+{
+    private final List<String> removed = new ArrayList<>();
+
+    private final BoundedCache.RemovalListener<String, String> listener =
+            new BoundedCache.RemovalListener<String, String>()
+            {
+                public void removed( String key, String value )
+                {
+                    synchronized ( removed )
+                    {
+                        removed.add( key );
+                    }
+                }
+            };
+
+    private final BoundedCache.Weigher<String> lengthWeigher = new BoundedCache.Weigher<String>()
+    {
+        public long weigh( String value )
+        {
+            return value.length();
+        }
+    };
+
+    public void testEvictsLeastRecentlyUsed()
+            throws Exception
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>( 2, 0, null, listener );
+        load( cache, "a" );
+        load( cache, "b" );
+        load( cache, "c" );
+        assertEquals( "[a]", removed.toString() );
+        load( cache, "d" );
+        assertEquals( "[a, b]", removed.toString() );
+        assertNotNull( cache.getIfPresent( "c" ) );
+        assertNotNull( cache.getIfPresent( "d" ) );
+
+        // A lookup makes an entry the most recently used one
+        assertNotNull( cache.getIfPresent( "c" ) );
+        load( cache, "e" );
+        assertEquals( "[a, b, d]", removed.toString() );
+        assertNotNull( cache.getIfPresent( "c" ) );
+        assertNotNull( cache.getIfPresent( "e" ) );
+        assertEquals( 2, cache.size() );
+    }
+
+    public void testAccessOrderOfManyEntries()
+            throws Exception
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>( 1000, 0, null, listener );
+        for ( int i = 0; i < 1000; i++ )
+        {
+            load( cache, "k" + i );
+        }
+        // The odd entries become the most recently used ones, the even ones are evicted first
+        for ( int i = 1; i < 1000; i += 2 )
+        {
+            assertNotNull( cache.getIfPresent( "k" + i ) );
+        }
+        for ( int i = 0; i < 500; i++ )
+        {
+            load( cache, "n" + i );
+        }
+        assertEquals( 500, removed.size() );
+        for ( int i = 0; i < 500; i++ )
+        {
+            assertEquals( "k" + 2 * i, removed.get( i ) );
+        }
+        assertEquals( 1000, cache.size() );
+        assertEquals( 500, cache.getEvictionCount() );
+    }
+
+    public void testBoundedByWeight()
+            throws Exception
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>( 0, 10, lengthWeigher, listener );
+        cache.put( "a", "aaaa" );
+        cache.put( "b", "bbbb" );
+        assertEquals( 8, cache.weight() );
+        cache.put( "c", "cccc" );
+        assertEquals( "[a]", removed.toString() );
+        assertEquals( 8, cache.weight() );
+
+        // Replacing an entry notifies the listener of the previous value
+        cache.put( "c", "cc" );
+        assertEquals( "[a, c]", removed.toString() );
+        assertEquals( 6, cache.weight() );
+
+        cache.invalidate( "b" );
+        assertEquals( "[a, c, b]", removed.toString() );
+        assertEquals( 2, cache.weight() );
+        assertEquals( 1, cache.size() );
+    }
+
+    public void testConditionalInvalidate()
+            throws Exception
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>( 0, 0, null, listener );
+        String stale = new String( "value" );
+        cache.put( "a", stale );
+        String current = new String( "value" );
+        cache.put( "a", current );
+        removed.clear();
+
+        // Only the very same value is removed, not an equal one stored meanwhile
+        cache.invalidate( "a", stale );
+        assertSame( current, cache.getIfPresent( "a" ) );
+        assertTrue( removed.isEmpty() );
+        cache.invalidate( "a", current );
+        assertNull( cache.getIfPresent( "a" ) );
+        assertEquals( "[a]", removed.toString() );
+    }
+
+    public void testExpiry()
+            throws Exception
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>( 0, 0, null, listener, 50 );
+        load( cache, "a" );
+        assertNotNull( cache.getIfPresent( "a" ) );
+        Thread.sleep( 100 );
+        assertNull( cache.getIfPresent( "a" ) );
+        assertEquals( "[a]", removed.toString() );
+        assertEquals( 1, cache.getEvictionCount() );
+        assertEquals( 0, cache.size() );
+
+        // Computed again on the next lookup
+        load( cache, "a" );
+        assertNotNull( cache.getIfPresent( "a" ) );
+    }
+
+    public void testCounters()
+            throws Exception
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>( 1, 0, null, listener );
+        load( cache, "a" );
+        load( cache, "a" );
+        cache.getIfPresent( "a" );
+        cache.getIfPresent( "b" );
+        load( cache, "b" );
+        assertEquals( 2, cache.getHitCount() );
+        assertEquals( 3, cache.getMissCount() );
+        assertEquals( 1, cache.getEvictionCount() );
+
+        // Explicit removals are not evictions
+        cache.invalidate( "b" );
+        assertEquals( 1, cache.getEvictionCount() );
+    }
+
+    public void testFailureIsNotCached()
+            throws Exception
+    {
+        BoundedCache<String, String> cache = new BoundedCache<>( 0, 0, null, listener );
+        try
+        {
+            cache.get( "a", new BoundedCache.Loader<String, String>()
+            {
+                public String load( String key )
+                        throws Exception
+                {
+                    throw new Exception( "failed" );
+                }
+            } );
+            fail();
+        }
+        catch ( ExecutionException e )
+        {
+            assertEquals( "failed", e.getCause().getMessage() );
+        }
+        assertEquals( 0, cache.size() );
+        assertEquals( "a", load( cache, "a" ) );
+        assertTrue( removed.isEmpty() );
+    }
+
+    public void testSingleLoadForConcurrentRequests()
+            throws Exception
+    {
+        final BoundedCache<String, String> cache = new BoundedCache<>( 0, 0, null, listener );
+        final int[] loads = new int[1];
+        final BoundedCache.Loader<String, String> slowLoader = new BoundedCache.Loader<String, String>()
+        {
+            public String load( String key )
+                    throws Exception
+            {
+                synchronized ( loads )
+                {
+                    loads[0]++;
+                }
+                Thread.sleep( 100 );
+                return key;
+            }
+        };
+        List<Thread> threads = new ArrayList<>();
+        for ( int i = 0; i < 8; i++ )
+        {
+            Thread t = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        cache.get( "a", slowLoader );
+                    }
+                    catch ( Exception e )
+                    {
+                        throw new IllegalStateException( e );
+                    }
+                }
+            } );
+            t.start();
+            threads.add( t );
+        }
+        for ( Thread t : threads )
+        {
+            t.join();
+        }
+        assertEquals( 1, loads[0] );
+        assertEquals( 1, cache.getMissCount() );
+        assertEquals( 7, cache.getHitCount() );
+    }
+
+    public void testContainsKeyWhileLoading()
+            throws Exception
+    {
+        final BoundedCache<String, String> cache = new BoundedCache<>( 0, 0, null, listener );
+        final boolean[] contained = new boolean[2];
+        cache.get( "a", new BoundedCache.Loader<String, String>()
+        {
+            public String load( String key )
+            {
+                // Not computed yet, but being computed
+                contained[0] = cache.containsKey( "a" );
+                contained[1] = cache.getIfPresent( "a" ) != null;
+                return key;
+            }
+        } );
+        assertTrue( contained[0] );
+        assertFalse( contained[1] );
+        assertTrue( cache.containsKey( "a" ) );
+        assertFalse( cache.containsKey( "b" ) );
+
+        // Only getIfPresent counted
+        assertEquals( 2, cache.getMissCount() );
+        assertEquals( 0, cache.getHitCount() );
+    }
+
+    private static String load( BoundedCache<String, String> cache, String key )
+            throws Exception
+    {
+        return cache.get( key, new BoundedCache.Loader<String, String>()
+        {
+            public String load( String key )
+            {
+                return key;
+            }
+        } );
+    }
+}
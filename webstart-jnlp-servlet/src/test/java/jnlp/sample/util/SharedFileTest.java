@@ -0,0 +1,52 @@
+package jnlp.sample.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tests that a {@link SharedFile} is only deleted once the owner and all readers released it.
+ */
+public class SharedFileTest
+        extends TestCase
+{
+    private File file;
+
+    public void setUp()
+            throws IOException
+    {
+        file = File.createTempFile( "shared", ".tmp" );
+    }
+
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testDeletedAfterLastReader()
+    {
+        SharedFile shared = new SharedFile( file );
+        assertTrue( shared.acquire() );
+        assertTrue( shared.acquire() );
+
+        // Dropped by the owner while two readers use it
+        shared.release();
+        assertTrue( file.exists() );
+        shared.release();
+        assertTrue( file.exists() );
+        assertFalse( shared.isReleased() );
+        shared.release();
+        assertFalse( file.exists() );
+        assertTrue( shared.isReleased() );
+    }
+
+    public void testNotAcquiredOnceDeleted()
+    {
+        SharedFile shared = new SharedFile( file );
+        shared.release();
+        assertFalse( file.exists() );
+        assertFalse( shared.acquire() );
+        assertTrue( shared.isReleased() );
+    }
+}
@@ -0,0 +1,33 @@
+package jnlp.sample.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link VersionID#valueOf(String)} keeps sharing the most recently used
+ * instances once its cache has turned over.
+ */
+public class VersionCacheTest
+        extends TestCase
+{
+    public void testVersionIdsSharedAfterTurnover()
+    {
+        VersionID hot = VersionID.valueOf( "1.0+" );
+        VersionID first = VersionID.valueOf( "2.0" );
+        for ( int i = 0; i < 2 * VersionID.CACHE_MAX_ENTRIES; i++ )
+        {
+            VersionID.valueOf( "2." + i );
+            if ( i % 100 == 0 )
+            {
+                assertSame( hot, VersionID.valueOf( "1.0+" ) );
+            }
+        }
+        assertSame( hot, VersionID.valueOf( "1.0+" ) );
+
+        // The version-ids parsed last are shared, the first ones were evicted
+        int last = 2 * VersionID.CACHE_MAX_ENTRIES - 1;
+        assertSame( VersionID.valueOf( "2." + last ), VersionID.valueOf( "2." + last ) );
+        VersionID recent = VersionID.valueOf( "2." + ( last - 10 ) );
+        assertSame( recent, VersionID.valueOf( "2." + ( last - 10 ) ) );
+        assertNotSame( first, VersionID.valueOf( "2.0" ) );
+    }
+}
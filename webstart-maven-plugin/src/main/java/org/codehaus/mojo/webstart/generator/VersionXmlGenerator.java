@@ -26,7 +26,11 @@ import org.codehaus.plexus.util.WriterFactory;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * This class generates a <code>version.xml</code> file for a given collection of
@@ -36,6 +40,21 @@ import java.util.Collection;
  * <a href="http://java.sun.com/javase/6/docs/technotes/guides/javaws/developersguide/downloadservletguide.html">
  * JnlpDownloadServlet Guide</a>
  * </p>
+ * <p>
+ * Next to it, a <code>version.xml.idx</code> file holds the same resources in a line-oriented
+ * format, sorted by name, which the <code>JnlpDownloadServlet</code> reads instead of parsing
+ * the xml file as long as <code>version.xml</code> is not modified:
+ * </p>
+ * <pre>
+ * jnlp-versions-index 1 &lt;length of version.xml&gt;
+ * resource TAB name TAB version-id TAB os TAB arch TAB locale TAB file
+ * platform TAB name TAB version-id TAB os TAB arch TAB locale TAB file TAB product-version-id
+ * </pre>
+ * <p>
+ * Lists of values are separated by spaces, and backslashes, tabs, spaces and line breaks
+ * within a value are escaped as <code>\\</code>, <code>\t</code>, <code>\s</code>,
+ * <code>\n</code> and <code>\r</code>. The index is written in UTF-8.
+ * </p>
  *
  * @author Kevin Stembridge
  * @version $Revision$
@@ -44,6 +63,21 @@ import java.util.Collection;
 public class VersionXmlGenerator
 {
 
+    /**
+     * Name of the index file generated next to <code>version.xml</code>.
+     */
+    public static final String INDEX_FILENAME = "version.xml.idx";
+
+    /**
+     * First word of the header line of the index file.
+     */
+    public static final String INDEX_HEADER = "jnlp-versions-index";
+
+    /**
+     * Version of the format of the index file.
+     */
+    public static final int INDEX_FORMAT = 1;
+
     private final String encoding;
 
     /**
@@ -59,7 +93,8 @@ public class VersionXmlGenerator
     /**
      * Generates a file named <code>version.xml</code> in the given <code>outputDir</code>.
      * The generated file will contain resource elements for each of the JarResource
-     * objects in the given collection.
+     * objects in the given collection. The <code>version.xml.idx</code> index of the same
+     * resources is generated next to it.
      *
      * @param outputDir    The directory in which the file will be generated. Must not be null.
      * @param jarResources The collection of JarResources for which a resource
@@ -75,11 +110,11 @@ public class VersionXmlGenerator
             throw new IllegalArgumentException( "outputDir must not be null" );
         }
 
+        File versionXmlFile = new File( outputDir, "version.xml" );
         BufferedWriter writer = null;
 
         try
         {
-            File versionXmlFile = new File( outputDir, "version.xml" );
             writer = new BufferedWriter( WriterFactory.newWriter( versionXmlFile, encoding ) );
 
             generateXml( writer, jarResources );
@@ -104,6 +139,102 @@ public class VersionXmlGenerator
             }
         }
 
+        generateIndex( outputDir, versionXmlFile.length(), jarResources );
+    }
+
+    /**
+     * Generates the <code>version.xml.idx</code> index of the resources in the given <code>outputDir</code>.
+     *
+     * @param outputDir     The directory in which the file will be generated.
+     * @param versionLength The length of the <code>version.xml</code> file the index was generated with.
+     * @param jarResources  The collection of JarResources to index.
+     * @throws MojoExecutionException if an error occurs generating the file.
+     */
+    private void generateIndex( File outputDir, long versionLength, Collection<ResolvedJarResource> jarResources )
+            throws MojoExecutionException
+    {
+        BufferedWriter writer = null;
+
+        try
+        {
+            File indexFile = new File( outputDir, INDEX_FILENAME );
+            writer = new BufferedWriter( WriterFactory.newWriter( indexFile, WriterFactory.UTF_8 ) );
+
+            List<ResolvedJarResource> sorted = new ArrayList<>( jarResources );
+            // Stable, resources with the same name keep the order of version.xml
+            Collections.sort( sorted, new Comparator<ResolvedJarResource>()
+            {
+                public int compare( ResolvedJarResource r1, ResolvedJarResource r2 )
+                {
+                    return r1.getHrefValue().compareTo( r2.getHrefValue() );
+                }
+            } );
+
+            writer.write( INDEX_HEADER + " " + INDEX_FORMAT + " " + versionLength );
+            writer.write( '\n' );
+            for ( ResolvedJarResource jarResource : sorted )
+            {
+                // Generated resources have no os, arch nor locale
+                writer.write( "resource\t" + escape( jarResource.getHrefValue() ) + "\t" +
+                                  escape( jarResource.getVersion() ) + "\t\t\t\t" + escape( getFile( jarResource ) ) );
+                writer.write( '\n' );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Unable to create the " + INDEX_FILENAME + " file", e );
+        }
+        finally
+        {
+            if ( writer != null )
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch ( IOException e )
+                {
+                    // do nothing
+                }
+            }
+        }
+    }
+
+    private static String escape( String value )
+    {
+        StringBuilder sb = new StringBuilder( value.length() );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char ch = value.charAt( i );
+            switch ( ch )
+            {
+                case '\\':
+                    sb.append( "\\\\" );
+                    break;
+                case '\t':
+                    sb.append( "\\t" );
+                    break;
+                case ' ':
+                    sb.append( "\\s" );
+                    break;
+                case '\n':
+                    sb.append( "\\n" );
+                    break;
+                case '\r':
+                    sb.append( "\\r" );
+                    break;
+                default:
+                    sb.append( ch );
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String getFile( ResolvedJarResource jarResource )
+    {
+        return String.format( "%s-%s%s.%s", jarResource.getArtifactId(), jarResource.getVersion(),
+                              jarResource.getClassifier() == null ? "" : "-" + jarResource.getClassifier(),
+                              "test-jar".equals( jarResource.getType() ) ? "jar" : jarResource.getType() );
     }
 
     private void generateXml( BufferedWriter writer, Collection<ResolvedJarResource> jarResources )
@@ -132,8 +263,7 @@ public class VersionXmlGenerator
             writer.write( "    </pattern>" );
             writer.newLine();
             writer.write( "    <file>" );
-            writer.write( String.format( "%s-%s%s.%s", jarResource.getArtifactId(), jarResource.getVersion(),
-                                         jarResource.getClassifier() == null ? "" : "-" + jarResource.getClassifier(), "test-jar".equals(jarResource.getType()) ? "jar" : jarResource.getType() ) );
+            writer.write( getFile( jarResource ) );
             writer.write( "</file>" );
             writer.newLine();
             writer.write( "  </resource>" );
@@ -53,6 +53,8 @@ public class VersionXmlGeneratorTest
 
     private File expectedFile;
 
+    private File expectedIndexFile;
+
     /**
      * Creates a new {@code VersionXmlGeneratorTest}.
      */
@@ -83,6 +85,9 @@ public class VersionXmlGeneratorTest
 
         }
 
+        this.expectedIndexFile = new File( this.outputDir, VersionXmlGenerator.INDEX_FILENAME );
+        this.expectedIndexFile.deleteOnExit();
+        this.expectedIndexFile.delete();
     }
 
     /**
@@ -91,6 +96,7 @@ public class VersionXmlGeneratorTest
     public void tearDown()
     {
         this.expectedFile.delete();
+        this.expectedIndexFile.delete();
     }
 
     public void testWithNullOutputDir()
@@ -166,6 +172,36 @@ public class VersionXmlGeneratorTest
 
     }
 
+    public void testIndex()
+        throws IOException, MojoExecutionException
+    {
+
+        Artifact artifact1 =
+            new DefaultArtifact( "groupId", "artifactId1", VersionRange.createFromVersion( "1.0" ), "scope", "jar",
+                                 "classifier", null );
+        artifact1.setFile( new File( "zz bogus1.txt" ) );
+
+        Artifact artifact2 =
+            new DefaultArtifact( "groupId", "artifactId2", VersionRange.createFromVersion( "2.0" ), "scope", "jar",
+                                 "classifier", null );
+        artifact2.setFile( new File( "bogus2.txt" ) );
+
+        List<ResolvedJarResource> jarResources = new ArrayList<>( 2 );
+        jarResources.add( new ResolvedJarResource( artifact1 ) );
+        jarResources.add( new ResolvedJarResource( artifact2 ) );
+
+        new VersionXmlGenerator( "utf-8" ).generate( this.outputDir, jarResources );
+
+        Assert.assertTrue( "Assert expectedIndexFile exists", this.expectedIndexFile.exists() );
+
+        // Sorted by name, spaces escaped
+        String expected = "jnlp-versions-index 1 " + this.expectedFile.length() +
+            "resource\tbogus2.txt\t2.0\t\t\t\tartifactId2-2.0-classifier.jar" +
+            "resource\tzz\\sbogus1.txt\t1.0\t\t\t\tartifactId1-1.0-classifier.jar";
+        Assert.assertEquals( expected, readFileContents( this.expectedIndexFile ) );
+
+    }
+
     private String readFileContents( File file )
         throws IOException
     {